@@ -0,0 +1,146 @@
+package rumaps;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The AccessibilityScores class scores every intersection of a network by how much it can reach: for
+ * each of several traffic budgets, the number of intersections and the length of street within that
+ * budget, the same measures an Isochrone reports for one start.
+ *
+ * Scores come from one bounded Dijkstra search per intersection that stops at the largest budget, so
+ * small budgets stay cheap on large maps. The searches run in parallel, each worker thread reusing
+ * its own SearchWorkspace, and the scores are kept in row-major primitive arrays with one row per
+ * vertex of the routing graph, in its vertex order. writeCsv puts the rows back in the order of
+ * Network.getIntersections(), so the file does not depend on how the graph was renumbered.
+ */
+public class AccessibilityScores {
+    private final RoutingGraph graph;
+    private final double[] budgets;
+    private final int[] intersections;
+    private final double[] lengths;
+
+    /**
+     * Scores every vertex of a graph.
+     *
+     * @param graph the graph to score
+     * @param weights the traffic of every edge
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param budgets the traffic budgets to score for, in increasing order
+     */
+    public AccessibilityScores(RoutingGraph graph, double[] weights, ClosureMask closures, double[] budgets) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        if (budgets.length == 0) throw new IllegalArgumentException("Expected at least one budget");
+        for (int b = 0; b < budgets.length; b++) {
+            if (!(budgets[b] >= 0) || b > 0 && budgets[b] < budgets[b - 1])
+                throw new IllegalArgumentException("Budgets must be non-negative and increasing");
+        }
+        int n = graph.vertexCount();
+        int k = budgets.length;
+        this.graph = graph;
+        this.budgets = budgets.clone();
+        this.intersections = new int[n * k];
+        this.lengths = new double[n * k];
+        long[] closed = closures == null ? null : closures.bits();
+        double limit = budgets[k - 1];
+
+        ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+        IntStream.range(0, n).parallel().forEach(v -> {
+            SearchWorkspace workspace = workspaces.get();
+            int settled = workspace.boundedDijkstra(graph, weights, closures, v, limit);
+            int row = v * k;
+            // settled vertices come in order of distance, so each budget's count is a prefix
+            int count = 0;
+            for (int b = 0; b < k; b++) {
+                while (count < settled && workspace.distance(workspace.settled(count)) <= budgets[b]) count++;
+                intersections[row + b] = count;
+                lengths[row + b] = Isochrone.reachableLength(graph, weights, closed, workspace, budgets[b]);
+            }
+        });
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public int budgetCount() {
+        return budgets.length;
+    }
+
+    public double budget(int b) {
+        return budgets[b];
+    }
+
+    /**
+     * Returns the number of intersections reachable from vertex v within budget b, including v.
+     */
+    public int intersections(int v, int b) {
+        return intersections[v * budgets.length + b];
+    }
+
+    /**
+     * Returns the length of street reachable from vertex v within budget b.
+     */
+    public double length(int v, int b) {
+        return lengths[v * budgets.length + b];
+    }
+
+    /**
+     * Returns the largest reachable length of any vertex within budget b.
+     */
+    public double maxLength(int b) {
+        double max = 0;
+        for (int v = 0; v < graph.vertexCount(); v++) max = Math.max(max, length(v, b));
+        return max;
+    }
+
+    /**
+     * Writes the scores as CSV: the coordinates of every intersection followed by its number of
+     * reachable intersections and its reachable length for each budget, one line per intersection in
+     * the order of Network.getIntersections().
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeCsv(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            StringBuilder header = new StringBuilder("x,y");
+            for (double budget : budgets) header.append(",intersections@").append(budget).append(",length@").append(budget);
+            out.println(header);
+            int[] vertexOf = new int[graph.vertexCount()];
+            for (int v = 0; v < vertexOf.length; v++) vertexOf[graph.originalId(v)] = v;
+            for (int v : vertexOf) {
+                // a vertex without an intersection has no position to write
+                Intersection intersection = graph.intersection(v);
+                if (intersection == null) continue;
+                Coordinate c = intersection.getCoordinate();
+                StringBuilder line = new StringBuilder().append(c.getX()).append(',').append(c.getY());
+                for (int b = 0; b < budgets.length; b++) {
+                    line.append(',').append(intersections(v, b)).append(',').append(String.format(Locale.ROOT, "%.2f", length(v, b)));
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Scores a map and writes the scores as CSV.
+     * Usage: AccessibilityScores mapFile outputFile budget...
+     */
+    public static void main(String[] args) throws IOException {
+        RUMaps maps = new RUMaps(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] budgets = new double[args.length - 2];
+        for (int b = 0; b < budgets.length; b++) budgets[b] = Double.parseDouble(args[b + 2]);
+
+        long begin = System.nanoTime();
+        AccessibilityScores scores = new AccessibilityScores(graph, graph.trafficWeights(), null, budgets);
+        long elapsed = System.nanoTime() - begin;
+        scores.writeCsv(Paths.get(args[1]));
+        StdOut.printf("scored %d intersections for %d budgets in %.1f ms, written to %s%n", graph.vertexCount(),
+            budgets.length, elapsed / 1e6, args[1]);
+    }
+}
@@ -0,0 +1,206 @@
+package rumaps;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The AllPairsTable class stores the least traffic distance and the shortest path tree of every
+ * vertex, so that on small maps such as Busch.in or AllCampuses.in every fastestPath query is a table
+ * lookup.
+ *
+ * Row s holds the result of one full Dijkstra search from s: the distance to every vertex and the
+ * edge each vertex was reached by. Walking the predecessor edges back from t gives exactly the path
+ * RUMaps.fastestPath returns, in O(path length) with no search. The rows are computed in parallel.
+ *
+ * A table can be persisted as a memory-mapped file and served directly from the mapping. The file
+ * records the vertex and edge counts and a checksum of the weights, so a table is never used with a
+ * map or traffic it was not built for.
+ */
+public class AllPairsTable implements PathOracle {
+    private static final int MAGIC = 0x524d4150; // "RMAP"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 24;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final int n;
+    private final DoubleBuffer dist;
+    private final IntBuffer pred;
+
+    /**
+     * Computes the table with one Dijkstra search per vertex, in parallel.
+     *
+     * @param graph the graph
+     * @param weights the traffic of every edge; the array is copied
+     */
+    public AllPairsTable(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.n = graph.vertexCount();
+        double[] distances = new double[n * n];
+        int[] preds = new int[n * n];
+        ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+        IntStream.range(0, n).parallel().forEach(s -> {
+            SearchWorkspace workspace = workspaces.get();
+            workspace.dijkstra(graph, this.weights, s, -1);
+            int row = s * n;
+            for (int t = 0; t < n; t++) {
+                distances[row + t] = workspace.isReached(t) ? workspace.distance(t) : Double.POSITIVE_INFINITY;
+                preds[row + t] = workspace.predEdge(t);
+            }
+        });
+        this.dist = DoubleBuffer.wrap(distances);
+        this.pred = IntBuffer.wrap(preds);
+    }
+
+    private AllPairsTable(RoutingGraph graph, double[] weights, DoubleBuffer dist, IntBuffer pred) {
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.n = graph.vertexCount();
+        this.dist = dist;
+        this.pred = pred;
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    @Override
+    public double distance(int s, int t) {
+        return dist.get(s * n + t);
+    }
+
+    /**
+     * Returns the edge t is reached by on the least traffic route from s.
+     *
+     * @return the edge id, or -1 if t is unreachable or equals s
+     */
+    public int predEdge(int s, int t) {
+        return pred.get(s * n + t);
+    }
+
+    @Override
+    public Route route(int s, int t) {
+        int row = s * n;
+        int count = 0;
+        for (int e = pred.get(row + t); e != -1; e = pred.get(row + graph.tail(e))) count++;
+        int[] edges = new int[count];
+        for (int e = pred.get(row + t); e != -1; e = pred.get(row + graph.tail(e))) edges[--count] = e;
+        return new Route(graph, s, edges, weights);
+    }
+
+    /**
+     * Writes the table to a file through a memory mapping, replacing the file if it exists.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeTo(Path path) throws IOException {
+        long cells = (long) n * n;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 12 * cells);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT).putInt(n).putInt(graph.edgeCount()).putLong(checksum(weights));
+            buffer.asDoubleBuffer().put(dist.duplicate().rewind());
+            buffer.position(HEADER + 8 * (int) cells);
+            buffer.asIntBuffer().put(pred.duplicate().rewind());
+            buffer.force();
+        }
+    }
+
+    /**
+     * Maps a table written by writeTo. Lookups read the mapping directly.
+     *
+     * @param path the file to map
+     * @param graph the graph the table must have been built for
+     * @param weights the weights the table must have been built with
+     * @return the table
+     * @throws IOException if the file cannot be read, or was written for another graph or other weights
+     */
+    public static AllPairsTable load(Path path, RoutingGraph graph, double[] weights) throws IOException {
+        int n = graph.vertexCount();
+        long cells = (long) n * n;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != HEADER + 12 * cells) throw new IOException("Table does not fit this map: " + path);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) throw new IOException("Not an all-pairs table: " + path);
+            if (buffer.getInt() != n || buffer.getInt() != graph.edgeCount() || buffer.getLong() != checksum(weights))
+                throw new IOException("Table was built for another map or traffic: " + path);
+            DoubleBuffer dist = buffer.slice(HEADER, 8 * (int) cells).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            IntBuffer pred = buffer.slice(HEADER + 8 * (int) cells, 4 * (int) cells).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            // the mapping stays valid after the channel is closed
+            return new AllPairsTable(graph, weights, dist, pred);
+        }
+    }
+
+    /**
+     * Maps the table for a map and traffic seed from a directory, computing and writing it first if it
+     * is missing or was built for other traffic.
+     *
+     * @param directory the directory holding the tables
+     * @param mapName the name of the map, such as "Busch"
+     * @param seed the seed the traffic factors were drawn with
+     * @param graph the graph of the map
+     * @param weights the traffic of every edge
+     * @return the table
+     * @throws IOException if the table cannot be written or mapped
+     */
+    public static AllPairsTable loadOrCompute(Path directory, String mapName, long seed, RoutingGraph graph, double[] weights)
+            throws IOException {
+        Path path = directory.resolve(mapName + "-" + seed + ".apt");
+        if (Files.exists(path)) {
+            try {
+                return load(path, graph, weights);
+            } catch (IOException e) {
+                // stale or damaged; rebuild below
+            }
+        }
+        Files.createDirectories(directory);
+        new AllPairsTable(graph, weights).writeTo(path);
+        return load(path, graph, weights);
+    }
+
+    /**
+     * Returns the checksum of a weight array that table and HubLabels files record, so a file is only
+     * loaded for the traffic it was built with.
+     */
+    static long checksum(double[] weights) {
+        long hash = 1125899906842597L;
+        for (double w : weights) hash = 31 * hash + Double.doubleToLongBits(w);
+        return hash;
+    }
+
+    /**
+     * Builds or maps the table of a map and times lookups against fresh searches.
+     * Usage: AllPairsTable mapFile [directory] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 2024;
+        StdRandom.setSeed(seed);
+        RUMaps maps = new RUMaps(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        Path directory = Paths.get(args.length > 1 ? args[1] : ".");
+        String mapName = Paths.get(args[0]).getFileName().toString().replaceFirst("\\.in$", "");
+
+        long begin = System.nanoTime();
+        AllPairsTable table = loadOrCompute(directory, mapName, seed, graph, graph.trafficWeights());
+        long ready = System.nanoTime();
+        Intersection[] intersections = maps.getRutgers().getIntersections();
+        maps.setPathOracle(table);
+        int routes = 0;
+        for (Intersection s : intersections) {
+            for (Intersection t : intersections) routes += maps.fastestPath(s, t).size();
+        }
+        long done = System.nanoTime();
+        StdOut.printf("table ready in %.1f ms; %d lookups (%d intersections) in %.1f ms%n", (ready - begin) / 1e6,
+            intersections.length * intersections.length, routes, (done - ready) / 1e6);
+    }
+}
@@ -0,0 +1,399 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The AlternativeRoutes class finds a few meaningfully different routes between two vertices, to show
+ * next to the fastest one. Unlike KShortestPaths, whose next routes often differ by a single small
+ * detour, every route returned here must pass three filters:
+ * - stretch: it costs at most maxStretch times the fastest route;
+ * - overlap: at most maxOverlap of its length is on blocks already used by a returned route;
+ * - local optimality: around the middle of its detour, the stretch of length alpha times the fastest
+ *   cost is itself a least traffic route, so it makes no pointless zigzags.
+ *
+ * Candidates come from the plateau method first. A forward Dijkstra tree from the start and a backward
+ * one into the end are grown, and every chain of edges that lies on both trees is a plateau; following
+ * the forward tree to the end of a plateau and the backward tree from there gives a route that is
+ * shortest on both sides of the plateau. Long plateaus are tried first. If the plateaus do not yield
+ * enough routes, the penalty method takes over: the traffic of every block on a route found so far is
+ * raised and the search is repeated, pushing it onto other streets.
+ *
+ * No route within the stretch limit passes a vertex whose distance from the start plus its distance to
+ * the end exceeds the limit, so the forward tree stops at the limit and the backward tree and the
+ * repeated searches stay inside that corridor. The repeated searches are A* guided by the backward tree
+ * and stop once they have settled as many vertices as the forward tree holds. The local optimality
+ * check first compares the window against the distances both trees already hold, searching only when
+ * those cannot settle it. An instance is not thread safe: every thread needs its own.
+ */
+public class AlternativeRoutes {
+    public static final double DEFAULT_MAX_STRETCH = 1.4;
+    public static final double DEFAULT_MAX_OVERLAP = 0.6;
+    public static final double DEFAULT_ALPHA = 0.25;
+    // the traffic of a block on a previous route grows by this fraction per route in the penalty method
+    private static final double PENALTY = 0.5;
+    private static final int PENALTY_ROUNDS = 3;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final double maxStretch;
+    private final double maxOverlap;
+    private final double alpha;
+    private final SearchWorkspace forward;
+    private final SearchWorkspace backward;
+    private final SearchWorkspace local;
+    private final long[] used;       // blocks, as both of their edges, on the routes accepted so far
+    private final int[] penalties;   // times the block of each edge was penalized, zero between queries
+    private final int[] seen;        // seen[v] == stamp when v is on the route being built
+    private int stamp;
+
+    /**
+     * Creates a route finder with the default thresholds.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     */
+    public AlternativeRoutes(RoutingGraph graph, double[] weights) {
+        this(graph, weights, DEFAULT_MAX_STRETCH, DEFAULT_MAX_OVERLAP, DEFAULT_ALPHA);
+    }
+
+    /**
+     * Creates a route finder.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     * @param maxStretch the largest cost of a route relative to the fastest one, at least 1
+     * @param maxOverlap the largest fraction of a route's length that may be shared with earlier routes
+     * @param alpha the length of the locally optimal stretch, as a fraction of the fastest cost
+     */
+    public AlternativeRoutes(RoutingGraph graph, double[] weights, double maxStretch, double maxOverlap, double alpha) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (!(maxStretch >= 1)) throw new IllegalArgumentException("Stretch must be at least 1: " + maxStretch);
+        if (!(maxOverlap >= 0 && maxOverlap <= 1)) throw new IllegalArgumentException("Overlap must be in [0, 1]: " + maxOverlap);
+        if (!(alpha >= 0 && alpha <= 1)) throw new IllegalArgumentException("Alpha must be in [0, 1]: " + alpha);
+        this.graph = graph;
+        this.weights = weights;
+        this.maxStretch = maxStretch;
+        this.maxOverlap = maxOverlap;
+        this.alpha = alpha;
+        forward = new SearchWorkspace(graph);
+        backward = new SearchWorkspace(graph);
+        local = new SearchWorkspace(graph);
+        used = new long[(graph.edgeCount() + 63) >>> 6];
+        penalties = new int[graph.edgeCount()];
+        seen = new int[graph.vertexCount()];
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Finds the fastest route from source to target followed by up to count - 1 alternatives.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @param count the most routes to return, including the fastest
+     * @return the routes, the fastest first, or none if target is unreachable or equals source
+     */
+    public ArrayList<Route> find(ClosureMask closures, int source, int target, int count) {
+        if (count <= 0) throw new IllegalArgumentException("Count must be positive: " + count);
+        int n = graph.vertexCount();
+        if (source < 0 || source >= n || target < 0 || target >= n) throw new IllegalArgumentException("Vertex out of range");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        ArrayList<Route> routes = new ArrayList<>();
+        forwardSearch(closures, source, target, count == 1 ? 1 : maxStretch);
+        if (source == target || !forward.isSettled(target)) return routes;
+        Route fastest = Route.fromSearch(graph, forward, source, target, weights);
+        routes.add(fastest);
+        Arrays.fill(used, 0);
+        markUsed(fastest);
+        if (count == 1) return routes;
+
+        double limit = maxStretch * forward.distance(target);
+        backwardSearch(closures, target, limit);
+        for (long plateau : plateaus(limit)) {
+            if (routes.size() == count) break;
+            Route route = viaRoute(source, (int) plateau);
+            if (route != null && accept(closures, route, limit, fastest.getTraffic())) {
+                routes.add(route);
+                markUsed(route);
+            }
+        }
+
+        if (routes.size() < count && hasDetour(closures, limit)) {
+            ArrayList<Route> penalized = new ArrayList<>(routes);
+            for (Route route : routes) penalize(route, 1);
+            // together the repeated searches settle about as many vertices as the forward search did
+            int budget = forward.settledCount();
+            for (int round = 0; round < PENALTY_ROUNDS && routes.size() < count && budget > 0; round++) {
+                if (!penaltySearch(closures, source, target, limit)) break;
+                budget -= local.settledCount();
+                Route route = Route.fromSearch(graph, local, source, target, weights);
+                penalize(route, 1);
+                penalized.add(route);
+                if (accept(closures, route, limit, fastest.getTraffic())) {
+                    routes.add(route);
+                    markUsed(route);
+                }
+            }
+            for (Route route : penalized) penalize(route, -1);
+        }
+        return routes;
+    }
+
+    // Dijkstra from source that, once target is settled, goes on only up to stretch times its distance
+    private void forwardSearch(ClosureMask closures, int source, int target, double stretch) {
+        long[] closed = closures == null ? null : closures.bits();
+        forward.clear();
+        if (closures != null && closures.isVertexClosed(source)) return;
+        forward.reach(source, 0.0, -1);
+        double limit = Double.POSITIVE_INFINITY;
+        while (!forward.isQueueEmpty()) {
+            int v = forward.poll();
+            double dv = forward.distance(v);
+            if (v == target) limit = stretch * dv;
+            if (dv > limit) break;
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (forward.isSettled(w)) continue;
+                double alt = dv + weights[e];
+                if (!forward.isReached(w) || alt < forward.distance(w)) forward.reach(w, alt, e);
+            }
+        }
+    }
+
+    // Dijkstra into target over entering edges; backward.predEdge(v) is then the edge leaving v toward
+    // target. It only enters vertices u with forward.distance(u) plus their distance to target within
+    // limit, the only ones a route within the limit can pass. Every vertex on a least traffic route from
+    // such a vertex to target is one of them too, so their distances are still exact.
+    private void backwardSearch(ClosureMask closures, int target, double limit) {
+        long[] closed = closures == null ? null : closures.bits();
+        backward.clear();
+        if (closures != null && closures.isVertexClosed(target)) return;
+        backward.reach(target, 0.0, -1);
+        while (!backward.isQueueEmpty()) {
+            int v = backward.poll();
+            double dv = backward.distance(v);
+            for (int i = graph.firstInEdge(v), end = graph.endInEdge(v); i < end; i++) {
+                int e = graph.inEdge(i);
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int u = graph.tail(e);
+                if (backward.isSettled(u) || !forward.isSettled(u)) continue;
+                double alt = dv + weights[e];
+                if (forward.distance(u) + alt > limit) continue;
+                if (!backward.isReached(u) || alt < backward.distance(u)) backward.reach(u, alt, e);
+            }
+        }
+    }
+
+    // A* from source to target over the penalized traffic, using the backward tree's distances as the
+    // lower bounds; penalties only raise traffic, so the bounds stay consistent, and since they are exact
+    // for the unpenalized map the search keeps close to the routes that are cheap without penalties.
+    // Returns false if target cannot be reached within the limit.
+    private boolean penaltySearch(ClosureMask closures, int source, int target, double limit) {
+        long[] closed = closures == null ? null : closures.bits();
+        local.clear();
+        local.reach(source, backward.distance(source), -1);
+        while (!local.isQueueEmpty()) {
+            int v = local.poll();
+            if (v == target) return true;
+            double dv = local.distance(v) - backward.distance(v);
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                // a route through a vertex the backward search did not enter is over the limit anyway,
+                // and so is one through an edge too long to fit between the two trees
+                if (local.isSettled(w) || !backward.isSettled(w)) continue;
+                if (forward.distance(v) + weights[e] + backward.distance(w) > limit) continue;
+                double alt = dv + weights[e] * (1 + PENALTY * penalties[e]) + backward.distance(w);
+                if (!local.isReached(w) || alt < local.distance(w)) local.reach(w, alt, e);
+            }
+        }
+        return false;
+    }
+
+    // true if an edge off the accepted routes fits on a route within the limit; a route without one
+    // overlaps them completely, so the penalty method would have nothing to find
+    private boolean hasDetour(ClosureMask closures, double limit) {
+        long[] closed = closures == null ? null : closures.bits();
+        for (int i = 0, settled = backward.settledCount(); i < settled; i++) {
+            int v = backward.settled(i);
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if ((used[e >>> 6] & (1L << e)) != 0) continue;
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (backward.isSettled(w) && forward.distance(v) + weights[e] + backward.distance(w) <= limit) return true;
+            }
+        }
+        return false;
+    }
+
+    // the last vertex of every plateau whose route is within the cost limit, longest plateau first,
+    // as (plateau cost bits << 32 | vertex)
+    private long[] plateaus(double limit) {
+        IntList ends = new IntList();
+        for (int i = 0, settled = forward.settledCount(); i < settled; i++) {
+            int v = forward.settled(i);
+            if (!backward.isSettled(v) || !onPlateau(forward.predEdge(v))) continue;
+            // v ends a plateau if the edge leaving it toward the target is not on one
+            if (onPlateau(backward.predEdge(v))) continue;
+            if (forward.distance(v) + backward.distance(v) <= limit) ends.add(v);
+        }
+        long[] keys = new long[ends.size];
+        for (int k = 0; k < ends.size; k++) {
+            int b = ends.items[k];
+            int a = b;
+            while (onPlateau(forward.predEdge(a))) a = graph.tail(forward.predEdge(a));
+            float cost = (float) (forward.distance(b) - forward.distance(a));
+            keys[k] = ((long) Float.floatToIntBits(cost) << 32) | b;
+        }
+        Arrays.sort(keys);
+        for (int i = 0, j = keys.length - 1; i < j; i++, j--) {
+            long swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        return keys;
+    }
+
+    // true if e is on both the forward and the backward tree
+    private boolean onPlateau(int e) {
+        if (e == -1) return false;
+        int u = graph.tail(e), v = graph.head(e);
+        return forward.isSettled(v) && forward.predEdge(v) == e && backward.isSettled(u) && backward.predEdge(u) == e;
+    }
+
+    // the route through the forward tree to via and the backward tree from it, or null if it repeats a
+    // vertex or overlaps the accepted routes too much; most plateaus fail here, before a Route is built
+    private Route viaRoute(int source, int via) {
+        stamp++;
+        int count = 0;
+        double length = 0, shared = 0;
+        for (int v = via; v != source; v = graph.tail(forward.predEdge(v))) {
+            seen[v] = stamp;
+            count++;
+            int e = forward.predEdge(v);
+            length += graph.length(e);
+            if ((used[e >>> 6] & (1L << e)) != 0) shared += graph.length(e);
+        }
+        seen[source] = stamp;
+        int prefix = count;
+        for (int e = backward.predEdge(via); e != -1; e = backward.predEdge(graph.head(e))) {
+            if (seen[graph.head(e)] == stamp) return null;
+            seen[graph.head(e)] = stamp;
+            count++;
+            length += graph.length(e);
+            if ((used[e >>> 6] & (1L << e)) != 0) shared += graph.length(e);
+        }
+        if (shared > maxOverlap * length) return null;
+        int[] edges = new int[count];
+        int k = prefix;
+        for (int v = via; v != source; v = graph.tail(forward.predEdge(v))) edges[--k] = forward.predEdge(v);
+        k = prefix;
+        for (int e = backward.predEdge(via); e != -1; e = backward.predEdge(graph.head(e))) edges[k++] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    private boolean accept(ClosureMask closures, Route route, double limit, double optimal) {
+        if (route.isEmpty() || route.getTraffic() > limit) return false;
+        double shared = 0;
+        for (int i = 0; i < route.edgeCount(); i++) {
+            int e = route.getEdge(i);
+            if ((used[e >>> 6] & (1L << e)) != 0) shared += graph.length(e);
+        }
+        if (shared > maxOverlap * route.getLength()) return false;
+        return locallyOptimal(closures, route, alpha * optimal);
+    }
+
+    // checks that the window of cost window around the middle of the route's longest new stretch is a least traffic route
+    private boolean locallyOptimal(ClosureMask closures, Route route, double window) {
+        int edges = route.edgeCount();
+        double[] prefix = new double[edges + 1];
+        for (int i = 0; i < edges; i++) prefix[i + 1] = prefix[i] + weights[route.getEdge(i)];
+
+        int bestFrom = -1, bestTo = -1;
+        for (int i = 0; i < edges; ) {
+            int e = route.getEdge(i);
+            if ((used[e >>> 6] & (1L << e)) != 0) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < edges && (used[route.getEdge(j) >>> 6] & (1L << route.getEdge(j))) == 0) j++;
+            if (bestFrom < 0 || prefix[j] - prefix[i] > prefix[bestTo] - prefix[bestFrom]) {
+                bestFrom = i;
+                bestTo = j;
+            }
+            i = j;
+        }
+        if (bestFrom < 0) return true;
+        double middle = (prefix[bestFrom] + prefix[bestTo]) / 2;
+        int via = bestFrom;
+        while (via < bestTo && prefix[via] < middle) via++;
+        int from = via, to = via;
+        while (from > 0 && prefix[via] - prefix[from] < window / 2) from--;
+        while (to < edges && prefix[to] - prefix[via] < window / 2) to++;
+        if (from == to) return true;
+
+        int a = route.getVertex(from), b = route.getVertex(to);
+        double own = prefix[to] - prefix[from];
+        double tolerance = 1e-9 * Math.max(1, own);
+        // both trees hold exact distances from the source and to the target, so by the triangle inequality
+        // the least traffic from a to b is at least the difference of either pair; when one of them already
+        // reaches the window's own cost, the window is a least traffic route and no search is needed
+        double bound = Math.max(forward.distance(b) - forward.distance(a), backward.distance(a) - backward.distance(b));
+        if (bound >= own - tolerance) return true;
+        return local.dijkstra(graph, weights, closures, a, b) >= own - tolerance;
+    }
+
+    private void markUsed(Route route) {
+        for (int i = 0; i < route.edgeCount(); i++) {
+            int e = route.getEdge(i);
+            used[e >>> 6] |= 1L << e;
+            int r = graph.reverse(e);
+            if (r != -1) used[r >>> 6] |= 1L << r;
+        }
+    }
+
+    // adds delta to the penalty count of both edges of every block on the route
+    private void penalize(Route route, int delta) {
+        for (int i = 0; i < route.edgeCount(); i++) {
+            int e = route.getEdge(i);
+            penalties[e] += delta;
+            int r = graph.reverse(e);
+            if (r != -1) penalties[r] += delta;
+        }
+    }
+
+    /**
+     * Finds alternatives between random pairs of a map and reports how many were found and the time
+     * per query, next to the time of one Dijkstra search.
+     * Usage: AlternativeRoutes mapFile [count] [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        AlternativeRoutes alternatives = new AlternativeRoutes(graph, weights);
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        long[] elapsed = Benchmark.time(
+            () -> { for (int q = 0; q < queries; q++) alternatives.find(null, sources[q], targets[q], count); },
+            () -> { for (int q = 0; q < queries; q++) workspace.dijkstra(graph, weights, sources[q], -1); });
+        int[] found = new int[count + 1];
+        for (int q = 0; q < queries; q++) found[alternatives.find(null, sources[q], targets[q], count).size()]++;
+        StdOut.printf("%.1f us per query, %.1f us per full Dijkstra search%n", elapsed[0] / 1e3 / queries,
+            elapsed[1] / 1e3 / queries);
+        for (int k = 0; k <= count; k++) StdOut.printf("%d routes: %d queries%n", k, found[k]);
+    }
+}
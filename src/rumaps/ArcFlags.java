@@ -0,0 +1,241 @@
+package rumaps;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The ArcFlags class answers least traffic queries with a Dijkstra search that only follows edges
+ * leading toward the region of the target.
+ *
+ * The intersections are divided into at most 64 regions by a single level Partition, and every edge
+ * carries one flag bit per region, set if the edge lies on a least traffic route into that region.
+ * The flags of region r come from one Dijkstra search backward from every boundary intersection of r,
+ * one with a block coming in from another region: every edge on a least traffic route to that
+ * intersection gets bit r, and so does every edge inside r. A route into r enters it through some
+ * boundary intersection, so pruning never loses the least traffic; edges that are tight to within a
+ * relative 1e-9 are flagged as well, so rounding cannot drop one either. Regions are independent, so
+ * their searches run in parallel, each worker thread reusing its own workspace.
+ *
+ * A query is Dijkstra's algorithm from s that skips every edge whose bit for the region of t is off.
+ * Near the target nearly every edge carries the bit, but far from it only the edges heading toward it
+ * do, so long routes settle a small part of the map. Used as a PathOracle, it returns least traffic
+ * routes, which may differ from the ones RUMaps.fastestPath finds when two routes cost exactly the
+ * same. The flags hold for the weights they were computed with and closures are not supported, since
+ * closing a flagged edge could leave only unflagged detours.
+ */
+public class ArcFlags implements PathOracle {
+    private static final double TOLERANCE = 1e-9;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final Partition partition;
+    private final long[] flags;     // bit r of flags[e] is set if e is on a least traffic route into region r
+    private final ThreadLocal<SearchWorkspace> workspaces;
+
+    /**
+     * Computes flags for a graph divided into one region per 16 intersections, at most 64.
+     *
+     * @param graph the graph
+     * @param weights the traffic of every edge; the array is copied
+     */
+    public ArcFlags(RoutingGraph graph, double[] weights) {
+        this(new Partition(graph, Math.min(64, Math.max(1, graph.vertexCount() / 16))), weights);
+    }
+
+    /**
+     * Computes flags for the regions of level 0 of a partition.
+     *
+     * @param partition the regions; level 0 must have at most 64 cells
+     * @param weights the traffic of every edge; the array is copied
+     */
+    public ArcFlags(Partition partition, double[] weights) {
+        RoutingGraph graph = partition.getGraph();
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (partition.cellCount(0) > 64) throw new IllegalArgumentException("At most 64 regions are supported");
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.partition = partition;
+        this.flags = new long[graph.edgeCount()];
+        this.workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+
+        int regions = partition.cellCount(0);
+        BitSet[] flagged = new BitSet[regions];
+        IntStream.range(0, regions).parallel().forEach(r -> flagged[r] = flagRegion(r));
+        for (int r = 0; r < regions; r++) {
+            BitSet edges = flagged[r];
+            for (int e = edges.nextSetBit(0); e >= 0; e = edges.nextSetBit(e + 1)) flags[e] |= 1L << r;
+        }
+    }
+
+    /**
+     * Returns the edges on least traffic routes into region r.
+     */
+    private BitSet flagRegion(int r) {
+        BitSet edges = new BitSet(graph.edgeCount());
+        SearchWorkspace workspace = workspaces.get();
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            if (partition.cell(0, v) != r) continue;
+            boolean boundary = false;
+            for (int i = graph.firstInEdge(v), end = graph.endInEdge(v); i < end; i++) {
+                int e = graph.inEdge(i);
+                if (partition.cell(0, graph.tail(e)) == r) edges.set(e);
+                else boundary = true;
+            }
+            if (boundary) searchBackward(workspace, v, edges);
+        }
+        return edges;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm backward from b over the whole graph and adds every edge that is
+     * tight for the resulting distances to b, within the tolerance.
+     */
+    private void searchBackward(SearchWorkspace workspace, int b, BitSet edges) {
+        workspace.clear();
+        workspace.reach(b, 0.0, -1);
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            double dv = workspace.distance(v);
+            for (int i = graph.firstInEdge(v), end = graph.endInEdge(v); i < end; i++) {
+                int e = graph.inEdge(i);
+                int u = graph.tail(e);
+                if (workspace.isSettled(u)) continue;
+                double alt = dv + weights[e];
+                if (!workspace.isReached(u) || alt < workspace.distance(u)) workspace.reach(u, alt, e);
+            }
+        }
+        for (int i = 0; i < workspace.settledCount(); i++) {
+            int u = workspace.settled(i);
+            double du = workspace.distance(u);
+            if (du == Double.POSITIVE_INFINITY) continue;
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                int w = graph.head(e);
+                if (workspace.isSettled(w) && workspace.distance(w) + weights[e] <= du * (1 + TOLERANCE)) edges.set(e);
+            }
+        }
+    }
+
+    /**
+     * Runs the pruned search from s until t is settled.
+     */
+    private SearchWorkspace search(int s, int t) {
+        SearchWorkspace workspace = workspaces.get();
+        workspace.clear();
+        long bit = 1L << partition.cell(0, t);
+        workspace.reach(s, 0.0, -1);
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            if (v == t) break;
+            double dv = workspace.distance(v);
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if ((flags[e] & bit) == 0) continue;
+                int w = graph.head(e);
+                if (workspace.isSettled(w)) continue;
+                double alt = dv + weights[e];
+                if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, e);
+            }
+        }
+        return workspace;
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public Partition getPartition() {
+        return partition;
+    }
+
+    /**
+     * Returns true if edge e lies on a least traffic route into a region.
+     */
+    public boolean isFlagged(int e, int region) {
+        return (flags[e] >>> region & 1) != 0;
+    }
+
+    /**
+     * Returns the average number of regions an edge is flagged for; the lower, the more a query
+     * prunes.
+     */
+    public double meanFlagCount() {
+        long count = 0;
+        for (long f : flags) count += Long.bitCount(f);
+        return flags.length == 0 ? 0 : (double) count / flags.length;
+    }
+
+    /**
+     * Returns the least traffic from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the traffic, or infinity if t is unreachable
+     */
+    @Override
+    public double distance(int s, int t) {
+        SearchWorkspace workspace = search(s, t);
+        return workspace.isSettled(t) ? workspace.distance(t) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns a least traffic route from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the route, which has no edges if t is unreachable or equals s
+     */
+    @Override
+    public Route route(int s, int t) {
+        SearchWorkspace workspace = search(s, t);
+        if (!workspace.isSettled(t)) return new Route(graph, s, new int[0], weights);
+        int count = 0;
+        for (int e = workspace.predEdge(t); e != -1; e = workspace.predEdge(graph.tail(e))) count++;
+        int[] edges = new int[count];
+        for (int e = workspace.predEdge(t); e != -1; e = workspace.predEdge(graph.tail(e))) edges[--count] = e;
+        return new Route(graph, s, edges, weights);
+    }
+
+    /**
+     * Returns the number of vertices the last query of this thread settled.
+     */
+    public int settledCount() {
+        return workspaces.get().settledCount();
+    }
+
+    /**
+     * Computes the flags of a map and compares queries against plain Dijkstra.
+     * Usage: ArcFlags mapFile [regions] [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        int n = graph.vertexCount();
+        int regions = args.length > 1 ? Integer.parseInt(args[1]) : Math.min(64, Math.max(1, n / 16));
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        long begin = System.nanoTime();
+        ArcFlags arcFlags = new ArcFlags(new Partition(graph, regions), weights);
+        long elapsed = System.nanoTime() - begin;
+        StdOut.printf("%d regions, flags computed in %.1f ms, %.2f flags per edge%n", regions, elapsed / 1e6, arcFlags.meanFlagCount());
+
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        long[] times = Benchmark.time(
+            () -> { for (int i = 0; i < queries; i++) arcFlags.distance(sources[i], targets[i]); },
+            () -> { for (int i = 0; i < queries; i++) workspace.dijkstra(graph, weights, sources[i], targets[i]); });
+        long flagSettled = 0, dijkstraSettled = 0;
+        int mismatches = 0;
+        for (int i = 0; i < queries; i++) {
+            double d = arcFlags.distance(sources[i], targets[i]);
+            double expected = workspace.dijkstra(graph, weights, sources[i], targets[i]);
+            flagSettled += arcFlags.settledCount();
+            dijkstraSettled += workspace.settledCount();
+            if (Math.abs(d - expected) > 1e-6 * Math.max(1, expected)) mismatches++;
+        }
+        StdOut.printf("settled per query: %.1f with flags, %.1f with Dijkstra%n", (double) flagSettled / queries, (double) dijkstraSettled / queries);
+        StdOut.printf("%.2f us per query with flags, %.2f us with Dijkstra%n", times[0] / 1e3 / queries, times[1] / 1e3 / queries);
+        if (mismatches > 0) throw new IllegalStateException(mismatches + " of " + queries + " distances differ from Dijkstra's");
+    }
+}
@@ -0,0 +1,125 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The BatchResult class is the table of answers produced by a BatchRouter, one row per
+ * (start, end) pair in the order the pairs were given.
+ *
+ * Every column is a primitive array, so a table for millions of pairs holds no per-row objects.
+ * Paths are only kept if they were asked for, as one flat array of edge ids with an offset per row.
+ */
+public class BatchResult {
+    private final RoutingGraph graph;
+    private final RouteMetric metric;
+    private final int[] sources;
+    private final int[] targets;
+    private final double[] cost;
+    private final double[] length;
+    private final double[] traffic;
+    private final int[] hops;
+    private final int[] pathOffsets;
+    private final int[] pathEdges;
+
+    BatchResult(RoutingGraph graph, RouteMetric metric, int[] sources, int[] targets, double[] cost, double[] length,
+                double[] traffic, int[] hops, int[] pathOffsets, int[] pathEdges) {
+        this.graph = graph;
+        this.metric = metric;
+        this.sources = sources;
+        this.targets = targets;
+        this.cost = cost;
+        this.length = length;
+        this.traffic = traffic;
+        this.hops = hops;
+        this.pathOffsets = pathOffsets;
+        this.pathEdges = pathEdges;
+    }
+
+    public RouteMetric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the number of pairs.
+     */
+    public int size() {
+        return sources.length;
+    }
+
+    public int source(int i) {
+        return sources[i];
+    }
+
+    public int target(int i) {
+        return targets[i];
+    }
+
+    /**
+     * Returns true if the end of pair i can be reached from its start. A pair whose start and end
+     * are the same vertex is reachable with no edges.
+     */
+    public boolean isReachable(int i) {
+        return hops[i] >= 0;
+    }
+
+    /**
+     * Returns the value of the metric for pair i: the total traffic for TRAFFIC, the number of blocks
+     * for INTERSECTIONS, or infinity if the end is unreachable.
+     */
+    public double cost(int i) {
+        return cost[i];
+    }
+
+    /**
+     * Returns the total length of the route of pair i, or infinity if the end is unreachable.
+     */
+    public double length(int i) {
+        return length[i];
+    }
+
+    /**
+     * Returns the total traffic of the route of pair i, or infinity if the end is unreachable.
+     */
+    public double traffic(int i) {
+        return traffic[i];
+    }
+
+    /**
+     * Returns the number of blocks on the route of pair i, or -1 if the end is unreachable.
+     */
+    public int hops(int i) {
+        return hops[i];
+    }
+
+    public boolean hasPaths() {
+        return pathOffsets != null;
+    }
+
+    /**
+     * Returns the edge ids of the route of pair i.
+     *
+     * @param i the row
+     * @return a new array of edge ids, empty if the end is unreachable or equals the start
+     * @throws IllegalStateException if the paths were not kept
+     */
+    public int[] pathEdges(int i) {
+        if (pathOffsets == null) throw new IllegalStateException("Paths were not kept");
+        return Arrays.copyOfRange(pathEdges, pathOffsets[i], pathOffsets[i + 1]);
+    }
+
+    /**
+     * Returns the intersections of the route of pair i, in the same form as RUMaps.fastestPath.
+     *
+     * @param i the row
+     * @return the intersections in order, or an empty list if the end is unreachable or equals the start
+     * @throws IllegalStateException if the paths were not kept
+     */
+    public ArrayList<Intersection> path(int i) {
+        if (pathOffsets == null) throw new IllegalStateException("Paths were not kept");
+        ArrayList<Intersection> path = new ArrayList<>();
+        if (pathOffsets[i] == pathOffsets[i + 1]) return path;
+        path.add(graph.intersection(sources[i]));
+        for (int k = pathOffsets[i]; k < pathOffsets[i + 1]; k++) path.add(graph.intersection(graph.head(pathEdges[k])));
+        return path;
+    }
+}
@@ -0,0 +1,265 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The BatchRouter class answers many (start, end) pairs at once.
+ *
+ * Pairs are grouped by start with a counting sort, so each distinct start is searched once: a
+ * Dijkstra search that stops when all of the group's ends are settled for TRAFFIC, or a breadth-first
+ * search for INTERSECTIONS. The groups are split recursively over a ForkJoinPool, and each worker
+ * thread keeps its own SearchWorkspace, so no search allocates or locks. Every task writes only the
+ * rows of its own pairs.
+ *
+ * The routes found are the ones RUMaps.fastestPath and RUMaps.minimizeIntersections return.
+ */
+public class BatchRouter {
+    // aim for this many tasks per worker so uneven groups still balance
+    private static final int TASKS_PER_WORKER = 8;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final ClosureMask closures;
+    private final ThreadLocal<SearchWorkspace> workspaces;
+
+    /**
+     * Creates a router over a graph with everything open.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     */
+    public BatchRouter(RoutingGraph graph, double[] weights) {
+        this(graph, weights, null);
+    }
+
+    /**
+     * Creates a router.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     * @param closures the closed blocks and intersections, or null if everything is open
+     */
+    public BatchRouter(RoutingGraph graph, double[] weights, ClosureMask closures) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        this.graph = graph;
+        this.weights = weights;
+        this.closures = closures;
+        this.workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+    }
+
+    /**
+     * Creates a router over one version of a versioned network. The version must stay pinned while
+     * the router is in use.
+     *
+     * @param version the pinned version
+     */
+    public BatchRouter(NetworkVersion version) {
+        this(version.getGraph(), version.getWeights(), version.getClosures());
+    }
+
+    /**
+     * Routes every pair on the common fork-join pool.
+     *
+     * @param sources the start vertex of every pair; -1 marks an unknown start
+     * @param targets the end vertex of every pair; -1 marks an unknown end
+     * @param metric what the routes minimize
+     * @param keepPaths whether to keep the edges of every route
+     * @return the table of results, in the order of the pairs
+     */
+    public BatchResult route(int[] sources, int[] targets, RouteMetric metric, boolean keepPaths) {
+        return route(sources, targets, metric, keepPaths, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Routes every pair on the given fork-join pool.
+     *
+     * @param sources the start vertex of every pair; -1 marks an unknown start
+     * @param targets the end vertex of every pair; -1 marks an unknown end
+     * @param metric what the routes minimize
+     * @param keepPaths whether to keep the edges of every route
+     * @param pool the pool to run the searches on
+     * @return the table of results, in the order of the pairs
+     */
+    public BatchResult route(int[] sources, int[] targets, RouteMetric metric, boolean keepPaths, ForkJoinPool pool) {
+        if (sources.length != targets.length) throw new IllegalArgumentException("Expected as many targets as sources");
+        int n = graph.vertexCount();
+        int pairs = sources.length;
+        for (int i = 0; i < pairs; i++) {
+            if (sources[i] < -1 || sources[i] >= n || targets[i] < -1 || targets[i] >= n)
+                throw new IllegalArgumentException("Vertex out of range in pair " + i);
+        }
+
+        // counting sort of the pairs with a known start and end, by start
+        int[] groupStart = new int[n + 1];
+        for (int i = 0; i < pairs; i++) {
+            if (sources[i] >= 0 && targets[i] >= 0) groupStart[sources[i] + 1]++;
+        }
+        for (int v = 0; v < n; v++) groupStart[v + 1] += groupStart[v];
+        int known = groupStart[n];
+        int[] order = new int[known];
+        int[] sortedTargets = new int[known];
+        int[] fill = Arrays.copyOf(groupStart, n);
+        for (int i = 0; i < pairs; i++) {
+            if (sources[i] < 0 || targets[i] < 0) continue;
+            int k = fill[sources[i]]++;
+            order[k] = i;
+            sortedTargets[k] = targets[i];
+        }
+        int[] groups = new int[n];
+        int groupCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (groupStart[v + 1] > groupStart[v]) groups[groupCount++] = v;
+        }
+
+        Batch batch = new Batch(metric, sources.clone(), targets.clone(), groupStart, groups, order, sortedTargets, keepPaths);
+        int threshold = Math.max(1, groupCount / (pool.getParallelism() * TASKS_PER_WORKER));
+        pool.invoke(new GroupTask(batch, 0, groupCount, threshold));
+        return batch.toResult();
+    }
+
+    // the inputs and output columns shared by every task of one call
+    private class Batch {
+        final RouteMetric metric;
+        final int[] sources;
+        final int[] targets;
+        final int[] groupStart;
+        final int[] groups;
+        final int[] order;
+        final int[] sortedTargets;
+        final double[] cost;
+        final double[] length;
+        final double[] traffic;
+        final int[] hops;
+        final int[][] paths;
+
+        Batch(RouteMetric metric, int[] sources, int[] targets, int[] groupStart, int[] groups, int[] order,
+              int[] sortedTargets, boolean keepPaths) {
+            this.metric = metric;
+            this.sources = sources;
+            this.targets = targets;
+            this.groupStart = groupStart;
+            this.groups = groups;
+            this.order = order;
+            this.sortedTargets = sortedTargets;
+            int pairs = sources.length;
+            cost = new double[pairs];
+            length = new double[pairs];
+            traffic = new double[pairs];
+            hops = new int[pairs];
+            paths = keepPaths ? new int[pairs][] : null;
+            Arrays.fill(cost, Double.POSITIVE_INFINITY);
+            Arrays.fill(length, Double.POSITIVE_INFINITY);
+            Arrays.fill(traffic, Double.POSITIVE_INFINITY);
+            Arrays.fill(hops, -1);
+        }
+
+        void search(int source, SearchWorkspace workspace) {
+            int from = groupStart[source], to = groupStart[source + 1];
+            if (metric == RouteMetric.TRAFFIC) {
+                workspace.dijkstra(graph, weights, closures, source, sortedTargets, from, to);
+            } else {
+                workspace.bfs(graph, closures, source, to - from == 1 ? sortedTargets[from] : -1);
+            }
+            for (int k = from; k < to; k++) {
+                int pair = order[k];
+                int target = sortedTargets[k];
+                if (!workspace.isReached(target)) continue;
+                int count = 0;
+                double len = 0, traf = 0;
+                for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) {
+                    count++;
+                    len += graph.length(e);
+                    traf += weights[e];
+                }
+                hops[pair] = count;
+                length[pair] = len;
+                traffic[pair] = traf;
+                cost[pair] = metric == RouteMetric.TRAFFIC ? workspace.distance(target) : count;
+                if (paths != null) {
+                    int[] edges = new int[count];
+                    for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) edges[--count] = e;
+                    paths[pair] = edges;
+                }
+            }
+        }
+
+        BatchResult toResult() {
+            int[] offsets = null, edges = null;
+            if (paths != null) {
+                offsets = new int[paths.length + 1];
+                for (int i = 0; i < paths.length; i++) offsets[i + 1] = offsets[i] + (paths[i] == null ? 0 : paths[i].length);
+                edges = new int[offsets[paths.length]];
+                for (int i = 0; i < paths.length; i++) {
+                    if (paths[i] != null) System.arraycopy(paths[i], 0, edges, offsets[i], paths[i].length);
+                }
+            }
+            return new BatchResult(graph, metric, sources, targets, cost, length, traffic, hops, offsets, edges);
+        }
+    }
+
+    private class GroupTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Batch batch;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        GroupTask(Batch batch, int from, int to, int threshold) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                SearchWorkspace workspace = workspaces.get();
+                for (int g = from; g < to; g++) batch.search(batch.groups[g], workspace);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new GroupTask(batch, from, mid, threshold), new GroupTask(batch, mid, to, threshold));
+        }
+    }
+
+    /**
+     * Routes random pairs of a map and reports the throughput.
+     * Usage: BatchRouter mapFile [pairs] [threads] [seed]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = new RUMaps(args[0]);
+        int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 2024;
+
+        RoutingGraph graph = maps.getRoutingGraph();
+        StdRandom.setSeed(seed);
+        int[] sources = new int[pairs];
+        int[] targets = new int[pairs];
+        for (int i = 0; i < pairs; i++) {
+            sources[i] = StdRandom.uniformInt(graph.vertexCount());
+            targets[i] = StdRandom.uniformInt(graph.vertexCount());
+        }
+
+        BatchRouter router = new BatchRouter(graph, graph.trafficWeights());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (RouteMetric metric : RouteMetric.values()) {
+                long begin = System.nanoTime();
+                BatchResult result = router.route(sources, targets, metric, false, pool);
+                long elapsed = System.nanoTime() - begin;
+                int reachable = 0;
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.isReachable(i)) reachable++;
+                }
+                StdOut.printf("%s: %d pairs (%d reachable) on %d threads in %.1f ms, %.0f pairs/s%n", metric, pairs,
+                    reachable, threads, elapsed / 1e6, pairs / (elapsed / 1e9));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package rumaps;
+
+/**
+ * The Benchmark class holds the setup the timing mains of the routing engines share.
+ *
+ * The traffic factor of every block is drawn from StdRandom while a map loads, so load seeds
+ * StdRandom before reading the map: every run of a main then sees the same traffic and draws the same
+ * queries. The queries are drawn with randomVertices or randomPairs, and time runs the searches being
+ * compared in turn WARMUP_PASSES times before the pass it measures, so that none of them is timed
+ * before the JIT has compiled it.
+ */
+public class Benchmark {
+    /**
+     * The seed StdRandom is started with.
+     */
+    public static final long SEED = 2024;
+    /**
+     * The number of passes run before the one that is timed.
+     */
+    public static final int WARMUP_PASSES = 3;
+
+    private Benchmark() { }
+
+    /**
+     * Seeds StdRandom and loads a map.
+     *
+     * @param mapFile the map input file
+     * @return the loaded map
+     */
+    public static RUMaps load(String mapFile) {
+        StdRandom.setSeed(SEED);
+        return new RUMaps(mapFile);
+    }
+
+    /**
+     * Draws vertices uniformly at random.
+     *
+     * @param graph the graph to draw from
+     * @param count the number of vertices
+     * @return the vertices
+     */
+    public static int[] randomVertices(RoutingGraph graph, int count) {
+        int[] vertices = new int[count];
+        for (int i = 0; i < count; i++) vertices[i] = StdRandom.uniformInt(graph.vertexCount());
+        return vertices;
+    }
+
+    /**
+     * Draws (source, target) pairs uniformly at random, one pair after the other.
+     *
+     * @param graph the graph to draw from
+     * @param count the number of pairs
+     * @return the sources in row 0 and the targets in row 1
+     */
+    public static int[][] randomPairs(RoutingGraph graph, int count) {
+        int[][] pairs = new int[2][count];
+        for (int i = 0; i < count; i++) {
+            pairs[0][i] = StdRandom.uniformInt(graph.vertexCount());
+            pairs[1][i] = StdRandom.uniformInt(graph.vertexCount());
+        }
+        return pairs;
+    }
+
+    /**
+     * Runs every task in turn, WARMUP_PASSES times and then once more.
+     *
+     * @param tasks the work to time, each usually a loop over the queries
+     * @return the nanoseconds each task took in the last pass
+     */
+    public static long[] time(Runnable... tasks) {
+        long[] elapsed = new long[tasks.length];
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            for (int k = 0; k < tasks.length; k++) {
+                long begin = System.nanoTime();
+                tasks[k].run();
+                elapsed[k] = System.nanoTime() - begin;
+            }
+        }
+        return elapsed;
+    }
+}
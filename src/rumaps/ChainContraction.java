@@ -0,0 +1,401 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The ChainContraction class routes on a reduced graph in which every road between two real
+ * intersections is a single compound edge, skipping the shape points along it.
+ *
+ * A shape point is an intersection that only continues a road: one with blocks to and from exactly
+ * two other intersections, or a one-way road with one block in and one out. Maximal chains of shape
+ * points are collapsed into compound edges between the remaining core intersections, with the summed
+ * traffic and length of their blocks, and every compound edge keeps the positions of its blocks in
+ * order so it can be expanded back into Blocks and Intersections. A ring made only of shape points
+ * keeps one of them as a core intersection.
+ *
+ * A query is Dijkstra's algorithm over the core. A start on a chain enters the core at the ends of
+ * its chain; an end on a chain is reached from the starts of the chains through it, and the search
+ * stops once no core intersection can lead to a cheaper route. Routes are expanded into the blocks of
+ * the original graph, so they are the paths RUMaps.fastestPath returns except when two routes cost
+ * the same to within rounding, since a compound edge adds up its traffic before the search does.
+ * The weights are fixed when the contraction is built, so closures are not supported.
+ */
+public class ChainContraction implements PathOracle {
+    private final RoutingGraph graph;
+    private final double[] weights;
+
+    // compound edges leaving core vertex v are firstCompound[v] .. firstCompound[v + 1] - 1; none leave shape points
+    private final int[] firstCompound;
+    private final int[] compoundTail;
+    private final int[] compoundHead;
+    private final double[] compoundWeight;
+    private final double[] compoundLength;
+    // the blocks of compound edge c are chainEdges[edgeFirst[c] .. edgeFirst[c + 1] - 1], in order
+    private final int[] edgeFirst;
+    private final int[] chainEdges;
+    // a shape point v lies on the compound edges chainOf[2v] and chainOf[2v + 1], the second -1 on a
+    // one-way road, entered by the blocks at chainPos[2v] and chainPos[2v + 1]; both are -1 for core vertices
+    private final int[] chainOf;
+    private final int[] chainPos;
+    private final int coreCount;
+    private final ThreadLocal<Query> queries;
+
+    /**
+     * The workspace of one query and how its best route ends.
+     */
+    private static final class Query {
+        final SearchWorkspace workspace;
+        double best;
+        int bestVertex;     // the core vertex the best route leaves the core at, or -1 if it never enters it
+        int bestFrom;       // chainEdges[bestFrom .. bestTo - 1] lead from there, or from s, to t
+        int bestTo;
+
+        Query(int n) {
+            workspace = new SearchWorkspace(n);
+        }
+    }
+
+    /**
+     * Contracts the chains of a graph.
+     *
+     * @param graph the graph
+     * @param weights the traffic of every edge; the array is copied
+     */
+    public ChainContraction(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        this.graph = graph;
+        this.weights = weights.clone();
+        int n = graph.vertexCount();
+
+        boolean[] core = new boolean[n];
+        for (int v = 0; v < n; v++) core[v] = !isShapePoint(v);
+        // walk every chain from the core; shape points left over form rings, which keep one core vertex each
+        boolean[] covered = new boolean[n];
+        for (int u = 0; u < n; u++) {
+            if (!core[u]) continue;
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                for (int w = graph.head(e), f = e; !core[w]; f = next(f), w = graph.head(f)) covered[w] = true;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (core[v] || covered[v]) continue;
+            core[v] = true;
+            int f = graph.firstEdge(v);
+            for (int w = graph.head(f); w != v; f = next(f), w = graph.head(f)) covered[w] = true;
+        }
+
+        IntList tails = new IntList();
+        IntList positions = new IntList();
+        IntList edges = new IntList();
+        firstCompound = new int[n + 1];
+        int cores = 0;
+        for (int u = 0; u < n; u++) {
+            firstCompound[u] = tails.size;
+            if (!core[u]) continue;
+            cores++;
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                tails.add(u);
+                positions.add(edges.size);
+                edges.add(e);
+                for (int f = e; !core[graph.head(f)]; ) {
+                    f = next(f);
+                    edges.add(f);
+                }
+            }
+        }
+        int compounds = tails.size;
+        firstCompound[n] = compounds;
+        positions.add(edges.size);
+        coreCount = cores;
+        compoundTail = tails.toArray();
+        edgeFirst = positions.toArray();
+        chainEdges = edges.toArray();
+
+        compoundHead = new int[compounds];
+        compoundWeight = new double[compounds];
+        compoundLength = new double[compounds];
+        chainOf = new int[2 * n];
+        chainPos = new int[2 * n];
+        Arrays.fill(chainOf, -1);
+        Arrays.fill(chainPos, -1);
+        for (int c = 0; c < compounds; c++) {
+            int last = edgeFirst[c + 1] - 1;
+            double weight = 0, length = 0;
+            for (int p = edgeFirst[c]; p <= last; p++) {
+                int e = chainEdges[p];
+                weight += this.weights[e];
+                length += graph.length(e);
+                if (p < last) {
+                    int slot = chainOf[2 * graph.head(e)] == -1 ? 2 * graph.head(e) : 2 * graph.head(e) + 1;
+                    chainOf[slot] = c;
+                    chainPos[slot] = p;
+                }
+            }
+            compoundHead[c] = graph.head(chainEdges[last]);
+            compoundWeight[c] = weight;
+            compoundLength[c] = length;
+        }
+        this.queries = ThreadLocal.withInitial(() -> new Query(n));
+    }
+
+    /**
+     * Returns true if v only continues a road: it has blocks to and from two other intersections and
+     * no others, or one block in from one and one block out to another.
+     */
+    private boolean isShapePoint(int v) {
+        int in = graph.endInEdge(v) - graph.firstInEdge(v);
+        int out = graph.degree(v);
+        if (out == 1 && in == 1) {
+            int a = graph.tail(graph.inEdge(graph.firstInEdge(v)));
+            int b = graph.head(graph.firstEdge(v));
+            return a != v && b != v && a != b;
+        }
+        if (out != 2 || in != 2) return false;
+        int a = graph.head(graph.firstEdge(v)), b = graph.head(graph.firstEdge(v) + 1);
+        int x = graph.tail(graph.inEdge(graph.firstInEdge(v))), y = graph.tail(graph.inEdge(graph.firstInEdge(v) + 1));
+        return a != v && b != v && a != b && (a == x && b == y || a == y && b == x);
+    }
+
+    /**
+     * Returns the edge that continues a chain past the shape point edge e enters.
+     */
+    private int next(int e) {
+        int w = graph.head(e);
+        int f = graph.firstEdge(w);
+        return graph.degree(w) == 1 || graph.head(f) != graph.tail(e) ? f : f + 1;
+    }
+
+    // the traffic of chainEdges[from .. to - 1], added up in route order
+    private double weight(double start, int from, int to) {
+        double sum = start;
+        for (int p = from; p < to; p++) sum += weights[chainEdges[p]];
+        return sum;
+    }
+
+    /**
+     * Finds the best route from s to t and leaves how it ends in the query.
+     */
+    private Query search(int s, int t) {
+        Query query = queries.get();
+        SearchWorkspace workspace = query.workspace;
+        workspace.clear();
+        query.best = Double.POSITIVE_INFINITY;
+        query.bestVertex = -1;
+        query.bestFrom = query.bestTo = 0;
+        if (s == t) {
+            query.best = 0;
+            return query;
+        }
+
+        // a start on a chain enters the core at the heads of its chains; the predecessor -2 - i marks
+        // the rest of chainOf[i]
+        if (chainOf[2 * s] < 0) workspace.reach(s, 0.0, -1);
+        for (int i = 2 * s; i <= 2 * s + 1 && chainOf[i] >= 0; i++) {
+            int c = chainOf[i], p = chainPos[i];
+            double d = weight(0.0, p + 1, edgeFirst[c + 1]);
+            int w = compoundHead[c];
+            if (!workspace.isReached(w) || d < workspace.distance(w)) workspace.reach(w, d, -2 - i);
+            // t may lie further along the same chain
+            for (int j = 2 * t; j <= 2 * t + 1; j++) {
+                if (chainOf[j] == c && chainPos[j] > p) offer(query, -1, p + 1, chainPos[j] + 1, weight(0.0, p + 1, chainPos[j] + 1));
+            }
+        }
+
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            double dv = workspace.distance(v);
+            if (dv >= query.best) break;
+            if (v == t) {
+                offer(query, v, 0, 0, dv);
+                break;
+            }
+            // an end on a chain is reached from the tails of its chains
+            for (int j = 2 * t; j <= 2 * t + 1; j++) {
+                int c = chainOf[j];
+                if (c >= 0 && compoundTail[c] == v) offer(query, v, edgeFirst[c], chainPos[j] + 1, weight(dv, edgeFirst[c], chainPos[j] + 1));
+            }
+            for (int c = firstCompound[v], end = firstCompound[v + 1]; c < end; c++) {
+                int w = compoundHead[c];
+                if (workspace.isSettled(w)) continue;
+                double alt = dv + compoundWeight[c];
+                if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, c);
+            }
+        }
+        return query;
+    }
+
+    private static void offer(Query query, int vertex, int from, int to, double cost) {
+        if (cost >= query.best) return;
+        query.best = cost;
+        query.bestVertex = vertex;
+        query.bestFrom = from;
+        query.bestTo = to;
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the number of intersections the searches settle, those that are not shape points.
+     */
+    public int coreVertexCount() {
+        return coreCount;
+    }
+
+    public int compoundEdgeCount() {
+        return compoundTail.length;
+    }
+
+    public int compoundTail(int c) {
+        return compoundTail[c];
+    }
+
+    public int compoundHead(int c) {
+        return compoundHead[c];
+    }
+
+    public double compoundTraffic(int c) {
+        return compoundWeight[c];
+    }
+
+    public double compoundLength(int c) {
+        return compoundLength[c];
+    }
+
+    /**
+     * Returns true if vertex v is a shape point inside a chain.
+     */
+    public boolean isContracted(int v) {
+        return chainOf[2 * v] >= 0;
+    }
+
+    /**
+     * Returns the edges of the original graph that compound edge c stands for, in order.
+     */
+    public int[] edges(int c) {
+        return Arrays.copyOfRange(chainEdges, edgeFirst[c], edgeFirst[c + 1]);
+    }
+
+    /**
+     * Returns the blocks that compound edge c stands for, in order.
+     */
+    public ArrayList<Block> blocks(int c) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (int p = edgeFirst[c]; p < edgeFirst[c + 1]; p++) blocks.add(graph.block(chainEdges[p]));
+        return blocks;
+    }
+
+    /**
+     * Returns the intersections along compound edge c, from its tail to its head.
+     */
+    public ArrayList<Intersection> intersections(int c) {
+        ArrayList<Intersection> path = new ArrayList<>();
+        path.add(graph.intersection(compoundTail[c]));
+        for (int p = edgeFirst[c]; p < edgeFirst[c + 1]; p++) path.add(graph.intersection(graph.head(chainEdges[p])));
+        return path;
+    }
+
+    /**
+     * Returns the least traffic from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the traffic, or infinity if t is unreachable
+     */
+    @Override
+    public double distance(int s, int t) {
+        return search(s, t).best;
+    }
+
+    /**
+     * Returns a least traffic route from s to t, expanded into edges of the original graph.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the route, which has no edges if t is unreachable or equals s
+     */
+    @Override
+    public Route route(int s, int t) {
+        Query query = search(s, t);
+        if (query.best == Double.POSITIVE_INFINITY) return new Route(graph, s, new int[0], weights);
+        SearchWorkspace workspace = query.workspace;
+        // ranges of chainEdges from the end of the route back to its start
+        IntList ranges = new IntList();
+        ranges.add(query.bestFrom);
+        ranges.add(query.bestTo);
+        int count = query.bestTo - query.bestFrom;
+        for (int v = query.bestVertex; v >= 0; ) {
+            int c = workspace.predEdge(v);
+            if (c == -1) break;
+            if (c >= 0) {
+                ranges.add(edgeFirst[c]);
+                ranges.add(edgeFirst[c + 1]);
+                count += edgeFirst[c + 1] - edgeFirst[c];
+                v = compoundTail[c];
+            } else {
+                int i = -2 - c;
+                c = chainOf[i];
+                int from = chainPos[i] + 1;
+                ranges.add(from);
+                ranges.add(edgeFirst[c + 1]);
+                count += edgeFirst[c + 1] - from;
+                v = -1;
+            }
+        }
+        int[] edges = new int[count];
+        int i = 0;
+        for (int r = ranges.size - 2; r >= 0; r -= 2) {
+            for (int p = ranges.items[r]; p < ranges.items[r + 1]; p++) edges[i++] = chainEdges[p];
+        }
+        return new Route(graph, s, edges, weights);
+    }
+
+    /**
+     * Contracts the chains of a map and compares queries and paths against plain Dijkstra.
+     * Usage: ChainContraction mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        int n = graph.vertexCount();
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        long begin = System.nanoTime();
+        ChainContraction contraction = new ChainContraction(graph, weights);
+        long elapsed = System.nanoTime() - begin;
+        StdOut.printf("contracted in %.1f ms: %d of %d intersections and %d of %d edges remain%n", elapsed / 1e6,
+            contraction.coreVertexCount(), n, contraction.compoundEdgeCount(), graph.edgeCount());
+
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        long[] times = Benchmark.time(
+            () -> { for (int i = 0; i < queries; i++) contraction.route(sources[i], targets[i]); },
+            () -> {
+                for (int i = 0; i < queries; i++) {
+                    workspace.dijkstra(graph, weights, sources[i], targets[i]);
+                    Route.fromSearch(graph, workspace, sources[i], targets[i], weights);
+                }
+            });
+        long chainSettled = 0, dijkstraSettled = 0;
+        int differing = 0;
+        for (int i = 0; i < queries; i++) {
+            Route route = contraction.route(sources[i], targets[i]);
+            chainSettled += contraction.queries.get().workspace.settledCount();
+            workspace.dijkstra(graph, weights, sources[i], targets[i]);
+            Route expected = Route.fromSearch(graph, workspace, sources[i], targets[i], weights);
+            dijkstraSettled += workspace.settledCount();
+            if (route.equals(expected)) continue;
+            // a different route is only allowed when it costs the same to within rounding
+            if (route.getEnd() != expected.getEnd() || Math.abs(route.getTraffic() - expected.getTraffic()) > 1e-9 * Math.max(1, expected.getTraffic()))
+                throw new IllegalStateException("Route from " + sources[i] + " to " + targets[i] + " is " + route + ", expected " + expected);
+            differing++;
+        }
+        StdOut.printf("settled per query: %.1f contracted, %.1f with Dijkstra%n", (double) chainSettled / queries, (double) dijkstraSettled / queries);
+        StdOut.printf("%.2f us per route contracted, %.2f us with Dijkstra, %d of %d paths differ%n", times[0] / 1e3 / queries,
+            times[1] / 1e3 / queries, differing, queries);
+    }
+}
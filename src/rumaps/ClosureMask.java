@@ -0,0 +1,271 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The ClosureMask class marks blocks and intersections of a RoutingGraph as closed, for example for
+ * events or construction.
+ *
+ * A mask is immutable: closing or reopening something returns a new mask, so a what-if closure is
+ * applied by passing a different mask to a query and reverted by passing the old one. The network
+ * itself is never changed.
+ *
+ * Closing an intersection also closes every edge into and out of it, so the search engines only test
+ * one bit per edge they relax. The explicitly closed edges are kept separately, so reopening an
+ * intersection does not reopen a block that was closed on its own.
+ */
+public class ClosureMask {
+    private final RoutingGraph graph;
+    private final long[] closedEdges;      // edges closed explicitly
+    private final long[] closedVertices;   // intersections closed explicitly
+    private final long[] blocked;          // closedEdges plus every edge touching a closed vertex
+
+    /**
+     * Creates a mask with nothing closed.
+     *
+     * @param graph the graph whose edges and vertices are masked
+     */
+    public ClosureMask(RoutingGraph graph) {
+        this(graph, new long[words(graph.edgeCount())], new long[words(graph.vertexCount())]);
+    }
+
+    private ClosureMask(RoutingGraph graph, long[] closedEdges, long[] closedVertices) {
+        this.graph = graph;
+        this.closedEdges = closedEdges;
+        this.closedVertices = closedVertices;
+        this.blocked = closedEdges.clone();
+        boolean anyVertex = false;
+        for (long word : closedVertices) anyVertex |= word != 0;
+        if (anyVertex) {
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                if (test(closedVertices, graph.tail(e)) || test(closedVertices, graph.head(e))) blocked[e >>> 6] |= 1L << e;
+            }
+        }
+    }
+
+    private ClosureMask(RoutingGraph graph, long[] closedEdges, long[] closedVertices, long[] blocked) {
+        this.graph = graph;
+        this.closedEdges = closedEdges;
+        this.closedVertices = closedVertices;
+        this.blocked = blocked;
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static boolean test(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns true if a search may not use the edge, because it or one of its endpoints is closed.
+     */
+    public boolean isEdgeClosed(int e) {
+        return test(blocked, e);
+    }
+
+    public boolean isVertexClosed(int v) {
+        return test(closedVertices, v);
+    }
+
+    /**
+     * Returns true if nothing is closed.
+     */
+    public boolean isEmpty() {
+        for (long word : blocked) {
+            if (word != 0) return false;
+        }
+        for (long word : closedVertices) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of edges a search may not use.
+     */
+    public int closedEdgeCount() {
+        int count = 0;
+        for (long word : blocked) count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * Returns the bits tested by the search engines: bit e is set if edge e may not be used.
+     * The array must not be modified.
+     */
+    long[] bits() {
+        return blocked;
+    }
+
+    /**
+     * Returns a mask that also closes one directed edge.
+     */
+    public ClosureMask closeEdge(int e) {
+        return withEdge(e, true);
+    }
+
+    /**
+     * Returns a mask in which an explicitly closed edge is open again. The edge stays closed if one of
+     * its endpoints is closed.
+     */
+    public ClosureMask reopenEdge(int e) {
+        return withEdge(e, false);
+    }
+
+    private ClosureMask withEdge(int e, boolean closed) {
+        if (test(closedEdges, e) == closed) return this;
+        long[] edges = closedEdges.clone();
+        edges[e >>> 6] ^= 1L << e;
+        return new ClosureMask(graph, edges, closedVertices);
+    }
+
+    /**
+     * Returns a mask that also closes both directions of a block.
+     *
+     * @param streetName the name of the street the block is on
+     * @param blockNumber the number of the block
+     * @return the new mask
+     * @throws IllegalArgumentException if there is no such block
+     */
+    public ClosureMask closeBlock(String streetName, int blockNumber) {
+        return withBlock(streetName, blockNumber, true);
+    }
+
+    /**
+     * Returns a mask in which both directions of a block are open again.
+     */
+    public ClosureMask reopenBlock(String streetName, int blockNumber) {
+        return withBlock(streetName, blockNumber, false);
+    }
+
+    private ClosureMask withBlock(String streetName, int blockNumber, boolean closed) {
+        int[] edges = graph.findBlock(streetName, blockNumber);
+        if (edges.length == 0) throw new IllegalArgumentException("No block " + blockNumber + " on " + streetName);
+        long[] bits = closedEdges.clone();
+        for (int e : edges) {
+            if (closed) bits[e >>> 6] |= 1L << e;
+            else        bits[e >>> 6] &= ~(1L << e);
+        }
+        return Arrays.equals(bits, closedEdges) ? this : new ClosureMask(graph, bits, closedVertices);
+    }
+
+    /**
+     * Returns a mask that also closes an intersection and every block touching it.
+     */
+    public ClosureMask closeVertex(int v) {
+        return withVertex(v, true);
+    }
+
+    public ClosureMask reopenVertex(int v) {
+        return withVertex(v, false);
+    }
+
+    public ClosureMask closeIntersection(Intersection intersection) {
+        int v = graph.indexOf(intersection);
+        if (v < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        return closeVertex(v);
+    }
+
+    private ClosureMask withVertex(int v, boolean closed) {
+        if (test(closedVertices, v) == closed) return this;
+        long[] vertices = closedVertices.clone();
+        vertices[v >>> 6] ^= 1L << v;
+        return new ClosureMask(graph, closedEdges, vertices);
+    }
+
+    /**
+     * Returns a mask that also closes several edges and intersections, copying the bits once instead
+     * of once per closure. Only the edges around the new intersections are visited.
+     *
+     * @param edges the directed edges to close
+     * @param vertices the vertices to close
+     * @return the new mask
+     */
+    public ClosureMask closeAll(int[] edges, int[] vertices) {
+        if (edges.length == 0 && vertices.length == 0) return this;
+        long[] closedEdges = this.closedEdges.clone();
+        long[] closedVertices = this.closedVertices.clone();
+        long[] blocked = this.blocked.clone();
+        for (int e : edges) {
+            closedEdges[e >>> 6] |= 1L << e;
+            blocked[e >>> 6] |= 1L << e;
+        }
+        for (int v : vertices) {
+            closedVertices[v >>> 6] |= 1L << v;
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) blocked[e >>> 6] |= 1L << e;
+            for (int i = graph.firstInEdge(v), end = graph.endInEdge(v); i < end; i++) {
+                int e = graph.inEdge(i);
+                blocked[e >>> 6] |= 1L << e;
+            }
+        }
+        return new ClosureMask(graph, closedEdges, closedVertices, blocked);
+    }
+
+    /**
+     * Returns a mask that closes everything closed in either this mask or another mask of the same graph.
+     *
+     * @param other the mask to combine with
+     * @return the combined mask, which is this mask or the other one if that already covers both
+     */
+    public ClosureMask union(ClosureMask other) {
+        if (other.graph != graph) throw new IllegalArgumentException("Masks belong to different graphs");
+        if (other == this || other.isEmpty()) return this;
+        if (isEmpty()) return other;
+        long[] closedEdges = this.closedEdges.clone();
+        long[] closedVertices = this.closedVertices.clone();
+        long[] blocked = this.blocked.clone();
+        for (int i = 0; i < closedEdges.length; i++) {
+            closedEdges[i] |= other.closedEdges[i];
+            blocked[i] |= other.blocked[i];
+        }
+        for (int i = 0; i < closedVertices.length; i++) closedVertices[i] |= other.closedVertices[i];
+        return new ClosureMask(graph, closedEdges, closedVertices, blocked);
+    }
+
+    /**
+     * Returns the edges whose closed state differs between this mask and another mask of the same graph.
+     *
+     * @param other the mask to compare with
+     * @return the edge ids, in increasing order
+     */
+    public int[] changedEdges(ClosureMask other) {
+        if (other.graph != graph) throw new IllegalArgumentException("Masks belong to different graphs");
+        int count = 0;
+        for (int i = 0; i < blocked.length; i++) count += Long.bitCount(blocked[i] ^ other.blocked[i]);
+        int[] changed = new int[count];
+        count = 0;
+        for (int i = 0; i < blocked.length; i++) {
+            for (long diff = blocked[i] ^ other.blocked[i]; diff != 0; diff &= diff - 1) {
+                changed[count++] = (i << 6) + Long.numberOfTrailingZeros(diff);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(blocked) + Arrays.hashCode(closedVertices);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        ClosureMask other = (ClosureMask) obj;
+        return graph == other.graph && Arrays.equals(blocked, other.blocked)
+            && Arrays.equals(closedVertices, other.closedVertices);
+    }
+
+    @Override
+    public String toString() {
+        return "ClosureMask [closedEdges=" + closedEdgeCount() + ", closedVertices=" + Arrays.stream(closedVertices).map(Long::bitCount).sum() + "]";
+    }
+}
@@ -0,0 +1,397 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The ContractionHierarchy class preprocesses a RoutingGraph with fixed weights so that shortest path
+ * queries only search a small part of it.
+ *
+ * Vertices are contracted one at a time, least important first, where importance is the edge
+ * difference (shortcuts added minus edges removed) plus the number of neighbors already contracted.
+ * Contracting v adds a shortcut u -> x for every pair of remaining neighbors whose shortest path runs
+ * through v, unless a bounded witness search finds another path that is no longer. A vertex's rank is
+ * its position in this order.
+ *
+ * A query then only follows edges that lead to higher ranks: a forward search from the start and a
+ * backward search from the end, which meet at the highest vertex of the shortest path. Shortcuts
+ * remember the two edges they replace, so a path can be unpacked into edges of the original graph.
+ *
+ * The hierarchy is immutable once built and its queries may run on many threads. Used as a PathOracle,
+ * it returns least traffic routes, which may differ from the ones RUMaps.fastestPath finds when two
+ * routes cost exactly the same.
+ */
+public class ContractionHierarchy implements PathOracle {
+    // witness searches give up after settling this many vertices, which only costs extra shortcuts
+    private static final int WITNESS_LIMIT = 256;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final int[] rank;
+
+    // every edge of the hierarchy: the original edges, then the shortcuts
+    private int edgeCount;
+    private int[] from;
+    private int[] to;
+    private double[] cost;
+    private int[] hops;
+    private int[] first;    // original edge id, or the first half of a shortcut
+    private int[] second;   // -1, or the second half of a shortcut
+    private final int originalCount;
+
+    // upward edges by tail, for forward searches, and by head, for backward searches
+    private final int[] upFirst;
+    private final int[] upEdge;
+    private final int[] downFirst;
+    private final int[] downEdge;
+
+    private final ThreadLocal<SearchWorkspace[]> workspaces;
+
+    /**
+     * Builds the hierarchy of a graph with everything open.
+     *
+     * @param graph the graph
+     * @param weights the cost of every edge; the array is copied
+     */
+    public ContractionHierarchy(RoutingGraph graph, double[] weights) {
+        this(graph, weights, null);
+    }
+
+    /**
+     * Builds the hierarchy of a graph.
+     *
+     * @param graph the graph
+     * @param weights the cost of every edge; the array is copied
+     * @param closures the closed blocks and intersections, which the hierarchy leaves out, or null
+     */
+    public ContractionHierarchy(RoutingGraph graph, double[] weights, ClosureMask closures) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        int n = graph.vertexCount();
+        int m = graph.edgeCount();
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.rank = new int[n];
+        this.workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace[] {new SearchWorkspace(n), new SearchWorkspace(n)});
+
+        int capacity = Math.max(16, 2 * m);
+        from = new int[capacity];
+        to = new int[capacity];
+        cost = new double[capacity];
+        hops = new int[capacity];
+        first = new int[capacity];
+        second = new int[capacity];
+        for (int e = 0; e < m; e++) {
+            int u = graph.tail(e), v = graph.head(e);
+            if (u == v || (closures != null && closures.isEdgeClosed(e))) continue;
+            addEdge(u, v, this.weights[e], 1, e, -1);
+        }
+        originalCount = edgeCount;
+
+        contract(n);
+
+        int[] upCount = new int[n + 1];
+        int[] downCount = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            if (rank[to[e]] > rank[from[e]]) upCount[from[e] + 1]++;
+            else downCount[to[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            upCount[v + 1] += upCount[v];
+            downCount[v + 1] += downCount[v];
+        }
+        upFirst = upCount.clone();
+        downFirst = downCount.clone();
+        upEdge = new int[upFirst[n]];
+        downEdge = new int[downFirst[n]];
+        for (int e = 0; e < edgeCount; e++) {
+            if (rank[to[e]] > rank[from[e]]) upEdge[upCount[from[e]]++] = e;
+            else downEdge[downCount[to[e]]++] = e;
+        }
+    }
+
+    private int addEdge(int u, int v, double c, int h, int a, int b) {
+        if (edgeCount == from.length) {
+            int capacity = edgeCount * 2;
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            cost = Arrays.copyOf(cost, capacity);
+            hops = Arrays.copyOf(hops, capacity);
+            first = Arrays.copyOf(first, capacity);
+            second = Arrays.copyOf(second, capacity);
+        }
+        from[edgeCount] = u;
+        to[edgeCount] = v;
+        cost[edgeCount] = c;
+        hops[edgeCount] = h;
+        first[edgeCount] = a;
+        second[edgeCount] = b;
+        return edgeCount++;
+    }
+
+    // the remaining graph while contracting: growable edge id lists per vertex
+    private int[][] outs;
+    private int[][] ins;
+    private int[] outSize;
+    private int[] inSize;
+    private boolean[] contracted;
+
+    private void contract(int n) {
+        outs = new int[n][4];
+        ins = new int[n][4];
+        outSize = new int[n];
+        inSize = new int[n];
+        contracted = new boolean[n];
+        for (int e = 0; e < edgeCount; e++) {
+            link(e);
+        }
+
+        SearchWorkspace witness = new SearchWorkspace(n);
+        int[] deleted = new int[n];
+        // lazy priority queue of (priority, vertex), re-checked when popped
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int v = 0; v < n; v++) queue.add(new long[] {priority(v, deleted, witness), v});
+
+        int next = 0;
+        while (!queue.isEmpty()) {
+            int v = (int) queue.poll()[1];
+            if (contracted[v]) continue;
+            long current = priority(v, deleted, witness);
+            if (!queue.isEmpty() && current > queue.peek()[0]) {
+                queue.add(new long[] {current, v});
+                continue;
+            }
+            shortcuts(v, witness, true);
+            contracted[v] = true;
+            rank[v] = next++;
+            for (int i = 0; i < outSize[v]; i++) deleted[to[outs[v][i]]]++;
+            for (int i = 0; i < inSize[v]; i++) deleted[from[ins[v][i]]]++;
+        }
+        outs = null;
+        ins = null;
+        outSize = null;
+        inSize = null;
+        contracted = null;
+    }
+
+    private void link(int e) {
+        int u = from[e], v = to[e];
+        if (outSize[u] == outs[u].length) outs[u] = Arrays.copyOf(outs[u], outSize[u] * 2);
+        outs[u][outSize[u]++] = e;
+        if (inSize[v] == ins[v].length) ins[v] = Arrays.copyOf(ins[v], inSize[v] * 2);
+        ins[v][inSize[v]++] = e;
+    }
+
+    private long priority(int v, int[] deleted, SearchWorkspace witness) {
+        int removed = 0;
+        for (int i = 0; i < outSize[v]; i++) if (!contracted[to[outs[v][i]]]) removed++;
+        for (int i = 0; i < inSize[v]; i++) if (!contracted[from[ins[v][i]]]) removed++;
+        return shortcuts(v, witness, false) - removed + deleted[v];
+    }
+
+    // counts, and if add is set adds, the shortcuts needed to contract v
+    private int shortcuts(int v, SearchWorkspace witness, boolean add) {
+        int count = 0;
+        for (int i = 0; i < inSize[v]; i++) {
+            int in = ins[v][i];
+            int u = from[in];
+            if (contracted[u] || u == v || !isCheapest(in, ins[v], inSize[v], true)) continue;
+
+            double limit = -1;
+            for (int j = 0; j < outSize[v]; j++) {
+                int out = outs[v][j];
+                if (!contracted[to[out]] && to[out] != u) limit = Math.max(limit, cost[in] + cost[out]);
+            }
+            if (limit < 0) continue;
+            witnessSearch(witness, u, v, limit);
+
+            for (int j = 0; j < outSize[v]; j++) {
+                int out = outs[v][j];
+                int x = to[out];
+                if (contracted[x] || x == u || !isCheapest(out, outs[v], outSize[v], false)) continue;
+                double via = cost[in] + cost[out];
+                if (witness.isReached(x) && witness.distance(x) <= via) continue;
+                count++;
+                if (add) link(addEdge(u, x, via, hops[in] + hops[out], in, out));
+            }
+        }
+        return count;
+    }
+
+    // true if e is the cheapest (then lowest id) of the parallel edges in list, so each pair is handled once
+    private boolean isCheapest(int e, int[] list, int size, boolean sameTail) {
+        for (int i = 0; i < size; i++) {
+            int f = list[i];
+            if (f == e) continue;
+            if (sameTail ? from[f] != from[e] : to[f] != to[e]) continue;
+            if (cost[f] < cost[e] || (cost[f] == cost[e] && f < e)) return false;
+        }
+        return true;
+    }
+
+    private void witnessSearch(SearchWorkspace witness, int source, int avoid, double limit) {
+        witness.clear();
+        witness.reach(source, 0.0, -1);
+        int settled = 0;
+        while (!witness.isQueueEmpty() && settled++ < WITNESS_LIMIT) {
+            int w = witness.poll();
+            double dw = witness.distance(w);
+            if (dw > limit) break;
+            for (int i = 0; i < outSize[w]; i++) {
+                int e = outs[w][i];
+                int x = to[e];
+                if (x == avoid || contracted[x] || witness.isSettled(x)) continue;
+                double alt = dw + cost[e];
+                if (!witness.isReached(x) || alt < witness.distance(x)) witness.reach(x, alt, e);
+            }
+        }
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the position of v in the contraction order; higher ranks are more important.
+     */
+    public int rank(int v) {
+        return rank[v];
+    }
+
+    /**
+     * Returns the number of shortcuts added by the contraction.
+     */
+    public int shortcutCount() {
+        return edgeCount - originalCount;
+    }
+
+    /**
+     * Returns the number of edges a query may follow: original edges plus shortcuts.
+     */
+    public int hierarchyEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Runs an upward search from source over the whole hierarchy, without stopping early. Afterwards
+     * the workspace holds every vertex the search settled, with its distance, and predEdge(v) is the
+     * hierarchy edge the search reached v by.
+     *
+     * @param source the start of the search
+     * @param forward true to follow edges forward from a start, false to follow them backward from an end
+     * @param workspace the workspace to search with
+     * @return the number of vertices settled
+     */
+    int upwardSearch(int source, boolean forward, SearchWorkspace workspace) {
+        workspace.clear();
+        workspace.reach(source, 0.0, -1);
+        int[] firsts = forward ? upFirst : downFirst;
+        int[] edges = forward ? upEdge : downEdge;
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            double dv = workspace.distance(v);
+            for (int i = firsts[v]; i < firsts[v + 1]; i++) {
+                int e = edges[i];
+                int w = forward ? to[e] : from[e];
+                if (workspace.isSettled(w)) continue;
+                double alt = dv + cost[e];
+                if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, e);
+            }
+        }
+        return workspace.settledCount();
+    }
+
+    /**
+     * Returns the vertex at the other end of a hierarchy edge from v.
+     */
+    int opposite(int e, int v) {
+        return from[e] == v ? to[e] : from[e];
+    }
+
+    /**
+     * Returns the number of original edges a hierarchy edge stands for.
+     */
+    int hops(int e) {
+        return hops[e];
+    }
+
+    double cost(int e) {
+        return cost[e];
+    }
+
+    /**
+     * Returns the least cost from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the cost, or infinity if t is unreachable
+     */
+    @Override
+    public double distance(int s, int t) {
+        SearchWorkspace[] pair = workspaces.get();
+        int meet = meet(s, t, pair[0], pair[1]);
+        return meet < 0 ? Double.POSITIVE_INFINITY : pair[0].distance(meet) + pair[1].distance(meet);
+    }
+
+    /**
+     * Returns a least cost route from s to t, unpacked into edges of the original graph.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the route, which has no edges if t is unreachable or equals s
+     */
+    @Override
+    public Route route(int s, int t) {
+        SearchWorkspace[] pair = workspaces.get();
+        int meet = meet(s, t, pair[0], pair[1]);
+        if (meet < 0) return new Route(graph, s, new int[0], weights);
+        IntList edges = new IntList();
+        // hierarchy edges from s up to meet, collected backwards, then from meet down to t
+        IntList upward = new IntList();
+        for (int e = pair[0].predEdge(meet); e != -1; e = pair[0].predEdge(from[e])) upward.add(e);
+        for (int i = upward.size - 1; i >= 0; i--) unpack(upward.items[i], edges);
+        for (int e = pair[1].predEdge(meet); e != -1; e = pair[1].predEdge(to[e])) unpack(e, edges);
+        return new Route(graph, s, edges.toArray(), weights);
+    }
+
+    private int meet(int s, int t, SearchWorkspace forward, SearchWorkspace backward) {
+        upwardSearch(s, true, forward);
+        int settled = upwardSearch(t, false, backward);
+        int meet = -1;
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < settled; i++) {
+            int v = backward.settled(i);
+            if (!forward.isSettled(v)) continue;
+            double d = forward.distance(v) + backward.distance(v);
+            if (d < best) {
+                best = d;
+                meet = v;
+            }
+        }
+        return meet;
+    }
+
+    /**
+     * Appends the original edges a hierarchy edge stands for, in path order.
+     *
+     * @param e the hierarchy edge
+     * @param out the list to append to
+     */
+    void unpack(int e, IntList out) {
+        IntList stack = new IntList();
+        stack.add(e);
+        while (stack.size > 0) {
+            int top = stack.items[--stack.size];
+            if (second[top] < 0) {
+                out.add(first[top]);
+            } else {
+                stack.add(second[top]);
+                stack.add(first[top]);
+            }
+        }
+    }
+
+    double[] getWeights() {
+        return weights;
+    }
+}
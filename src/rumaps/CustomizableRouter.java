@@ -0,0 +1,436 @@
+package rumaps;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The CustomizableRouter class answers least traffic queries with customizable route planning: the
+ * work is split into a metric-independent part that is done once and a customization that is cheap
+ * enough to redo whenever traffic changes.
+ *
+ * The metric-independent part is a multilevel Partition and, for every cell of every level, its
+ * boundary: the intersections with a block into or out of the cell. Customization computes, for
+ * every cell, the least traffic between every pair of its boundary intersections while staying inside
+ * the cell, the cell's clique. On level 0 the cliques come from Dijkstra searches in the cell itself;
+ * on higher levels from searches over the boundaries and cliques of the level below, so each level
+ * only searches a small overlay graph. Where the cliques of the subcells would have more entries
+ * than the cell has blocks, as in grid-like areas with long boundaries, the cell is searched in the
+ * graph instead. The cells of a level are independent, so they are customized in parallel, each
+ * worker thread reusing its own workspaces.
+ *
+ * A query searches the original graph only in the finest cells of its start and end. Any other
+ * intersection is settled on the highest level whose cell contains neither the start nor the end,
+ * where the search follows the clique of that cell and the blocks leaving it. The cliques of a route
+ * are unpacked into blocks by searching their cells again, level by level.
+ *
+ * Customizing builds a complete new set of cliques and swaps it in at once, so queries running at the
+ * same time see either the old traffic or the new. Used as a PathOracle, the router returns least
+ * traffic routes, which may differ from the ones RUMaps.fastestPath finds when two routes cost
+ * exactly the same.
+ */
+public class CustomizableRouter implements PathOracle {
+    private final RoutingGraph graph;
+    private final Partition partition;
+    private final int levels;
+
+    // the boundary of cell c on level l is overlayVertex[l][cellFirst[l][c] .. cellFirst[l][c + 1] - 1]
+    private final int[][] overlayVertex;
+    private final int[][] cellFirst;
+    private final int[][] overlayId;     // the index of v in overlayVertex[l], or -1 if v is inside its cell
+    private final int[][] cliqueFirst;   // the clique of cell c on level l starts here, one row per boundary vertex
+    private final boolean[][] flat;      // whether cell c of level l is searched in the graph rather than the overlay
+
+    private volatile Metric metric;
+    private final ThreadLocal<SearchWorkspace[]> workspaces;
+
+    /**
+     * The weights and the cliques computed from them.
+     */
+    private static final class Metric {
+        final double[] weights;
+        final double[][] cliques;
+
+        Metric(double[] weights, double[][] cliques) {
+            this.weights = weights;
+            this.cliques = cliques;
+        }
+    }
+
+    /**
+     * Builds a router over the default partition of a graph and customizes it with the current
+     * traffic of the blocks.
+     *
+     * @param graph the graph to route on
+     */
+    public CustomizableRouter(RoutingGraph graph) {
+        this(new Partition(graph));
+    }
+
+    /**
+     * Builds a router over a partition and customizes it with the current traffic of the blocks.
+     *
+     * @param partition the cells to precompute
+     */
+    public CustomizableRouter(Partition partition) {
+        this.graph = partition.getGraph();
+        this.partition = partition;
+        this.levels = partition.levelCount();
+        int n = graph.vertexCount();
+        overlayVertex = new int[levels][];
+        cellFirst = new int[levels][];
+        overlayId = new int[levels][];
+        cliqueFirst = new int[levels][];
+        flat = new boolean[levels][];
+        for (int l = 0; l < levels; l++) {
+            int cells = partition.cellCount(l);
+            boolean[] boundary = new boolean[n];
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                if (partition.isCut(l, e)) boundary[graph.tail(e)] = boundary[graph.head(e)] = true;
+            }
+            int[] first = new int[cells + 1];
+            for (int v = 0; v < n; v++) {
+                if (boundary[v]) first[partition.cell(l, v) + 1]++;
+            }
+            for (int c = 0; c < cells; c++) first[c + 1] += first[c];
+            int[] vertices = new int[first[cells]];
+            int[] ids = new int[n];
+            Arrays.fill(ids, -1);
+            int[] next = Arrays.copyOf(first, cells);
+            for (int v = 0; v < n; v++) {
+                if (!boundary[v]) continue;
+                ids[v] = next[partition.cell(l, v)]++;
+                vertices[ids[v]] = v;
+            }
+            int[] cliques = new int[cells + 1];
+            for (int c = 0; c < cells; c++) {
+                long size = first[c + 1] - first[c];
+                if (cliques[c] + size * size > Integer.MAX_VALUE) throw new IllegalArgumentException("Cells of level " + l + " are too large");
+                cliques[c + 1] = (int) (cliques[c] + size * size);
+            }
+            overlayVertex[l] = vertices;
+            cellFirst[l] = first;
+            overlayId[l] = ids;
+            cliqueFirst[l] = cliques;
+
+            // a search over the overlay relaxes about as many arcs as the subcells' cliques have
+            // entries, one in the graph as many as the cell has edges; when boundaries are long, as in
+            // grids, the graph can be the smaller of the two
+            long[] graphCost = new long[cells];
+            long[] overlayCost = new long[cells];
+            for (int v = 0; v < n; v++) graphCost[partition.cell(l, v)] += graph.degree(v);
+            if (l > 0) {
+                int ratio = partition.cellCount(l - 1) / cells;
+                for (int sub = 0; sub < partition.cellCount(l - 1); sub++) {
+                    overlayCost[sub / ratio] += cliqueFirst[l - 1][sub + 1] - cliqueFirst[l - 1][sub];
+                }
+            }
+            flat[l] = new boolean[cells];
+            for (int c = 0; c < cells; c++) flat[l][c] = l == 0 || graphCost[c] <= overlayCost[c];
+        }
+        workspaces = ThreadLocal.withInitial(() -> {
+            SearchWorkspace[] spaces = new SearchWorkspace[levels];
+            spaces[0] = new SearchWorkspace(n);
+            for (int l = 1; l < levels; l++) spaces[l] = new SearchWorkspace(overlayVertex[l - 1].length);
+            return spaces;
+        });
+        customize();
+    }
+
+    /**
+     * Recomputes the cliques from the current traffic of every block, Block.getTraffic().
+     */
+    public void customize() {
+        double[] weights = new double[graph.edgeCount()];
+        for (int e = 0; e < weights.length; e++) weights[e] = graph.block(e).getTraffic();
+        customize(weights);
+    }
+
+    /**
+     * Recomputes the cliques from new weights. A closed block can be given infinite weight.
+     *
+     * @param weights the cost of every edge; the array is copied
+     */
+    public void customize(double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        for (double w : weights) {
+            if (!(w >= 0)) throw new IllegalArgumentException("Weights must not be negative: " + w);
+        }
+        double[] copy = weights.clone();
+        double[][] cliques = new double[levels][];
+        Metric next = new Metric(copy, cliques);
+        // every level is built from the one below it
+        for (int l = 0; l < levels; l++) {
+            int level = l;
+            cliques[l] = new double[cliqueFirst[l][partition.cellCount(l)]];
+            IntStream.range(0, partition.cellCount(l)).parallel().forEach(c -> customizeCell(next, level, c));
+        }
+        metric = next;
+    }
+
+    private void customizeCell(Metric metric, int l, int c) {
+        int first = cellFirst[l][c];
+        int size = cellFirst[l][c + 1] - first;
+        double[] clique = metric.cliques[l];
+        int row = cliqueFirst[l][c];
+        boolean inGraph = flat[l][c];
+        SearchWorkspace workspace = workspaces.get()[inGraph ? 0 : l];
+        for (int i = 0; i < size; i++, row += size) {
+            int source = overlayVertex[l][first + i];
+            if (inGraph) cellSearch(metric, workspace, l, c, source, -1);
+            else overlaySearch(metric, workspace, l, c, overlayId[l - 1][source], -1);
+            for (int j = 0; j < size; j++) {
+                int v = overlayVertex[l][first + j];
+                int a = inGraph ? v : overlayId[l - 1][v];
+                clique[row + j] = workspace.isSettled(a) ? workspace.distance(a) : Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Runs Dijkstra's algorithm over the blocks inside cell c of level l, from source until target is
+     * settled or over the whole cell if target is negative.
+     */
+    private void cellSearch(Metric metric, SearchWorkspace workspace, int l, int c, int source, int target) {
+        double[] weights = metric.weights;
+        workspace.clear();
+        workspace.reach(source, 0.0, -1);
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            if (v == target) return;
+            double dv = workspace.distance(v);
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                int w = graph.head(e);
+                if (partition.cell(l, w) != c || workspace.isSettled(w)) continue;
+                double alt = dv + weights[e];
+                if (alt == Double.POSITIVE_INFINITY) continue;
+                if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, e);
+            }
+        }
+    }
+
+    /**
+     * Runs Dijkstra's algorithm over the overlay of level l - 1 inside cell c of level l: the
+     * boundary vertices of its subcells, the cliques of the subcells and the blocks between them.
+     * Vertices are numbered as in overlayVertex[l - 1]. The predecessor of a vertex reached by a
+     * block is the block's edge id, and of one reached by a clique it is -2 - the clique's first
+     * vertex.
+     */
+    private void overlaySearch(Metric metric, SearchWorkspace workspace, int l, int c, int source, int target) {
+        int below = l - 1;
+        int[] vertices = overlayVertex[below];
+        int[] first = cellFirst[below];
+        double[] clique = metric.cliques[below];
+        double[] weights = metric.weights;
+        workspace.clear();
+        workspace.reach(source, 0.0, -1);
+        while (!workspace.isQueueEmpty()) {
+            int a = workspace.poll();
+            if (a == target) return;
+            double da = workspace.distance(a);
+            int v = vertices[a];
+            int sub = partition.cell(below, v);
+            int from = first[sub], size = first[sub + 1] - from;
+            int row = cliqueFirst[below][sub] + (a - from) * size;
+            for (int j = 0; j < size; j++) {
+                int b = from + j;
+                if (b == a || workspace.isSettled(b)) continue;
+                double alt = da + clique[row + j];
+                if (alt == Double.POSITIVE_INFINITY) continue;
+                if (!workspace.isReached(b) || alt < workspace.distance(b)) workspace.reach(b, alt, -2 - a);
+            }
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                int w = graph.head(e);
+                if (partition.cell(below, w) == sub || partition.cell(l, w) != c) continue;
+                int b = overlayId[below][w];
+                if (workspace.isSettled(b)) continue;
+                double alt = da + weights[e];
+                if (alt == Double.POSITIVE_INFINITY) continue;
+                if (!workspace.isReached(b) || alt < workspace.distance(b)) workspace.reach(b, alt, e);
+            }
+        }
+    }
+
+    /**
+     * Searches from s until t is settled. The predecessor of a vertex reached by a block is the
+     * block's edge id, and of one reached by a clique of level l from vertex u it is
+     * -2 - (u * levels + l).
+     */
+    private void search(Metric metric, SearchWorkspace workspace, int s, int t) {
+        double[] weights = metric.weights;
+        workspace.clear();
+        workspace.reach(s, 0.0, -1);
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            if (v == t) return;
+            double dv = workspace.distance(v);
+            int l = queryLevel(v, s, t);
+            int c = -1;
+            if (l >= 0) {
+                // v is on the boundary of its cell, or the search could not have entered the cell
+                c = partition.cell(l, v);
+                int a = overlayId[l][v];
+                int from = cellFirst[l][c], size = cellFirst[l][c + 1] - from;
+                int row = cliqueFirst[l][c] + (a - from) * size;
+                double[] clique = metric.cliques[l];
+                for (int j = 0; j < size; j++) {
+                    int w = overlayVertex[l][from + j];
+                    if (w == v || workspace.isSettled(w)) continue;
+                    double alt = dv + clique[row + j];
+                    if (alt == Double.POSITIVE_INFINITY) continue;
+                    if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, -2 - (v * levels + l));
+                }
+            }
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                int w = graph.head(e);
+                if (l >= 0 && partition.cell(l, w) == c || workspace.isSettled(w)) continue;
+                double alt = dv + weights[e];
+                if (alt == Double.POSITIVE_INFINITY) continue;
+                if (!workspace.isReached(w) || alt < workspace.distance(w)) workspace.reach(w, alt, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the highest level on which the cell of v contains neither s nor t, or -1 if v is in
+     * the finest cell of one of them.
+     */
+    private int queryLevel(int v, int s, int t) {
+        for (int l = levels - 1; l >= 0; l--) {
+            int c = partition.cell(l, v);
+            if (c != partition.cell(l, s) && c != partition.cell(l, t)) return l;
+        }
+        return -1;
+    }
+
+    public Partition getPartition() {
+        return partition;
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the number of entries of all cliques, the size of what customization computes.
+     */
+    public long cliqueEntryCount() {
+        long entries = 0;
+        for (int l = 0; l < levels; l++) entries += cliqueFirst[l][partition.cellCount(l)];
+        return entries;
+    }
+
+    /**
+     * Returns the least cost from s to t under the last customization.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the cost, or infinity if t is unreachable
+     */
+    @Override
+    public double distance(int s, int t) {
+        SearchWorkspace workspace = workspaces.get()[0];
+        search(metric, workspace, s, t);
+        return workspace.isSettled(t) ? workspace.distance(t) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns a least cost route from s to t under the last customization, unpacked into edges of
+     * the graph.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the route, which has no edges if t is unreachable or equals s
+     */
+    @Override
+    public Route route(int s, int t) {
+        Metric current = metric;
+        SearchWorkspace workspace = workspaces.get()[0];
+        search(current, workspace, s, t);
+        IntList edges = new IntList();
+        if (workspace.isSettled(t)) {
+            // the steps of the route backwards, as pairs of predecessor and the vertex it leads to
+            IntList steps = new IntList();
+            for (int v = t; workspace.predEdge(v) != -1; ) {
+                int pred = workspace.predEdge(v);
+                steps.add(pred);
+                steps.add(v);
+                v = pred >= 0 ? graph.tail(pred) : (-2 - pred) / levels;
+            }
+            for (int i = steps.size - 2; i >= 0; i -= 2) {
+                int pred = steps.items[i];
+                if (pred >= 0) edges.add(pred);
+                else unpack(current, (-2 - pred) % levels, (-2 - pred) / levels, steps.items[i + 1], edges);
+            }
+        }
+        return new Route(graph, s, edges.toArray(), current.weights);
+    }
+
+    /**
+     * Appends the edges of a least cost path from u to v inside their common cell of level l.
+     */
+    private void unpack(Metric metric, int l, int u, int v, IntList out) {
+        int c = partition.cell(l, u);
+        if (flat[l][c]) {
+            SearchWorkspace workspace = workspaces.get()[0];
+            cellSearch(metric, workspace, l, c, u, v);
+            int count = 0;
+            for (int e = workspace.predEdge(v); e != -1; e = workspace.predEdge(graph.tail(e))) count++;
+            int end = out.size + count;
+            for (int i = 0; i < count; i++) out.add(-1);
+            for (int e = workspace.predEdge(v); e != -1; e = workspace.predEdge(graph.tail(e))) out.items[--end] = e;
+            return;
+        }
+        SearchWorkspace workspace = workspaces.get()[l];
+        int below = l - 1;
+        int target = overlayId[below][v];
+        overlaySearch(metric, workspace, l, c, overlayId[below][u], target);
+        // collect the steps before unpacking them, since that reuses the workspaces of lower levels
+        IntList steps = new IntList();
+        for (int b = target; workspace.predEdge(b) != -1; ) {
+            int pred = workspace.predEdge(b);
+            steps.add(pred);
+            steps.add(b);
+            b = pred >= 0 ? overlayId[below][graph.tail(pred)] : -2 - pred;
+        }
+        for (int i = steps.size - 2; i >= 0; i -= 2) {
+            int pred = steps.items[i];
+            if (pred >= 0) out.add(pred);
+            else unpack(metric, below, overlayVertex[below][-2 - pred], overlayVertex[below][steps.items[i + 1]], out);
+        }
+    }
+
+    /**
+     * Builds a router for a map, times customizations with fresh random traffic factors and compares
+     * the time per query with plain Dijkstra searches.
+     * Usage: CustomizableRouter mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        long begin = System.nanoTime();
+        Partition partition = new Partition(graph);
+        long middle = System.nanoTime();
+        CustomizableRouter router = new CustomizableRouter(partition);
+        long end = System.nanoTime();
+        StdOut.printf("partition: %d levels in %.1f ms; first customization: %.1f ms, %d clique entries%n",
+            partition.levelCount(), (middle - begin) / 1e6, (end - middle) / 1e6, router.cliqueEntryCount());
+
+        double[] weights = graph.trafficWeights();
+        for (int round = 0; round < 5; round++) {
+            for (int e = 0; e < weights.length; e++) weights[e] = graph.length(e) * maps.blockTrafficFactor(graph.block(e));
+            begin = System.nanoTime();
+            router.customize(weights);
+            StdOut.printf("customization with new traffic: %.1f ms%n", (System.nanoTime() - begin) / 1e6);
+        }
+
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        long[] elapsed = Benchmark.time(
+            () -> { for (int q = 0; q < queries; q++) workspace.dijkstra(graph, weights, sources[q], targets[q]); },
+            () -> { for (int q = 0; q < queries; q++) router.distance(sources[q], targets[q]); });
+        StdOut.printf("%.1f us per overlay query, %.1f us per Dijkstra%n", elapsed[1] / 1e3 / queries, elapsed[0] / 1e3 / queries);
+    }
+}
@@ -0,0 +1,402 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The DeltaStepping class computes least traffic distances from one source over a whole graph on a
+ * ForkJoinPool, following the delta-stepping algorithm of Meyer and Sanders.
+ *
+ * Vertices wait in buckets of width delta by tentative distance, and the lowest bucket is emptied a
+ * phase at a time: the light edges (no heavier than delta) of every vertex in the bucket are relaxed
+ * in parallel, which may put vertices back into the same bucket, until the bucket stays empty; then
+ * the heavy edges of every vertex removed from it are relaxed once. Distances are doubles kept as
+ * their bits in an AtomicLongArray and lowered with a compare-and-set loop, so relaxations never
+ * lock. Each chunk of a phase collects the vertices it improved in its own buffer, and the buffers are
+ * sorted into buckets on the calling thread.
+ *
+ * The distances are exactly the ones SearchWorkspace.dijkstra finds, since both take the least sum
+ * along a path in the same order. Predecessor edges are not raced for: once the search is done they
+ * are rebuilt from the edges that are tight for the final distances, taking the one Dijkstra's
+ * algorithm keeps. Its first relaxation to reach the final distance wins, so that is the tight edge
+ * whose tail is nearest the source, and among the edges of one tail the first in adjacency order.
+ * Only when two different tails are exactly equally far does the heap's order decide for Dijkstra,
+ * and the lower edge is taken here.
+ *
+ * On graphs with fewer than PARALLEL_MIN_VERTICES vertices, which includes every bundled map, the
+ * buckets are too small to pay for the tasks, and the search runs SearchWorkspace.dijkstra instead.
+ * An instance runs one search at a time.
+ */
+public class DeltaStepping {
+    // vertices relaxed by one task
+    private static final int CHUNK = 256;
+    // smaller graphs are searched sequentially
+    public static final int PARALLEL_MIN_VERTICES = 1 << 16;
+    private static final long UNREACHED = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final double delta;
+    private final ForkJoinPool pool;
+    private final AtomicLongArray dist;
+    private final int[] predEdge;
+    private final int[] stamp;       // stamp[v] == round when v is already in the current frontier
+    private final int[] removed;     // removed[v] == bucket + 1 when v was taken from that bucket
+    private int[][] buffers = new int[0][];
+    private int[] bufferSizes = new int[0];
+    private long[] closed;
+    private int round;
+    private int source = -1;
+    private boolean treeBuilt;
+    private int phases;
+    private final SearchWorkspace workspace;  // the sequential search, on small graphs only
+
+    /**
+     * Creates a search that runs on the common fork-join pool, with delta set to the mean weight.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     */
+    public DeltaStepping(RoutingGraph graph, double[] weights) {
+        this(graph, weights, meanWeight(weights), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a search.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge, none of them negative; the array is not copied
+     * @param delta the width of a bucket
+     * @param pool the pool to relax edges on
+     */
+    public DeltaStepping(RoutingGraph graph, double[] weights, double delta, ForkJoinPool pool) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (!(delta > 0) || Double.isInfinite(delta)) throw new IllegalArgumentException("Delta must be positive: " + delta);
+        for (double w : weights) {
+            if (!(w >= 0)) throw new IllegalArgumentException("Weights must not be negative: " + w);
+        }
+        int n = graph.vertexCount();
+        this.graph = graph;
+        this.weights = weights;
+        this.delta = delta;
+        this.pool = pool;
+        dist = new AtomicLongArray(n);
+        predEdge = new int[n];
+        stamp = new int[n];
+        removed = new int[n];
+        workspace = n < PARALLEL_MIN_VERTICES ? new SearchWorkspace(graph) : null;
+    }
+
+    private static double meanWeight(double[] weights) {
+        double sum = 0;
+        for (double w : weights) sum += w;
+        return weights.length == 0 || sum == 0 ? 1 : sum / weights.length;
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public double getDelta() {
+        return delta;
+    }
+
+    /**
+     * Computes the distance from a source to every vertex.
+     *
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     */
+    public void search(ClosureMask mask, int source) {
+        if (mask != null && mask.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        int n = graph.vertexCount();
+        if (source < 0 || source >= n) throw new IllegalArgumentException("Source out of range: " + source);
+        this.source = source;
+        if (workspace != null) {
+            workspace.dijkstra(graph, weights, mask, source, -1);
+            return;
+        }
+        for (int v = 0; v < n; v++) dist.set(v, UNREACHED);
+        Arrays.fill(stamp, 0);
+        Arrays.fill(removed, 0);
+        round = 0;
+        phases = 0;
+        treeBuilt = false;
+        if (mask != null && mask.isVertexClosed(source)) return;
+        closed = mask == null ? null : mask.bits();
+
+        ArrayList<IntList> buckets = new ArrayList<>();
+        dist.set(source, Double.doubleToRawLongBits(0));
+        bucket(buckets, 0).add(source);
+        IntList settled = new IntList();
+        for (int b = 0; b < buckets.size(); b++) {
+            IntList bucket = buckets.get(b);
+            if (bucket == null) continue;
+            buckets.set(b, null);
+            settled.size = 0;
+            int[] frontier = collect(bucket.items, bucket.size, b);
+            int frontierSize = frontier.length;
+            while (frontierSize > 0) {
+                for (int i = 0; i < frontierSize; i++) {
+                    int v = frontier[i];
+                    if (removed[v] != b + 1) {
+                        removed[v] = b + 1;
+                        settled.add(v);
+                    }
+                }
+                int chunks = relax(frontier, frontierSize, true);
+                IntList again = new IntList();
+                round++;
+                for (int c = 0; c < chunks; c++) {
+                    for (int k = 0; k < bufferSizes[c]; k++) {
+                        int w = buffers[c][k];
+                        int target = bucketOf(w);
+                        if (target != b) {
+                            bucket(buckets, target).add(w);
+                        } else if (stamp[w] != round) {
+                            stamp[w] = round;
+                            again.add(w);
+                        }
+                    }
+                }
+                frontier = again.items;
+                frontierSize = again.size;
+                phases++;
+            }
+            int chunks = relax(settled.items, settled.size, false);
+            for (int c = 0; c < chunks; c++) {
+                for (int k = 0; k < bufferSizes[c]; k++) {
+                    int w = buffers[c][k];
+                    bucket(buckets, bucketOf(w)).add(w);
+                }
+            }
+        }
+    }
+
+    // the vertices of a bucket that still belong to it, once each
+    private int[] collect(int[] items, int size, int b) {
+        round++;
+        IntList frontier = new IntList();
+        for (int i = 0; i < size; i++) {
+            int v = items[i];
+            if (stamp[v] == round || bucketOf(v) != b) continue;
+            stamp[v] = round;
+            frontier.add(v);
+        }
+        return frontier.toArray();
+    }
+
+    private int bucketOf(int v) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, distance(v) / delta);
+    }
+
+    private static IntList bucket(ArrayList<IntList> buckets, int b) {
+        while (buckets.size() <= b) buckets.add(null);
+        IntList bucket = buckets.get(b);
+        if (bucket == null) buckets.set(b, bucket = new IntList());
+        return bucket;
+    }
+
+    // relaxes the light or heavy edges of some vertices, returning the number of chunk buffers filled
+    private int relax(int[] vertices, int size, boolean light) {
+        int chunks = (size + CHUNK - 1) / CHUNK;
+        if (buffers.length < chunks) {
+            buffers = Arrays.copyOf(buffers, chunks);
+            bufferSizes = Arrays.copyOf(bufferSizes, chunks);
+        }
+        if (chunks == 1) {
+            relaxChunk(vertices, size, 0, light);
+        } else if (chunks > 1) {
+            pool.invoke(new RelaxTask(vertices, size, 0, chunks, light));
+        }
+        return chunks;
+    }
+
+    private void relaxChunk(int[] vertices, int size, int chunk, boolean light) {
+        int from = chunk * CHUNK;
+        int to = Math.min(from + CHUNK, size);
+        int[] buffer = buffers[chunk];
+        if (buffer == null) buffer = buffers[chunk] = new int[CHUNK * 4];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int u = vertices[i];
+            double du = distance(u);
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                double w = weights[e];
+                if ((w <= delta) != light) continue;
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int v = graph.head(e);
+                double candidate = du + w;
+                long current;
+                while (candidate < Double.longBitsToDouble(current = dist.get(v))) {
+                    if (dist.compareAndSet(v, current, Double.doubleToRawLongBits(candidate))) {
+                        if (count == buffer.length) buffer = buffers[chunk] = Arrays.copyOf(buffer, count * 2);
+                        buffer[count++] = v;
+                        break;
+                    }
+                }
+            }
+        }
+        bufferSizes[chunk] = count;
+    }
+
+    private class RelaxTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] vertices;
+        private final int size;
+        private final int fromChunk;
+        private final int toChunk;
+        private final boolean light;
+
+        RelaxTask(int[] vertices, int size, int fromChunk, int toChunk, boolean light) {
+            this.vertices = vertices;
+            this.size = size;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.light = light;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                relaxChunk(vertices, size, fromChunk, light);
+                return;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            invokeAll(new RelaxTask(vertices, size, fromChunk, mid, light), new RelaxTask(vertices, size, mid, toChunk, light));
+        }
+    }
+
+    public boolean isReached(int v) {
+        return workspace != null ? workspace.isReached(v) : dist.get(v) != UNREACHED;
+    }
+
+    /**
+     * Returns the least traffic from the source to v found by the last search.
+     *
+     * @return the distance, or infinity if v was not reached
+     */
+    public double distance(int v) {
+        if (workspace != null) return workspace.distance(v);
+        return Double.longBitsToDouble(dist.get(v));
+    }
+
+    /**
+     * Returns the number of light-edge phases the last search took.
+     */
+    public int phaseCount() {
+        return phases;
+    }
+
+    /**
+     * Returns the edge v is reached by on a least traffic route from the source.
+     *
+     * @return the edge id, or -1 for the source or an unreached vertex
+     */
+    public int predEdge(int v) {
+        if (workspace != null) return workspace.predEdge(v);
+        if (!treeBuilt) buildTree();
+        return isReached(v) ? predEdge[v] : -1;
+    }
+
+    // picks for every vertex the tight entering edge whose tail is nearest the source, then the lowest
+    // edge; a vertex whose only tight edges come from equally far tails, over edges of zero weight, is
+    // reached afterwards by a breadth-first search from the vertices already in the tree
+    private void buildTree() {
+        treeBuilt = true;
+        if (source < 0 || !isReached(source)) return;
+        int n = graph.vertexCount();
+        round++;
+        int[] queue = new int[n];
+        int tail = 0;
+        for (int w = 0; w < n; w++) {
+            if (!isReached(w)) continue;
+            predEdge[w] = -1;
+            if (w == source) {
+                stamp[w] = round;
+                queue[tail++] = w;
+                continue;
+            }
+            double dw = distance(w);
+            double nearest = dw;
+            for (int j = graph.firstInEdge(w), end = graph.endInEdge(w); j < end; j++) {
+                int e = graph.inEdge(j);
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                double du = distance(graph.tail(e));
+                // only tails nearer than w, so that the edges cannot form a cycle
+                if (!(du < dw) || du + weights[e] != dw) continue;
+                if (predEdge[w] == -1 || du < nearest || du == nearest && e < predEdge[w]) {
+                    nearest = du;
+                    predEdge[w] = e;
+                }
+            }
+            if (predEdge[w] != -1) {
+                stamp[w] = round;
+                queue[tail++] = w;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int u = queue[head];
+            double du = distance(u);
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (stamp[w] == round || !isReached(w) || du + weights[e] != distance(w)) continue;
+                stamp[w] = round;
+                predEdge[w] = e;
+                queue[tail++] = w;
+            }
+        }
+    }
+
+    /**
+     * Returns the least traffic route to target found by the last search.
+     *
+     * @param target the end of the route
+     * @return the route, which has no edges if target was not reached or is the source
+     */
+    public Route route(int target) {
+        int count = 0;
+        for (int e = predEdge(target); e != -1; e = predEdge(graph.tail(e))) count++;
+        int[] edges = new int[count];
+        for (int e = predEdge(target); e != -1; e = predEdge(graph.tail(e))) edges[--count] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    /**
+     * Times one-to-all searches from random sources of a map against SearchWorkspace.dijkstra.
+     * Usage: DeltaStepping mapFile [searches] [threads]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        int[] sources = Benchmark.randomVertices(graph, searches);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            DeltaStepping search = new DeltaStepping(graph, weights, meanWeight(weights), pool);
+            SearchWorkspace workspace = new SearchWorkspace(graph);
+            long[] elapsed = Benchmark.time(
+                () -> { for (int s : sources) search.search(null, s); },
+                () -> { for (int s : sources) workspace.dijkstra(graph, weights, s, -1); });
+            double total = 0, sequential = 0;
+            for (int s : sources) {
+                search.search(null, s);
+                workspace.dijkstra(graph, weights, s, -1);
+                for (int v = 0; v < graph.vertexCount(); v++) {
+                    if (search.isReached(v)) total += search.distance(v);
+                    if (workspace.isReached(v)) sequential += workspace.distance(v);
+                }
+            }
+            StdOut.printf("delta-stepping on %d threads: %.1f us per search, total %.3f%n", threads,
+                elapsed[0] / 1e3 / searches, total);
+            StdOut.printf("dijkstra: %.1f us per search, total %.3f%n", elapsed[1] / 1e3 / searches, sequential);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The DirectionOptimizingBFS class computes hop counts with a breadth-first search that switches
+ * between top-down and bottom-up steps, following Beamer, Asanovic and Patterson.
+ *
+ * A top-down step scans the edges leaving the frontier, which is cheap while the frontier is small.
+ * Once a growing frontier has more edges than the unexplored vertices, a bottom-up step instead lets
+ * every unvisited vertex look for a parent among its entering edges, testing frontier membership in
+ * a bitset. When the frontier shrinks again, the search goes back to top-down steps.
+ *
+ * Both kinds of step choose the same parent: the one a plain queue-based BFS would discover a vertex
+ * from, which is the frontier vertex earliest in queue order, and its first such edge. Bottom-up steps
+ * collect (queue position of parent, edge) keys and sort them to restore the queue order of the next
+ * level, so the path to any vertex is exactly the one SearchWorkspace.bfs and
+ * RUMaps.minimizeIntersections return. Finding that parent means scanning every entering edge rather
+ * than stopping at the first frontier vertex, which is why the switch happens later than the usual
+ * one in fourteen.
+ *
+ * Visited vertices and the frontier are bitsets and the queue is a single int array, so a search
+ * allocates nothing. An instance is not thread safe: every thread needs its own.
+ */
+public class DirectionOptimizingBFS {
+    // bottom-up steps are only tried for frontiers of at least this many vertices
+    private static final int MIN_BOTTOM_UP = 64;
+    // switch back to top-down when the frontier holds fewer than n / BETA vertices
+    private static final int BETA = 24;
+
+    private final RoutingGraph graph;
+    private final long[] visited;
+    private final long[] frontier;
+    private final int[] queue;       // every vertex discovered by the last search, in BFS order
+    private final int[] position;    // position[v] is the index of v in queue
+    private final int[] dist;
+    private final int[] predEdge;
+    private final long[] keys;
+    private int source = -1;
+    private int discovered;
+    private int bottomUpSteps;
+
+    /**
+     * Creates a search for a graph.
+     *
+     * @param graph the graph to search
+     */
+    public DirectionOptimizingBFS(RoutingGraph graph) {
+        int n = graph.vertexCount();
+        this.graph = graph;
+        visited = new long[(n + 63) >>> 6];
+        frontier = new long[(n + 63) >>> 6];
+        queue = new int[n];
+        position = new int[n];
+        dist = new int[n];
+        predEdge = new int[n];
+        keys = new long[n];
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Searches from source until target is discovered, or over the whole graph if target is negative.
+     *
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @param target the target vertex, or -1 to search the whole graph
+     * @return the number of edges from source to target, or -1 if target is unreachable or negative
+     */
+    public int search(ClosureMask mask, int source, int target) {
+        if (mask != null && mask.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        Arrays.fill(visited, 0);
+        this.source = source;
+        discovered = 0;
+        bottomUpSteps = 0;
+        if (mask != null && mask.isVertexClosed(source)) return -1;
+        long[] closed = mask == null ? null : mask.bits();
+        int n = graph.vertexCount();
+
+        visit(source, -1, 0);
+        long unexplored = graph.edgeCount() - graph.degree(source);
+        long frontierEdges = graph.degree(source);
+        boolean bottomUp = false;
+        int levelStart = 0, levelEnd = discovered, previousSize = 0;
+        for (int depth = 1; levelStart < levelEnd && (target < 0 || !isReached(target)); depth++) {
+            int size = levelEnd - levelStart;
+            boolean growing = size > previousSize;
+            if (!bottomUp && growing && size >= MIN_BOTTOM_UP && frontierEdges > unexplored) bottomUp = true;
+            else if (bottomUp && !growing && size < n / BETA) bottomUp = false;
+            previousSize = size;
+
+            if (bottomUp) {
+                bottomUpStep(closed, levelStart, levelEnd, depth);
+                bottomUpSteps++;
+            } else {
+                topDownStep(closed, levelStart, levelEnd, depth);
+            }
+
+            frontierEdges = 0;
+            for (int i = levelEnd; i < discovered; i++) frontierEdges += graph.degree(queue[i]);
+            unexplored -= frontierEdges;
+            levelStart = levelEnd;
+            levelEnd = discovered;
+        }
+        return target >= 0 && isReached(target) ? dist[target] : -1;
+    }
+
+    private void visit(int v, int edge, int depth) {
+        visited[v >>> 6] |= 1L << v;
+        position[v] = discovered;
+        queue[discovered++] = v;
+        dist[v] = depth;
+        predEdge[v] = edge;
+    }
+
+    private void topDownStep(long[] closed, int levelStart, int levelEnd, int depth) {
+        for (int i = levelStart; i < levelEnd; i++) {
+            int u = queue[i];
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if ((visited[w >>> 6] & (1L << w)) == 0) visit(w, e, depth);
+            }
+        }
+    }
+
+    private void bottomUpStep(long[] closed, int levelStart, int levelEnd, int depth) {
+        Arrays.fill(frontier, 0);
+        for (int i = levelStart; i < levelEnd; i++) {
+            int u = queue[i];
+            frontier[u >>> 6] |= 1L << u;
+        }
+        int n = graph.vertexCount();
+        int found = 0;
+        for (int word = 0; word < visited.length; word++) {
+            long unvisited = ~visited[word];
+            if (word == visited.length - 1 && (n & 63) != 0) unvisited &= (1L << n) - 1;
+            while (unvisited != 0) {
+                int w = (word << 6) | Long.numberOfTrailingZeros(unvisited);
+                unvisited &= unvisited - 1;
+                long best = Long.MAX_VALUE;
+                for (int j = graph.firstInEdge(w), end = graph.endInEdge(w); j < end; j++) {
+                    int e = graph.inEdge(j);
+                    int u = graph.tail(e);
+                    if ((frontier[u >>> 6] & (1L << u)) == 0) continue;
+                    if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                    long key = ((long) position[u] << 32) | e;
+                    if (key < best) best = key;
+                }
+                if (best != Long.MAX_VALUE) keys[found++] = best;
+            }
+        }
+        // discover in the order a queue-based step would have
+        Arrays.sort(keys, 0, found);
+        for (int k = 0; k < found; k++) {
+            int e = (int) keys[k];
+            visit(graph.head(e), e, depth);
+        }
+    }
+
+    public boolean isReached(int v) {
+        return (visited[v >>> 6] & (1L << v)) != 0;
+    }
+
+    /**
+     * Returns the number of edges from the source to v found by the last search.
+     *
+     * @return the hop count, or -1 if v was not reached
+     */
+    public int distance(int v) {
+        return isReached(v) ? dist[v] : -1;
+    }
+
+    /**
+     * Returns the edge v was discovered by in the last search, or -1 for the source or an unreached vertex.
+     */
+    public int predEdge(int v) {
+        return isReached(v) ? predEdge[v] : -1;
+    }
+
+    /**
+     * Returns the number of vertices discovered by the last search.
+     */
+    public int reachedCount() {
+        return discovered;
+    }
+
+    /**
+     * Returns the number of bottom-up steps the last search took.
+     */
+    public int bottomUpSteps() {
+        return bottomUpSteps;
+    }
+
+    /**
+     * Returns the path to target found by the last search.
+     *
+     * @param target the end of the path
+     * @return the intersections from the source to target, or an empty list if there is no such path
+     */
+    public ArrayList<Intersection> path(int target) {
+        ArrayList<Intersection> path = new ArrayList<>();
+        if (predEdge(target) == -1) return path;
+        for (int v = target; v != -1; v = predEdge[v] == -1 ? -1 : graph.tail(predEdge[v])) path.add(graph.intersection(v));
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Returns the path to target found by the last search as a compact route.
+     *
+     * @param target the end of the route
+     * @param weights the traffic of every edge, for the route's totals
+     * @return the route, which has no edges if target was not reached or is the source
+     */
+    public Route route(int target, double[] weights) {
+        int count = 0;
+        for (int e = predEdge(target); e != -1; e = predEdge[graph.tail(e)]) count++;
+        int[] edges = new int[count];
+        for (int e = predEdge(target); e != -1; e = predEdge[graph.tail(e)]) edges[--count] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    /**
+     * Times one-to-all searches from every vertex of a map against SearchWorkspace.bfs.
+     * Usage: DirectionOptimizingBFS mapFile [rounds]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        RoutingGraph graph = maps.getRoutingGraph();
+        int n = graph.vertexCount();
+        DirectionOptimizingBFS bfs = new DirectionOptimizingBFS(graph);
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+
+        long[] elapsed = Benchmark.time(
+            () -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (int s = 0; s < n; s++) bfs.search(null, s, -1);
+                }
+            },
+            () -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (int s = 0; s < n; s++) workspace.bfs(graph, null, s, -1);
+                }
+            });
+        long reached = 0, bottomUp = 0, queueReached = 0;
+        for (int s = 0; s < n; s++) {
+            bfs.search(null, s, -1);
+            reached += bfs.reachedCount();
+            bottomUp += bfs.bottomUpSteps();
+            workspace.bfs(graph, null, s, -1);
+            queueReached += workspace.settledCount();
+        }
+        StdOut.printf("direction-optimizing: %.1f us per search, %d reached, %d bottom-up steps%n",
+            elapsed[0] / 1e3 / (rounds * n), rounds * reached, rounds * bottomUp);
+        StdOut.printf("queue-based: %.1f us per search, %d reached%n", elapsed[1] / 1e3 / (rounds * n), rounds * queueReached);
+    }
+}
@@ -0,0 +1,267 @@
+package rumaps;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * The DistanceMatrix class holds the least traffic cost and the number of blocks on that route for
+ * every pair of a list of sources and a list of targets, as dense row-major arrays.
+ *
+ * The matrix is computed with the bucket many-to-many algorithm over a ContractionHierarchy:
+ * - a backward upward search from every target leaves (target, distance, hops) in a bucket at each
+ *   vertex it settles;
+ * - a forward upward search from every source scans the buckets of the vertices it settles, and the
+ *   best sum for each target is the cost of that cell.
+ * Each search only visits the few vertices above its start in the hierarchy, so an n x n matrix costs
+ * 2n small searches and a scan of the buckets instead of n full searches. Rows are filled in parallel.
+ *
+ * A matrix can be written to and read back from a memory-mapped file, laid out as a header of four
+ * ints (magic, version, rows, columns) followed by the costs as doubles and the hops as ints, all
+ * little-endian.
+ */
+public class DistanceMatrix {
+    private static final int MAGIC = 0x524d444d; // "RMDM"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 16;
+
+    private final int[] sources;
+    private final int[] targets;
+    private final double[] costs;
+    private final int[] hops;
+
+    /**
+     * Computes the matrix between every source and every target.
+     *
+     * @param hierarchy the contraction hierarchy of the graph and weights to use
+     * @param sources the source vertices, one per row
+     * @param targets the target vertices, one per column
+     */
+    public DistanceMatrix(ContractionHierarchy hierarchy, int[] sources, int[] targets) {
+        int n = hierarchy.getGraph().vertexCount();
+        for (int v : sources) {
+            if (v < 0 || v >= n) throw new IllegalArgumentException("Source out of range: " + v);
+        }
+        for (int v : targets) {
+            if (v < 0 || v >= n) throw new IllegalArgumentException("Target out of range: " + v);
+        }
+        this.sources = sources.clone();
+        this.targets = targets.clone();
+        int rows = sources.length, cols = targets.length;
+        this.costs = new double[rows * cols];
+        this.hops = new int[rows * cols];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        Arrays.fill(hops, -1);
+
+        // backward searches, collected as (vertex, column, distance, hops) and then bucketed by vertex
+        int entries = 0;
+        int[] bucketVertex = new int[Math.max(16, cols * 8)];
+        int[] bucketColumn = new int[bucketVertex.length];
+        double[] bucketCost = new double[bucketVertex.length];
+        int[] bucketHops = new int[bucketVertex.length];
+        SearchWorkspace workspace = new SearchWorkspace(n);
+        int[] hopCount = new int[n];
+        for (int j = 0; j < cols; j++) {
+            int settled = hierarchy.upwardSearch(this.targets[j], false, workspace);
+            for (int i = 0; i < settled; i++) {
+                int v = workspace.settled(i);
+                int e = workspace.predEdge(v);
+                hopCount[v] = e < 0 ? 0 : hopCount[hierarchy.opposite(e, v)] + hierarchy.hops(e);
+                if (entries == bucketVertex.length) {
+                    int capacity = entries * 2;
+                    bucketVertex = Arrays.copyOf(bucketVertex, capacity);
+                    bucketColumn = Arrays.copyOf(bucketColumn, capacity);
+                    bucketCost = Arrays.copyOf(bucketCost, capacity);
+                    bucketHops = Arrays.copyOf(bucketHops, capacity);
+                }
+                bucketVertex[entries] = v;
+                bucketColumn[entries] = j;
+                bucketCost[entries] = workspace.distance(v);
+                bucketHops[entries] = hopCount[v];
+                entries++;
+            }
+        }
+        int[] bucketFirst = new int[n + 1];
+        for (int k = 0; k < entries; k++) bucketFirst[bucketVertex[k] + 1]++;
+        for (int v = 0; v < n; v++) bucketFirst[v + 1] += bucketFirst[v];
+        int[] fill = Arrays.copyOf(bucketFirst, n);
+        int[] column = new int[entries];
+        double[] bucketDist = new double[entries];
+        int[] bucketHop = new int[entries];
+        for (int k = 0; k < entries; k++) {
+            int slot = fill[bucketVertex[k]]++;
+            column[slot] = bucketColumn[k];
+            bucketDist[slot] = bucketCost[k];
+            bucketHop[slot] = bucketHops[k];
+        }
+
+        // forward searches, one row each
+        ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(n));
+        ThreadLocal<int[]> hopCounts = ThreadLocal.withInitial(() -> new int[n]);
+        IntStream.range(0, rows).parallel().forEach(i -> {
+            SearchWorkspace forward = workspaces.get();
+            int[] forwardHops = hopCounts.get();
+            int settled = hierarchy.upwardSearch(this.sources[i], true, forward);
+            int row = i * cols;
+            for (int k = 0; k < settled; k++) {
+                int v = forward.settled(k);
+                int e = forward.predEdge(v);
+                forwardHops[v] = e < 0 ? 0 : forwardHops[hierarchy.opposite(e, v)] + hierarchy.hops(e);
+                double dv = forward.distance(v);
+                for (int b = bucketFirst[v]; b < bucketFirst[v + 1]; b++) {
+                    int cell = row + column[b];
+                    double d = dv + bucketDist[b];
+                    if (d < costs[cell]) {
+                        costs[cell] = d;
+                        hops[cell] = forwardHops[v] + bucketHop[b];
+                    }
+                }
+            }
+        });
+    }
+
+    private DistanceMatrix(int[] sources, int[] targets, double[] costs, int[] hops) {
+        this.sources = sources;
+        this.targets = targets;
+        this.costs = costs;
+        this.hops = hops;
+    }
+
+    /**
+     * Computes the matrix between every pair of a list of vertices.
+     *
+     * @param hierarchy the contraction hierarchy of the graph and weights to use
+     * @param vertices the vertices of both the rows and the columns
+     */
+    public DistanceMatrix(ContractionHierarchy hierarchy, int[] vertices) {
+        this(hierarchy, vertices, vertices);
+    }
+
+    public int rowCount() {
+        return sources.length;
+    }
+
+    public int columnCount() {
+        return targets.length;
+    }
+
+    public int source(int row) {
+        return sources[row];
+    }
+
+    public int target(int column) {
+        return targets[column];
+    }
+
+    /**
+     * Returns the least traffic from the source of a row to the target of a column.
+     *
+     * @return the cost, or infinity if the target is unreachable
+     */
+    public double cost(int row, int column) {
+        return costs[row * targets.length + column];
+    }
+
+    /**
+     * Returns the number of blocks on the least traffic route from the source of a row to the target
+     * of a column.
+     *
+     * @return the number of blocks, or -1 if the target is unreachable
+     */
+    public int hops(int row, int column) {
+        return hops[row * targets.length + column];
+    }
+
+    /**
+     * Returns a copy of the costs in row-major order.
+     */
+    public double[] costs() {
+        return costs.clone();
+    }
+
+    /**
+     * Returns a copy of the hop counts in row-major order.
+     */
+    public int[] hopCounts() {
+        return hops.clone();
+    }
+
+    /**
+     * Writes the matrix to a file through a memory mapping, replacing the file if it exists.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeTo(Path path) throws IOException {
+        int cells = costs.length;
+        long size = HEADER + 4L * (sources.length + targets.length) + 12L * cells;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT).putInt(sources.length).putInt(targets.length);
+            buffer.asIntBuffer().put(sources).put(targets);
+            buffer.position(buffer.position() + 4 * (sources.length + targets.length));
+            buffer.asDoubleBuffer().put(costs);
+            buffer.position(buffer.position() + 8 * cells);
+            buffer.asIntBuffer().put(hops);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Reads a matrix written by writeTo through a memory mapping.
+     *
+     * @param path the file to read
+     * @return the matrix
+     * @throws IOException if the file cannot be read or is not a distance matrix
+     */
+    public static DistanceMatrix load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT)
+                throw new IOException("Not a distance matrix: " + path);
+            int rows = buffer.getInt(), cols = buffer.getInt();
+            long cells = (long) rows * cols;
+            if (rows < 0 || cols < 0 || channel.size() != HEADER + 4L * (rows + cols) + 12L * cells)
+                throw new IOException("Truncated distance matrix: " + path);
+            int[] sources = new int[rows], targets = new int[cols];
+            double[] costs = new double[(int) cells];
+            int[] hops = new int[(int) cells];
+            buffer.asIntBuffer().get(sources).get(targets);
+            buffer.position(buffer.position() + 4 * (rows + cols));
+            buffer.asDoubleBuffer().get(costs);
+            buffer.position(buffer.position() + 8 * (int) cells);
+            buffer.asIntBuffer().get(hops);
+            return new DistanceMatrix(sources, targets, costs, hops);
+        }
+    }
+
+    /**
+     * Computes the matrix between random vertices of a map and reports the time taken.
+     * Usage: DistanceMatrix mapFile [points] [outputFile]
+     */
+    public static void main(String[] args) throws IOException {
+        RUMaps maps = Benchmark.load(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        int points = args.length > 1 ? Integer.parseInt(args[1]) : graph.vertexCount();
+
+        long begin = System.nanoTime();
+        ContractionHierarchy hierarchy = new ContractionHierarchy(graph, graph.trafficWeights());
+        long built = System.nanoTime();
+        int[] vertices = Benchmark.randomVertices(graph, points);
+        DistanceMatrix matrix = new DistanceMatrix(hierarchy, vertices);
+        long done = System.nanoTime();
+
+        StdOut.printf("hierarchy: %d shortcuts in %.1f ms%n", hierarchy.shortcutCount(), (built - begin) / 1e6);
+        StdOut.printf("matrix: %d x %d in %.1f ms%n", points, points, (done - built) / 1e6);
+        if (args.length > 2) {
+            matrix.writeTo(Paths.get(args[2]));
+            StdOut.println("written to " + args[2]);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package rumaps;
 import javax.swing.*;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
@@ -47,6 +48,26 @@ public class Driver {
     private JLabel fastestPathLabel;
     private JLabel dfsLabel;
 
+    // the reachable intersections only depend on the start, which stays selected between clicks
+    private Intersection dfsStart;
+    private ArrayList<Intersection> dfsResult;
+
+    // the travel budget is a percentage of the traffic to the farthest intersection from the start
+    private JSlider budgetSlider;
+    private JLabel budgetLabel;
+    private Intersection budgetStart;
+    private double budgetRange;
+
+    // alternative routes are only searched for while their overlay is shown
+    private JCheckBox alternativesBox;
+    private Intersection alternativesStart;
+    private Intersection alternativesEnd;
+
+    // accessibility scores are computed off the event thread and kept for the map and version they describe
+    private AccessibilityScores accessibilityScores;
+    private RUMaps accessibilityMaps;
+    private long accessibilityVersion;
+    private SwingWorker<AccessibilityScores, Void> accessibilityWorker;
 
     private Driver() {
         StdRandom.setSeed(SEED);
@@ -192,7 +213,7 @@ public class Driver {
 
     private JPanel makeMapOverlaySelect() {
         JPanel completePanel = new JPanel();
-        completePanel.setLayout(new GridLayout(3, 1));
+        completePanel.setLayout(new GridLayout(4, 1));
         JLabel overlayLabel = new JLabel("Map Settings", SwingConstants.CENTER);
         overlayLabel.setFont(new Font("Arial", Font.BOLD, 14));
         completePanel.add(overlayLabel, BorderLayout.NORTH);
@@ -241,7 +262,7 @@ public class Driver {
 
 
         JPanel panel = new JPanel();
-        panel.setLayout(new GridLayout(2,2));
+        panel.setLayout(new GridLayout(3,2));
 
         JCheckBox satellite = new JCheckBox("Satellite", true);
         JCheckBox network = new JCheckBox("Street Network", true);
@@ -249,6 +270,9 @@ public class Driver {
         minimize.setForeground(mapPanel.minimizeIntersectionPathColor);
         JCheckBox fast = new JCheckBox("Fastest Path", true);
         fast.setForeground(mapPanel.fastestPathColor);
+        JCheckBox accessibility = new JCheckBox("Accessibility", false);
+        alternativesBox = new JCheckBox("Alternative Routes", false);
+        alternativesBox.setForeground(mapPanel.alternativeRouteColors[0]);
         JPanel transparencyPanel = makeTransparencySlider();
 
         satellite.addActionListener(e -> {
@@ -262,15 +286,20 @@ public class Driver {
         network.addActionListener(e -> mapPanel.toggleNetworkVisuals(network.isSelected()));
         minimize.addActionListener(e -> mapPanel.toggleMinimizeIntersectionPath(minimize.isSelected()));
         fast.addActionListener(e -> mapPanel.toggleFastestPath(fast.isSelected()));
+        alternativesBox.addActionListener(e -> updateAlternativeRoutes());
+        accessibility.addActionListener(e -> showAccessibility(accessibility.isSelected()));
 
         panel.add(satellite);
         panel.add(network);
         panel.add(minimize);
         panel.add(fast);
+        panel.add(alternativesBox);
+        panel.add(accessibility);
 
         containerPanel.add(panel);
         completePanel.add(containerPanel);
         completePanel.add(transparencyPanel);
+        completePanel.add(makeBudgetSlider());
 
         return completePanel;
     }
@@ -292,6 +321,102 @@ public class Driver {
         return panel;
     }
 
+    // heats the map by the street each intersection reaches within a quarter of the typical range
+    private void showAccessibility(boolean show) {
+        if (accessibilityWorker != null) {
+            accessibilityWorker.cancel(false);
+            accessibilityWorker = null;
+        }
+        if (!show) {
+            mapPanel.showAccessibility(null, 0);
+            return;
+        }
+        RUMaps maps = rumaps;
+        MapPanel panel = mapPanel;
+        long version = maps.getVersionedNetwork().currentVersion();
+        if (accessibilityScores != null && accessibilityMaps == maps && accessibilityVersion == version) {
+            panel.showAccessibility(accessibilityScores, 1);
+            return;
+        }
+        accessibilityWorker = new SwingWorker<AccessibilityScores, Void>() {
+            @Override
+            protected AccessibilityScores doInBackground() {
+                double range = typicalRange(maps);
+                return maps.accessibilityScores(range / 8, range / 4, range / 2);
+            }
+
+            @Override
+            protected void done() {
+                if (accessibilityWorker != this || isCancelled()) return;
+                accessibilityWorker = null;
+                try {
+                    accessibilityScores = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Cannot compute accessibility scores: " + e.getCause());
+                    return;
+                }
+                accessibilityMaps = maps;
+                accessibilityVersion = version;
+                panel.showAccessibility(accessibilityScores, 1);
+            }
+        };
+        accessibilityWorker.execute();
+    }
+
+    // the median, over intersections spread through the network, of the traffic to the farthest
+    // intersection each one reaches
+    private static double typicalRange(RUMaps maps) {
+        Intersection[] intersections = maps.getRutgers().getIntersections();
+        int samples = Math.min(16, intersections.length);
+        double[] ranges = new double[samples];
+        int count = 0;
+        for (int i = 0; i < samples; i++) {
+            Intersection sample = intersections[(int) ((long) i * intersections.length / samples)];
+            if (sample != null) ranges[count++] = maps.isochrone(sample, Double.POSITIVE_INFINITY, null).maxCost();
+        }
+        if (count == 0) return 0;
+        Arrays.sort(ranges, 0, count);
+        return ranges[count / 2];
+    }
+
+    private JPanel makeBudgetSlider() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new FlowLayout());
+
+        budgetLabel = new JLabel("Travel Budget: off");
+        budgetSlider = new JSlider(0, 100, 0);
+        budgetSlider.addChangeListener(e -> updateIsochrone());
+
+        panel.add(budgetLabel);
+        panel.add(budgetSlider);
+        return panel;
+    }
+
+    // shades what can be reached from the selected start within the budget on the slider
+    private void updateIsochrone() {
+        Intersection start = budgetStart;
+        if (start == null || budgetSlider.getValue() == 0) {
+            budgetLabel.setText(budgetSlider.getValue() == 0 ? "Travel Budget: off" : "Travel Budget: " + budgetSlider.getValue() + "%");
+            mapPanel.showIsochrone(null);
+            return;
+        }
+        double budget = budgetRange * budgetSlider.getValue() / 100.0;
+        budgetLabel.setText(String.format("Travel Budget: %.1f", budget));
+        mapPanel.showIsochrone(rumaps.isochrone(start, budget, null));
+    }
+
+    // highlights the alternatives to the fastest path between the selected intersections if the overlay is on
+    private void updateAlternativeRoutes() {
+        mapPanel.toggleAlternativeRoutes(alternativesBox.isSelected());
+        if (!alternativesBox.isSelected() || alternativesStart == null || alternativesEnd == null) {
+            mapPanel.highlightAlternativeRoutes(new ArrayList<>());
+            return;
+        }
+        // the first route is the fastest path, which is already highlighted
+        ArrayList<Route> alternativeRoutes = rumaps.alternativeRoutes(alternativesStart, alternativesEnd, 1 + mapPanel.alternativeRouteColors.length, null);
+        mapPanel.highlightAlternativeRoutes(alternativeRoutes.isEmpty() ? alternativeRoutes : alternativeRoutes.subList(1, alternativeRoutes.size()));
+    }
+
     public void updateStreetInfo(Block block) {
         if (block == null) {
             streetInfoLabel.setText(defaultStreetInfoString);
@@ -312,7 +437,22 @@ public class Driver {
         }
     }
 
+    private ArrayList<Intersection> reachableIntersections(Intersection start) {
+        if (start != dfsStart) {
+            dfsResult = rumaps.reachableIntersections(start);
+            dfsStart = start;
+        }
+        return dfsResult;
+    }
+
     public void updatePathInfo(Intersection start, Intersection end) {
+        if (start != budgetStart) {
+            budgetStart = start;
+            budgetRange = start == null ? 0 : rumaps.isochrone(start, Double.POSITIVE_INFINITY, null).maxCost();
+            updateIsochrone();
+        }
+        alternativesStart = start;
+        alternativesEnd = end;
         if (start == null && end == null) {
             defaultBlockLengthValue = "N/A";
             defaultBlockTrafficFactorValue = "N/A";
@@ -332,13 +472,14 @@ public class Driver {
 
             mapPanel.highlightMinimizeIntersectionPath(new ArrayList<>());
             mapPanel.highlightedFastestPath(new ArrayList<>());
+            mapPanel.highlightAlternativeRoutes(new ArrayList<>());
         } else if (start != null && end == null) {
             defaultBlockLengthValue = "N/A";
             defaultBlockTrafficFactorValue = "N/A";
             defaultBlockTrafficValue = "N/A";
             updateStreetInfo(null);
 
-            ArrayList<Intersection> dfsPath = rumaps.reachableIntersections(start);
+            ArrayList<Intersection> dfsPath = reachableIntersections(start);
             String[] formattedDfsPaths = formatDFSPath(dfsPath);
             dfsLabel.setText("<html><b>Reachable Intersections (DFS):</b>  " + formattedDfsPaths[0]);
             dfsLabel.setToolTipText(String.format("<html><span style=\"color:rgb(%s, %s, %s)\"> %s",
@@ -361,9 +502,10 @@ public class Driver {
 
             mapPanel.highlightMinimizeIntersectionPath(new ArrayList<>());
             mapPanel.highlightedFastestPath(new ArrayList<>());
+            mapPanel.highlightAlternativeRoutes(new ArrayList<>());
         }
         else {
-            ArrayList<Intersection> dfsPath = rumaps.reachableIntersections(start);
+            ArrayList<Intersection> dfsPath = reachableIntersections(start);
             ArrayList<Intersection> minPath = rumaps.minimizeIntersections(start, end);
             ArrayList<Intersection> fastPath = rumaps.fastestPath(start, end);
 
@@ -441,6 +583,8 @@ public class Driver {
     
                 mapPanel.highlightMinimizeIntersectionPath(minPath);
                 mapPanel.highlightedFastestPath(fastPath);
+
+                updateAlternativeRoutes();
         }
     }
 
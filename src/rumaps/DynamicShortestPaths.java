@@ -0,0 +1,407 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The DynamicShortestPaths class keeps the shortest path trees of a set of registered routes up to date
+ * as edge weights and closures change, without recomputing them from scratch.
+ *
+ * Every distinct route start gets a full shortest path tree. When a batch of edges changes, each tree
+ * is repaired in the style of Ramalingam and Reps:
+ * - Increases (including closures) on tree edges invalidate the subtree below the edge. Only those
+ *   vertices are reset, then re-seeded from their unaffected in-neighbors.
+ * - Decreases (including reopenings) seed the head of the edge if it becomes shorter through it.
+ * - A Dijkstra pass from the seeds then settles only the vertices whose distance actually changes.
+ * Increases on edges outside the tree change nothing. The work is proportional to the number of
+ * vertices whose distance or parent changes and their edges, not to the size of the graph.
+ *
+ * After each update the routes whose cost or path changed are reported. Closed edges are treated as
+ * having infinite weight. A RouteCache attached to a VersionedNetwork uses one to decide exactly when
+ * the routes it tracks have to be dropped.
+ */
+public class DynamicShortestPaths {
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private long version = -1;
+
+    private final ArrayList<Tree> trees = new ArrayList<>();
+    private final HashMap<Integer, Tree> treeOf = new HashMap<>();
+    private final ArrayList<RegisteredRoute> routes = new ArrayList<>();
+
+    // scratch space shared by the repairs of all trees
+    private final int[] heap;
+    private final int[] heapPos;
+    private int heapSize;
+    private final int[] affected;
+    private final int[] mark;
+    private int markStamp;
+
+    private static class Tree {
+        private final int source;
+        private final double[] dist;
+        private final int[] predEdge;
+        private final int[] touched;   // touched[v] == touchStamp if v changed in the last update
+        private int touchStamp;
+        private final ArrayList<RegisteredRoute> routes = new ArrayList<>();
+
+        Tree(int source, int n) {
+            this.source = source;
+            this.dist = new double[n];
+            this.predEdge = new int[n];
+            this.touched = new int[n];
+        }
+    }
+
+    private static class RegisteredRoute {
+        private final int index;
+        private final int target;
+        private int[] edges;
+        private double cost;
+
+        RegisteredRoute(int index, int target) {
+            this.index = index;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Creates the structure over the given weights, with nothing closed.
+     *
+     * @param graph the graph to route on
+     * @param weights the initial weight of every edge; the array is copied
+     */
+    public DynamicShortestPaths(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        this.graph = graph;
+        this.weights = weights.clone();
+
+        int n = graph.vertexCount();
+        heap = new int[n];
+        heapPos = new int[n];
+        Arrays.fill(heapPos, -1);
+        affected = new int[n];
+        mark = new int[n];
+    }
+
+    /**
+     * Creates the structure over the weights and closures of a network version.
+     *
+     * @param version the version to start from
+     */
+    public DynamicShortestPaths(NetworkVersion version) {
+        this(version.getGraph(), effectiveWeights(version));
+        this.version = version.getVersion();
+    }
+
+    private static double[] effectiveWeights(NetworkVersion version) {
+        double[] w = version.getWeights().clone();
+        ClosureMask closures = version.getClosures();
+        for (int e = 0; e < w.length; e++) {
+            if (closures.isEdgeClosed(e)) w[e] = Double.POSITIVE_INFINITY;
+        }
+        return w;
+    }
+
+    /**
+     * Registers a route. The first route from a start computes that start's shortest path tree.
+     *
+     * @param start the starting intersection
+     * @param end the destination intersection
+     * @return the index of the route
+     */
+    public int addRoute(Intersection start, Intersection end) {
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        return addRoute(s, t);
+    }
+
+    /**
+     * Registers a route between two vertices.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the index of the route
+     */
+    public int addRoute(int s, int t) {
+        int n = graph.vertexCount();
+        if (s < 0 || s >= n || t < 0 || t >= n) throw new IllegalArgumentException("Vertex out of range");
+        Tree tree = treeOf.get(s);
+        if (tree == null) {
+            tree = new Tree(s, graph.vertexCount());
+            build(tree);
+            trees.add(tree);
+            treeOf.put(s, tree);
+        }
+        RegisteredRoute route = new RegisteredRoute(routes.size(), t);
+        route.edges = pathEdges(tree, t);
+        route.cost = tree.dist[t];
+        tree.routes.add(route);
+        routes.add(route);
+        return route.index;
+    }
+
+    private void build(Tree tree) {
+        Arrays.fill(tree.dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(tree.predEdge, -1);
+        tree.dist[tree.source] = 0.0;
+        push(tree, tree.source);
+        propagate(tree);
+    }
+
+    public int routeCount() {
+        return routes.size();
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the current cost of a route.
+     *
+     * @return the total weight of the route's shortest path, or infinity if the end is unreachable
+     */
+    public double cost(int route) {
+        return routes.get(route).cost;
+    }
+
+    /**
+     * Returns the current shortest path of a route.
+     *
+     * @return the intersections from start to end, or an empty list if there is no path
+     */
+    public ArrayList<Intersection> path(int route) {
+        RegisteredRoute r = routes.get(route);
+        ArrayList<Intersection> path = new ArrayList<>();
+        if (r.edges.length == 0) return path;
+        path.add(graph.intersection(graph.tail(r.edges[0])));
+        for (int e : r.edges) path.add(graph.intersection(graph.head(e)));
+        return path;
+    }
+
+    /**
+     * Brings the trees up to date with a newer network version of the same graph.
+     *
+     * @param next the version to move to
+     * @return the indices of the routes whose cost or path changed, in increasing order
+     */
+    public int[] apply(NetworkVersion next) {
+        if (next.getGraph() != graph) throw new IllegalArgumentException("Version has a different topology");
+        int[] changed = next.getChangedEdges();
+        if (changed == null || next.getVersion() != version + 1) {
+            // not the direct successor, so compare every edge
+            double[] w = effectiveWeights(next);
+            int count = 0;
+            int[] all = new int[w.length];
+            for (int e = 0; e < w.length; e++) {
+                if (w[e] != weights[e]) all[count++] = e;
+            }
+            changed = Arrays.copyOf(all, count);
+        }
+        double[] newWeights = new double[changed.length];
+        ClosureMask closures = next.getClosures();
+        for (int i = 0; i < changed.length; i++) {
+            int e = changed[i];
+            newWeights[i] = closures.isEdgeClosed(e) ? Double.POSITIVE_INFINITY : next.getWeight(e);
+        }
+        version = next.getVersion();
+        return update(changed, newWeights);
+    }
+
+    /**
+     * Changes the weights of some edges and repairs every tree.
+     *
+     * @param edges the ids of the edges that change
+     * @param newWeights the new weight of each edge, or infinity to close it
+     * @return the indices of the routes whose cost or path changed, in increasing order
+     */
+    public int[] update(int[] edges, double[] newWeights) {
+        if (edges.length != newWeights.length) throw new IllegalArgumentException("Expected one weight per edge");
+        double[] oldWeights = new double[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            if (!(newWeights[i] >= 0)) throw new IllegalArgumentException("Weight must be non-negative");
+            oldWeights[i] = weights[edges[i]];
+            weights[edges[i]] = newWeights[i];
+        }
+
+        BitSet changedRoutes = new BitSet();
+        for (Tree tree : trees) {
+            repair(tree, edges, oldWeights);
+            for (RegisteredRoute route : tree.routes) {
+                if (routeChanged(tree, route)) changedRoutes.set(route.index);
+            }
+        }
+        return changedRoutes.stream().toArray();
+    }
+
+    private void repair(Tree tree, int[] edges, double[] oldWeights) {
+        tree.touchStamp++;
+        markStamp++;
+
+        // collect the subtrees hanging below edges that got more expensive
+        int affectedCount = 0;
+        for (int i = 0; i < edges.length; i++) {
+            int e = edges[i];
+            int v = graph.head(e);
+            if (weights[e] > oldWeights[i] && tree.predEdge[v] == e && mark[v] != markStamp) {
+                affectedCount = collectSubtree(tree, v, affectedCount);
+            }
+        }
+        for (int i = 0; i < affectedCount; i++) {
+            int v = affected[i];
+            tree.dist[v] = Double.POSITIVE_INFINITY;
+            tree.predEdge[v] = -1;
+            tree.touched[v] = tree.touchStamp;
+        }
+        // re-seed the invalidated vertices from the part of the tree that is still valid
+        for (int i = 0; i < affectedCount; i++) {
+            int v = affected[i];
+            for (int j = graph.firstInEdge(v); j < graph.endInEdge(v); j++) {
+                int e = graph.inEdge(j);
+                int u = graph.tail(e);
+                if (mark[u] == markStamp) continue;
+                double alt = tree.dist[u] + weights[e];
+                if (alt < tree.dist[v]) {
+                    tree.dist[v] = alt;
+                    tree.predEdge[v] = e;
+                }
+            }
+            if (tree.dist[v] < Double.POSITIVE_INFINITY) push(tree, v);
+        }
+        // edges that got cheaper may shorten the path to their head
+        for (int i = 0; i < edges.length; i++) {
+            int e = edges[i];
+            if (weights[e] >= oldWeights[i]) continue;
+            int u = graph.tail(e);
+            int v = graph.head(e);
+            double alt = tree.dist[u] + weights[e];
+            if (alt < tree.dist[v]) {
+                tree.dist[v] = alt;
+                tree.predEdge[v] = e;
+                tree.touched[v] = tree.touchStamp;
+                push(tree, v);
+            }
+        }
+        propagate(tree);
+    }
+
+    /**
+     * Marks root and all its descendants in the tree and appends them to the affected list.
+     */
+    private int collectSubtree(Tree tree, int root, int count) {
+        int first = count;
+        mark[root] = markStamp;
+        affected[count++] = root;
+        while (first < count) {
+            int v = affected[first++];
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e++) {
+                int w = graph.head(e);
+                if (tree.predEdge[w] == e && mark[w] != markStamp) {
+                    mark[w] = markStamp;
+                    affected[count++] = w;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Dijkstra's algorithm from the queued vertices, relaxing only edges that improve a distance.
+     */
+    private void propagate(Tree tree) {
+        double[] dist = tree.dist;
+        while (heapSize > 0) {
+            int v = poll(dist);
+            double dv = dist[v];
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e++) {
+                int w = graph.head(e);
+                double alt = dv + weights[e];
+                if (alt < dist[w]) {
+                    dist[w] = alt;
+                    tree.predEdge[w] = e;
+                    tree.touched[w] = tree.touchStamp;
+                    push(tree, w);
+                }
+            }
+        }
+    }
+
+    private boolean routeChanged(Tree tree, RegisteredRoute route) {
+        boolean touched = false;
+        for (int v = route.target; v != tree.source && v != -1 && !touched; ) {
+            touched = tree.touched[v] == tree.touchStamp;
+            int e = tree.predEdge[v];
+            v = e == -1 ? -1 : graph.tail(e);
+        }
+        // a path that changed has at least one vertex whose parent changed
+        if (!touched) return false;
+
+        int[] edges = pathEdges(tree, route.target);
+        double cost = tree.dist[route.target];
+        boolean changed = cost != route.cost || !Arrays.equals(edges, route.edges);
+        route.edges = edges;
+        route.cost = cost;
+        return changed;
+    }
+
+    private int[] pathEdges(Tree tree, int target) {
+        if (tree.dist[target] == Double.POSITIVE_INFINITY) return new int[0];
+        int count = 0;
+        for (int e = tree.predEdge[target]; e != -1; e = tree.predEdge[graph.tail(e)]) count++;
+        int[] edges = new int[count];
+        for (int e = tree.predEdge[target]; e != -1; e = tree.predEdge[graph.tail(e)]) edges[--count] = e;
+        return edges;
+    }
+
+    // indexed binary heap over the dist array of the tree being repaired
+
+    private void push(Tree tree, int v) {
+        if (heapPos[v] == -1) {
+            heapPos[v] = heapSize;
+            heap[heapSize++] = v;
+        }
+        siftUp(tree.dist, heapPos[v]);
+    }
+
+    private int poll(double[] dist) {
+        int v = heap[0];
+        heapPos[v] = -1;
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            heapPos[last] = 0;
+            siftDown(dist, 0);
+        }
+        return v;
+    }
+
+    private void siftUp(double[] dist, int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (dist[p] <= dist[v]) break;
+            heap[i] = p;
+            heapPos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+
+    private void siftDown(double[] dist, int i) {
+        int v = heap[i];
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && dist[heap[child + 1]] < dist[heap[child]]) child++;
+            int c = heap[child];
+            if (dist[v] <= dist[c]) break;
+            heap[i] = c;
+            heapPos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+}
@@ -0,0 +1,435 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The EngineCheck class compares every routing engine with SearchWorkspace, the plain Dijkstra and
+ * breadth-first searches behind RUMaps.fastestPath and RUMaps.minimizeIntersections.
+ *
+ * The engines are run on random (start, end) pairs of a map, once with everything open and, where they
+ * accept closures, once more with a few random blocks and intersections closed. Every least traffic
+ * cost must equal the one the search finds to within a relative 1e-9, and every hop count must equal
+ * it exactly. Every route must run from the start to the end and cost that much, and an engine whose
+ * documentation promises the very paths RUMaps returns, such as AllPairsTable, BatchRouter or
+ * DirectionOptimizingBFS, must return the same edges.
+ *
+ * The first disagreement throws an IllegalStateException naming the engine and the query, so a run
+ * that ends normally found none.
+ */
+public class EngineCheck {
+    private static final double TOLERANCE = 1e-9;
+    // engines that compute every vertex at once are checked from the first few sources only
+    private static final int TREE_SOURCES = 100;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final int[] sources;
+    private final int[] targets;
+    private final int[] closedEdges;
+    private final ClosureMask edgeClosures;   // only the closed edges
+    private final ClosureMask closures;       // the closed edges and intersections
+    private final SearchWorkspace workspace;
+
+    /**
+     * Prepares the checks of a graph.
+     *
+     * @param graph the graph to route on
+     * @param weights the traffic of every edge
+     * @param sources the start of every pair
+     * @param targets the end of every pair
+     * @param closedEdges the edges to close in the checks with closures
+     * @param closedVertices the vertices to close as well, except in the checks that only close edges
+     */
+    public EngineCheck(RoutingGraph graph, double[] weights, int[] sources, int[] targets, int[] closedEdges, int[] closedVertices) {
+        if (sources.length != targets.length) throw new IllegalArgumentException("Expected one target per source");
+        this.graph = graph;
+        this.weights = weights;
+        this.sources = sources;
+        this.targets = targets;
+        this.closedEdges = closedEdges.clone();
+        this.edgeClosures = new ClosureMask(graph).closeAll(closedEdges, new int[0]);
+        this.closures = edgeClosures.closeAll(new int[0], closedVertices);
+        this.workspace = new SearchWorkspace(graph);
+    }
+
+    /**
+     * Runs every check, printing one line for each engine that passes.
+     *
+     * @throws IllegalStateException at the first disagreement
+     */
+    public void checkAll() {
+        checkOracle("AllPairsTable", new AllPairsTable(graph, weights), true);
+        ContractionHierarchy hierarchy = new ContractionHierarchy(graph, weights);
+        checkOracle("ContractionHierarchy", hierarchy, false);
+        checkOracle("ContractionHierarchy", new ContractionHierarchy(graph, weights, closures), closures, false);
+        checkOracle("HubLabels", new HubLabels(hierarchy), false);
+        checkOracle("ArcFlags", new ArcFlags(graph, weights), false);
+        checkOracle("ChainContraction", new ChainContraction(graph, weights), false);
+        CustomizableRouter router = new CustomizableRouter(graph);
+        router.customize(weights);
+        checkOracle("CustomizableRouter", router, false);
+        checkDistanceMatrix(hierarchy);
+        for (ClosureMask mask : new ClosureMask[] {null, closures}) {
+            checkBatchRouter(mask);
+            checkTurnCostGraph(mask);
+            checkTrafficProfiles(mask);
+            checkKShortestPaths(mask);
+            checkAlternativeRoutes(mask);
+            checkParetoRouter(mask);
+            checkShortestPathTree(mask);
+            checkIsochrone(mask);
+            checkDeltaStepping(mask);
+            checkParallelBFS(mask);
+            checkDirectionOptimizingBFS(mask);
+            checkMultiSourceBFS(mask);
+        }
+        checkDynamicShortestPaths();
+        checkVertexOrdering();
+    }
+
+    private void checkOracle(String engine, PathOracle oracle, boolean samePaths) {
+        checkOracle(engine, oracle, null, samePaths);
+    }
+
+    private void checkOracle(String engine, PathOracle oracle, ClosureMask mask, boolean samePaths) {
+        for (int q = 0; q < sources.length; q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            checkCost(engine, mask, s, t, workspace.distance(t), oracle.distance(s, t));
+            checkRoute(engine, mask, s, t, expected, oracle.route(s, t), samePaths);
+        }
+        passed(engine, mask, sources.length + " pairs");
+    }
+
+    private void checkDistanceMatrix(ContractionHierarchy hierarchy) {
+        int[] vertices = Arrays.copyOf(sources, Math.min(sources.length, TREE_SOURCES));
+        DistanceMatrix matrix = new DistanceMatrix(hierarchy, vertices);
+        for (int i = 0; i < vertices.length; i++) {
+            workspace.dijkstra(graph, weights, vertices[i], -1);
+            for (int j = 0; j < vertices.length; j++) {
+                checkCost("DistanceMatrix", null, vertices[i], vertices[j], workspace.distance(vertices[j]), matrix.cost(i, j));
+            }
+        }
+        passed("DistanceMatrix", null, vertices.length + " x " + vertices.length + " cells");
+    }
+
+    private void checkBatchRouter(ClosureMask mask) {
+        BatchRouter router = new BatchRouter(graph, weights, mask);
+        BatchResult traffic = router.route(sources, targets, RouteMetric.TRAFFIC, true);
+        BatchResult hops = router.route(sources, targets, RouteMetric.INTERSECTIONS, true);
+        for (int q = 0; q < sources.length; q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            checkCost("BatchRouter", mask, s, t, workspace.distance(t), traffic.cost(q));
+            checkRoute("BatchRouter", mask, s, t, expected, new Route(graph, s, traffic.pathEdges(q), weights), true);
+            expected = fewestBlocks(mask, s, t);
+            checkHops("BatchRouter", mask, s, t, hopCount(t), hops.hops(q));
+            checkRoute("BatchRouter", mask, s, t, expected, new Route(graph, s, hops.pathEdges(q), weights), true);
+        }
+        passed("BatchRouter", mask, sources.length + " pairs");
+    }
+
+    private void checkTurnCostGraph(ClosureMask mask) {
+        // with free turns the search over edges must find the costs of the search over intersections
+        TurnCostGraph turns = new TurnCostGraph(graph, weights, 0, 0, null);
+        for (int q = 0; q < sources.length; q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            checkCost("TurnCostGraph", mask, s, t, workspace.distance(t), turns.distance(mask, s, t));
+            checkRoute("TurnCostGraph", mask, s, t, expected, turns.route(mask, s, t), false);
+        }
+        passed("TurnCostGraph", mask, sources.length + " pairs");
+    }
+
+    private void checkTrafficProfiles(ClosureMask mask) {
+        // with the flat profile only, leaving at midnight, a minute is a unit of traffic
+        TrafficProfiles profiles = new TrafficProfiles(graph, weights, 1);
+        for (int q = 0; q < sources.length; q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            checkCost("TrafficProfiles", mask, s, t, workspace.distance(t), profiles.earliestArrival(mask, s, t, 0));
+            checkRoute("TrafficProfiles", mask, s, t, expected, profiles.route(mask, s, t, 0), true);
+        }
+        passed("TrafficProfiles", mask, sources.length + " pairs");
+    }
+
+    private void checkKShortestPaths(ClosureMask mask) {
+        KShortestPaths paths = new KShortestPaths(graph, weights);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            ArrayList<Route> routes = paths.find(mask, s, t, 3);
+            checkRoutes("KShortestPaths", mask, s, t, expected, routes);
+            for (int i = 1; i < routes.size(); i++) {
+                if (routes.get(i).getTraffic() < routes.get(i - 1).getTraffic())
+                    fail("KShortestPaths", mask, s, t, "route " + i + " is cheaper than route " + (i - 1));
+                if (routes.indexOf(routes.get(i)) != i) fail("KShortestPaths", mask, s, t, "route " + i + " is repeated");
+            }
+        }
+        passed("KShortestPaths", mask, queries + " pairs");
+    }
+
+    private void checkAlternativeRoutes(ClosureMask mask) {
+        AlternativeRoutes alternatives = new AlternativeRoutes(graph, weights);
+        for (int q = 0; q < sources.length; q++) {
+            int s = sources[q], t = targets[q];
+            checkRoutes("AlternativeRoutes", mask, s, t, fastest(mask, s, t), alternatives.find(mask, s, t, 3));
+        }
+        passed("AlternativeRoutes", mask, sources.length + " pairs");
+    }
+
+    private void checkParetoRouter(ClosureMask mask) {
+        ParetoRouter router = new ParetoRouter(graph, weights);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q], t = targets[q];
+            ArrayList<Route> front = router.front(mask, s, t);
+            // the front runs from the route with the fewest blocks to the one with the least traffic
+            Route expected = fewestBlocks(mask, s, t);
+            if (front.isEmpty() != expected.isEmpty()) fail("ParetoRouter", mask, s, t, front.size() + " routes, expected " + expected);
+            if (front.isEmpty()) continue;
+            checkHops("ParetoRouter", mask, s, t, hopCount(t), front.get(0).edgeCount());
+            checkRoutes("ParetoRouter", mask, s, t, fastest(mask, s, t), Collections.singletonList(front.get(front.size() - 1)));
+            for (Route route : front) checkEnds("ParetoRouter", mask, s, t, route);
+        }
+        passed("ParetoRouter", mask, queries + " pairs");
+    }
+
+    private void checkShortestPathTree(ClosureMask mask) {
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        SearchWorkspace treeWorkspace = new SearchWorkspace(graph);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q];
+            ShortestPathTree tree = new ShortestPathTree(graph, weights, mask, s, treeWorkspace);
+            workspace.dijkstra(graph, weights, mask, s, -1);
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                if (!tree.trafficPath(v).equals(workspace.path(graph, v))) fail("ShortestPathTree", mask, s, v, "the least traffic paths differ");
+            }
+            workspace.bfs(graph, mask, s, -1);
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                if (!tree.hopPath(v).equals(workspace.path(graph, v))) fail("ShortestPathTree", mask, s, v, "the fewest block paths differ");
+            }
+        }
+        passed("ShortestPathTree", mask, queries + " sources");
+    }
+
+    private void checkIsochrone(ClosureMask mask) {
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        SearchWorkspace isochroneWorkspace = new SearchWorkspace(graph);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q], t = targets[q];
+            // an area just reaching the target of the pair, or everything if the target is unreachable
+            double budget = fastest(mask, s, t).isEmpty() ? Double.POSITIVE_INFINITY : workspace.distance(t);
+            Isochrone isochrone = new Isochrone(graph, weights, mask, s, budget, isochroneWorkspace);
+            workspace.dijkstra(graph, weights, mask, s, -1);
+            int inside = 0;
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                if (workspace.isReached(v) && workspace.distance(v) <= budget) inside++;
+            }
+            if (isochrone.intersectionCount() != inside)
+                fail("Isochrone", mask, s, t, isochrone.intersectionCount() + " intersections within " + budget + ", expected " + inside);
+            for (int i = 0; i < isochrone.intersectionCount(); i++) {
+                int v = isochrone.vertex(i);
+                checkCost("Isochrone", mask, s, v, workspace.distance(v), isochrone.cost(i));
+            }
+        }
+        passed("Isochrone", mask, queries + " sources");
+    }
+
+    private void checkDeltaStepping(ClosureMask mask) {
+        DeltaStepping search = new DeltaStepping(graph, weights);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q];
+            search.search(mask, s);
+            workspace.dijkstra(graph, weights, mask, s, -1);
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                checkCost("DeltaStepping", mask, s, v, workspace.distance(v), search.distance(v));
+                checkPredEdge("DeltaStepping", mask, s, v, workspace.predEdge(v), search.predEdge(v));
+            }
+        }
+        passed("DeltaStepping", mask, queries + " sources");
+    }
+
+    private void checkParallelBFS(ClosureMask mask) {
+        ParallelBFS search = new ParallelBFS(graph);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q];
+            search.search(mask, s);
+            workspace.bfs(graph, mask, s, -1);
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                checkHops("ParallelBFS", mask, s, v, hopCount(v), search.distance(v));
+                checkPredEdge("ParallelBFS", mask, s, v, workspace.predEdge(v), search.predEdge(v));
+            }
+        }
+        passed("ParallelBFS", mask, queries + " sources");
+    }
+
+    private void checkDirectionOptimizingBFS(ClosureMask mask) {
+        DirectionOptimizingBFS search = new DirectionOptimizingBFS(graph);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) {
+            int s = sources[q];
+            search.search(mask, s, -1);
+            workspace.bfs(graph, mask, s, -1);
+            for (int v = 0; v < graph.vertexCount(); v++) {
+                checkHops("DirectionOptimizingBFS", mask, s, v, hopCount(v), search.isReached(v) ? search.distance(v) : -1);
+                checkPredEdge("DirectionOptimizingBFS", mask, s, v, workspace.predEdge(v), search.predEdge(v));
+            }
+        }
+        passed("DirectionOptimizingBFS", mask, queries + " sources");
+    }
+
+    private void checkMultiSourceBFS(ClosureMask mask) {
+        int[] starts = Arrays.copyOf(sources, Math.min(sources.length, TREE_SOURCES));
+        int[] hops = new MultiSourceBFS(graph).hopDistances(starts, mask, ForkJoinPool.commonPool());
+        for (int i = 0; i < starts.length; i++) {
+            workspace.bfs(graph, mask, starts[i], -1);
+            for (int v = 0; v < graph.vertexCount(); v++) checkHops("MultiSourceBFS", mask, starts[i], v, hopCount(v), hops[v * starts.length + i]);
+        }
+        passed("MultiSourceBFS", mask, starts.length + " sources");
+    }
+
+    private void checkDynamicShortestPaths() {
+        DynamicShortestPaths dynamic = new DynamicShortestPaths(graph, weights);
+        int queries = Math.min(sources.length, TREE_SOURCES);
+        for (int q = 0; q < queries; q++) dynamic.addRoute(sources[q], targets[q]);
+        checkTrackedRoutes(dynamic, null);
+        // closing edges raises weights to infinity and reopening them lowers them again
+        double[] closed = new double[closedEdges.length], reopened = new double[closedEdges.length];
+        for (int i = 0; i < closedEdges.length; i++) {
+            closed[i] = Double.POSITIVE_INFINITY;
+            reopened[i] = weights[closedEdges[i]];
+        }
+        dynamic.update(closedEdges, closed);
+        checkTrackedRoutes(dynamic, edgeClosures);
+        dynamic.update(closedEdges, reopened);
+        checkTrackedRoutes(dynamic, null);
+        passed("DynamicShortestPaths", null, queries + " routes through two updates");
+    }
+
+    private void checkTrackedRoutes(DynamicShortestPaths dynamic, ClosureMask mask) {
+        for (int q = 0; q < dynamic.routeCount(); q++) {
+            int s = sources[q], t = targets[q];
+            Route expected = fastest(mask, s, t);
+            checkCost("DynamicShortestPaths", mask, s, t, workspace.distance(t), dynamic.cost(q));
+            ArrayList<Intersection> path = dynamic.path(q);
+            if (path.isEmpty() != expected.isEmpty()) fail("DynamicShortestPaths", mask, s, t, "path " + path + ", expected " + expected);
+            if (path.isEmpty()) continue;
+            if (graph.indexOf(path.get(0)) != s || graph.indexOf(path.get(path.size() - 1)) != t)
+                fail("DynamicShortestPaths", mask, s, t, "the path runs between the wrong intersections");
+            // parallel blocks make a list of intersections ambiguous, so cost it with the cheapest open one
+            double cost = 0;
+            for (int i = 1; i < path.size(); i++) {
+                int u = graph.indexOf(path.get(i - 1)), v = graph.indexOf(path.get(i));
+                double cheapest = Double.POSITIVE_INFINITY;
+                for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                    if (graph.head(e) == v && (mask == null || !mask.isEdgeClosed(e))) cheapest = Math.min(cheapest, weights[e]);
+                }
+                cost += cheapest;
+            }
+            checkCost("DynamicShortestPaths", mask, s, t, expected.getTraffic(), cost);
+        }
+    }
+
+    private void checkVertexOrdering() {
+        for (VertexOrdering ordering : VertexOrdering.values()) {
+            RoutingGraph reordered = ordering.apply(graph);
+            double[] reorderedWeights = reordered.trafficWeights();
+            SearchWorkspace reorderedWorkspace = new SearchWorkspace(reordered);
+            for (int q = 0; q < sources.length; q++) {
+                int s = sources[q], t = targets[q];
+                double expected = workspace.dijkstra(graph, weights, s, t);
+                double actual = reorderedWorkspace.dijkstra(reordered, reorderedWeights, reordered.indexOf(graph.intersection(s)),
+                    reordered.indexOf(graph.intersection(t)));
+                checkCost("VertexOrdering." + ordering, null, s, t, expected, actual);
+            }
+        }
+        passed("VertexOrdering", null, VertexOrdering.values().length + " orders of " + sources.length + " pairs");
+    }
+
+    // the least traffic route the plain search finds; afterwards workspace holds that search
+    private Route fastest(ClosureMask mask, int s, int t) {
+        workspace.dijkstra(graph, weights, mask, s, t);
+        return Route.fromSearch(graph, workspace, s, t, weights);
+    }
+
+    // the route with the fewest blocks the plain search finds; afterwards workspace holds that search
+    private Route fewestBlocks(ClosureMask mask, int s, int t) {
+        workspace.bfs(graph, mask, s, t);
+        return Route.fromSearch(graph, workspace, s, t, weights);
+    }
+
+    // the hop count to v of the last breadth-first search, in the -1 for unreachable convention
+    private int hopCount(int v) {
+        return workspace.isReached(v) ? (int) workspace.distance(v) : -1;
+    }
+
+    private void checkCost(String engine, ClosureMask mask, int s, int t, double expected, double actual) {
+        if (expected == actual) return;
+        if (Math.abs(expected - actual) <= TOLERANCE * Math.max(1, Math.abs(expected))) return;
+        fail(engine, mask, s, t, "cost " + actual + ", expected " + expected);
+    }
+
+    private void checkHops(String engine, ClosureMask mask, int s, int t, int expected, int actual) {
+        if (expected != actual) fail(engine, mask, s, t, actual + " blocks, expected " + expected);
+    }
+
+    private void checkPredEdge(String engine, ClosureMask mask, int s, int v, int expected, int actual) {
+        if (expected != actual) fail(engine, mask, s, v, "reached by edge " + actual + ", expected " + expected);
+    }
+
+    private void checkRoute(String engine, ClosureMask mask, int s, int t, Route expected, Route actual, boolean samePath) {
+        if (samePath) {
+            if (!actual.equals(expected)) fail(engine, mask, s, t, "route " + actual + ", expected " + expected);
+            return;
+        }
+        if (actual.isEmpty() != expected.isEmpty()) fail(engine, mask, s, t, "route " + actual + ", expected " + expected);
+        if (!actual.isEmpty()) checkEnds(engine, mask, s, t, actual);
+        checkCost(engine, mask, s, t, expected.getTraffic(), actual.getTraffic());
+    }
+
+    // a list of routes that starts with a least traffic one, as KShortestPaths and AlternativeRoutes return
+    private void checkRoutes(String engine, ClosureMask mask, int s, int t, Route expected, List<Route> routes) {
+        if (routes.isEmpty() != expected.isEmpty()) fail(engine, mask, s, t, routes.size() + " routes, expected " + expected);
+        if (routes.isEmpty()) return;
+        checkRoute(engine, mask, s, t, expected, routes.get(0), false);
+        for (Route route : routes) checkEnds(engine, mask, s, t, route);
+    }
+
+    private void checkEnds(String engine, ClosureMask mask, int s, int t, Route route) {
+        if (route.getStart() != s || route.getEnd() != t) fail(engine, mask, s, t, "route " + route + " has the wrong ends");
+        if (mask == null) return;
+        for (int i = 0; i < route.edgeCount(); i++) {
+            if (mask.isEdgeClosed(route.getEdge(i)) || mask.isVertexClosed(route.getVertex(i + 1)))
+                fail(engine, mask, s, t, "route " + route + " uses a closure");
+        }
+    }
+
+    private void passed(String engine, ClosureMask mask, String what) {
+        StdOut.printf("%s%s agrees on %s%n", engine, mask == null ? "" : " with closures", what);
+    }
+
+    private static void fail(String engine, ClosureMask mask, int s, int t, String what) {
+        throw new IllegalStateException(engine + (mask == null ? "" : " with closures") + " from " + s + " to " + t + ": " + what);
+    }
+
+    /**
+     * Checks every engine on random pairs of a map.
+     * Usage: java rumaps.EngineCheck mapFile [pairs]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        int[][] queries = Benchmark.randomPairs(graph, pairs);
+        // about one block in twenty closed, and one intersection in fifty
+        int[] closedEdges = StdRandom.permutation(graph.edgeCount(), Math.max(1, graph.edgeCount() / 20));
+        int[] closedVertices = StdRandom.permutation(graph.vertexCount(), Math.max(1, graph.vertexCount() / 50));
+        new EngineCheck(graph, graph.trafficWeights(), queries[0], queries[1], closedEdges, closedVertices).checkAll();
+        StdOut.println("all engines agree with SearchWorkspace");
+    }
+}
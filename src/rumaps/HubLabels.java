@@ -0,0 +1,278 @@
+package rumaps;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The HubLabels class is a distance oracle built from a ContractionHierarchy.
+ *
+ * Every vertex v gets a forward label, the vertices its upward search from v settles with their
+ * distances, and a backward label, the same for the backward upward search. Entries whose distance is
+ * longer than the true distance are pruned, since they can never be part of a shortest route. The
+ * least cost from s to t is then the minimum of df + db over the hubs that the forward label of s
+ * and the backward label of t share, which is a linear merge of two short arrays sorted by rank.
+ *
+ * Each entry also keeps the hierarchy edge its hub was reached by. Since every vertex on a kept
+ * entry's search path is itself kept, the route is recovered by following these edges from the
+ * meeting hub back to s and on to t, and unpacking them with the hierarchy.
+ *
+ * The labels are flat primitive arrays, one offset per vertex into shared hub, distance and edge
+ * arrays, and can be written to and served from a memory-mapped file.
+ */
+public class HubLabels implements PathOracle {
+    private static final int MAGIC = 0x524d484c; // "RMHL"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 32;
+
+    private final ContractionHierarchy hierarchy;
+    private final RoutingGraph graph;
+    private final int[] vertexOfRank;
+    // index 0 holds the forward labels, index 1 the backward labels
+    private final IntBuffer[] offsets = new IntBuffer[2];
+    private final IntBuffer[] hubs = new IntBuffer[2];
+    private final DoubleBuffer[] dists = new DoubleBuffer[2];
+    private final IntBuffer[] edges = new IntBuffer[2];
+
+    /**
+     * Computes the labels of every vertex.
+     *
+     * @param hierarchy the contraction hierarchy of the graph and weights to use
+     */
+    public HubLabels(ContractionHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+        this.graph = hierarchy.getGraph();
+        int n = graph.vertexCount();
+        this.vertexOfRank = inverseRanks(hierarchy);
+
+        SearchWorkspace workspace = new SearchWorkspace(n);
+        for (int side = 0; side < 2; side++) {
+            boolean forward = side == 0;
+            int[] offset = new int[n + 1];
+            IntList hub = new IntList();
+            IntList edge = new IntList();
+            double[] dist = new double[16];
+            long[] entries = new long[n];
+            for (int v = 0; v < n; v++) {
+                int settled = hierarchy.upwardSearch(v, forward, workspace);
+                int kept = 0;
+                for (int i = 0; i < settled; i++) {
+                    int h = workspace.settled(i);
+                    double d = workspace.distance(h);
+                    double exact = forward ? hierarchy.distance(v, h) : hierarchy.distance(h, v);
+                    // allow for rounding, since the two searches may add the same costs in another order
+                    if (d > exact + 1e-9 * Math.max(1, exact)) continue;
+                    // pack rank and settle index so sorting orders the entries by rank
+                    entries[kept++] = ((long) hierarchy.rank(h) << 32) | i;
+                }
+                // the distance queries above reuse other workspaces, so the search results are intact
+                Arrays.sort(entries, 0, kept);
+                for (int k = 0; k < kept; k++) {
+                    int h = workspace.settled((int) entries[k]);
+                    if (hub.size == dist.length) dist = Arrays.copyOf(dist, dist.length * 2);
+                    dist[hub.size] = workspace.distance(h);
+                    hub.add(hierarchy.rank(h));
+                    edge.add(workspace.predEdge(h));
+                }
+                offset[v + 1] = hub.size;
+            }
+            offsets[side] = IntBuffer.wrap(offset);
+            hubs[side] = IntBuffer.wrap(hub.toArray());
+            dists[side] = DoubleBuffer.wrap(Arrays.copyOf(dist, hub.size));
+            edges[side] = IntBuffer.wrap(edge.toArray());
+        }
+    }
+
+    private HubLabels(ContractionHierarchy hierarchy, ByteBuffer buffer, int[] sizes) {
+        this.hierarchy = hierarchy;
+        this.graph = hierarchy.getGraph();
+        this.vertexOfRank = inverseRanks(hierarchy);
+        int n = graph.vertexCount();
+        int position = HEADER;
+        for (int side = 0; side < 2; side++) {
+            int size = sizes[side];
+            offsets[side] = slice(buffer, position, 4 * (n + 1)).asIntBuffer();
+            position += 4 * (n + 1);
+            hubs[side] = slice(buffer, position, 4 * size).asIntBuffer();
+            position += 4 * size;
+            edges[side] = slice(buffer, position, 4 * size).asIntBuffer();
+            position += 4 * size;
+            dists[side] = slice(buffer, position, 8 * size).asDoubleBuffer();
+            position += 8 * size;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        return buffer.slice(position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int[] inverseRanks(ContractionHierarchy hierarchy) {
+        int n = hierarchy.getGraph().vertexCount();
+        int[] vertexOfRank = new int[n];
+        for (int v = 0; v < n; v++) vertexOfRank[hierarchy.rank(v)] = v;
+        return vertexOfRank;
+    }
+
+    @Override
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the number of entries in all forward and backward labels.
+     */
+    public int labelEntryCount() {
+        return hubs[0].limit() + hubs[1].limit();
+    }
+
+    @Override
+    public double distance(int s, int t) {
+        long best = meet(s, t);
+        return best < 0 ? Double.POSITIVE_INFINITY : dists[0].get((int) (best >>> 32)) + dists[1].get((int) best);
+    }
+
+    @Override
+    public Route route(int s, int t) {
+        long best = meet(s, t);
+        if (best < 0) return new Route(graph, s, new int[0], hierarchy.getWeights());
+        IntList path = new IntList();
+        // hierarchy edges from the hub back to s, unpacked in reverse order
+        IntList upward = new IntList();
+        int hub = vertexOfRank[hubs[0].get((int) (best >>> 32))];
+        for (int v = hub, e = edges[0].get((int) (best >>> 32)); e != -1; e = edgeInto(0, s, v)) {
+            upward.add(e);
+            v = hierarchy.opposite(e, v);
+        }
+        for (int i = upward.size - 1; i >= 0; i--) hierarchy.unpack(upward.items[i], path);
+        for (int v = hub, e = edges[1].get((int) best); e != -1; e = edgeInto(1, t, v)) {
+            hierarchy.unpack(e, path);
+            v = hierarchy.opposite(e, v);
+        }
+        return new Route(graph, s, path.toArray(), hierarchy.getWeights());
+    }
+
+    // the positions of the best common hub in the forward label of s and the backward label of t
+    private long meet(int s, int t) {
+        int i = offsets[0].get(s), iEnd = offsets[0].get(s + 1);
+        int j = offsets[1].get(t), jEnd = offsets[1].get(t + 1);
+        double best = Double.POSITIVE_INFINITY;
+        long where = -1;
+        while (i < iEnd && j < jEnd) {
+            int a = hubs[0].get(i), b = hubs[1].get(j);
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                double d = dists[0].get(i) + dists[1].get(j);
+                if (d < best) {
+                    best = d;
+                    where = ((long) i << 32) | j;
+                }
+                i++;
+                j++;
+            }
+        }
+        return where;
+    }
+
+    // the edge stored with hub v in the label of owner, found by binary search on its rank
+    private int edgeInto(int side, int owner, int v) {
+        int lo = offsets[side].get(owner), hi = offsets[side].get(owner + 1) - 1;
+        int key = hierarchy.rank(v);
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int r = hubs[side].get(mid);
+            if (r < key) lo = mid + 1;
+            else if (r > key) hi = mid - 1;
+            else return edges[side].get(mid);
+        }
+        throw new IllegalStateException("Label of " + owner + " has no entry for " + v);
+    }
+
+    /**
+     * Writes the labels to a file through a memory mapping, replacing the file if it exists.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeTo(Path path) throws IOException {
+        int n = graph.vertexCount();
+        long size = HEADER;
+        for (int side = 0; side < 2; side++) size += 4L * (n + 1) + 16L * hubs[side].limit();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT).putInt(n).putInt(hierarchy.hierarchyEdgeCount())
+                .putLong(AllPairsTable.checksum(hierarchy.getWeights())).putInt(hubs[0].limit()).putInt(hubs[1].limit());
+            for (int side = 0; side < 2; side++) {
+                buffer.asIntBuffer().put(offsets[side].duplicate().rewind());
+                buffer.position(buffer.position() + 4 * (n + 1));
+                buffer.asIntBuffer().put(hubs[side].duplicate().rewind());
+                buffer.position(buffer.position() + 4 * hubs[side].limit());
+                buffer.asIntBuffer().put(edges[side].duplicate().rewind());
+                buffer.position(buffer.position() + 4 * hubs[side].limit());
+                buffer.asDoubleBuffer().put(dists[side].duplicate().rewind());
+                buffer.position(buffer.position() + 8 * hubs[side].limit());
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Maps labels written by writeTo. Queries read the mapping directly.
+     *
+     * @param path the file to map
+     * @param hierarchy the hierarchy the labels were computed from, rebuilt from the same weights
+     * @return the labels
+     * @throws IOException if the file cannot be read or was written for another hierarchy
+     */
+    public static HubLabels load(Path path, ContractionHierarchy hierarchy) throws IOException {
+        int n = hierarchy.getGraph().vertexCount();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER) throw new IOException("Not a hub label file: " + path);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) throw new IOException("Not a hub label file: " + path);
+            if (buffer.getInt() != n || buffer.getInt() != hierarchy.hierarchyEdgeCount()
+                    || buffer.getLong() != AllPairsTable.checksum(hierarchy.getWeights()))
+                throw new IOException("Labels were built for another hierarchy: " + path);
+            int[] sizes = {buffer.getInt(), buffer.getInt()};
+            long expected = HEADER;
+            for (int size : sizes) expected += 4L * (n + 1) + 16L * size;
+            if (sizes[0] < 0 || sizes[1] < 0 || channel.size() != expected) throw new IOException("Truncated hub label file: " + path);
+            return new HubLabels(hierarchy, buffer, sizes);
+        }
+    }
+
+    /**
+     * Builds the labels of a map and times distance queries between every pair of intersections.
+     * Usage: HubLabels mapFile [rounds]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        RoutingGraph graph = maps.getRoutingGraph();
+        int n = graph.vertexCount();
+
+        long begin = System.nanoTime();
+        HubLabels labels = new HubLabels(maps.getContractionHierarchy());
+        long built = System.nanoTime() - begin;
+        double[] sum = new double[1];
+        long elapsed = Benchmark.time(() -> {
+            sum[0] = 0;
+            for (int r = 0; r < rounds; r++) {
+                for (int s = 0; s < n; s++) {
+                    for (int t = 0; t < n; t++) sum[0] += Math.min(labels.distance(s, t), 1e9);
+                }
+            }
+        })[0];
+        StdOut.printf("%d label entries (%.1f per vertex and side) built in %.1f ms%n", labels.labelEntryCount(),
+            labels.labelEntryCount() / (2.0 * n), built / 1e6);
+        StdOut.printf("%d queries at %.0f ns each (checksum %.1f)%n", (long) rounds * n * n,
+            elapsed / ((double) rounds * n * n), sum[0]);
+    }
+}
@@ -0,0 +1,21 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The IntList class is a growable list of ints, used by the routing engines to collect edges, vertices
+ * and paths without boxing. Its fields are read directly by the code that fills it.
+ */
+final class IntList {
+    int[] items = new int[16];
+    int size;
+
+    void add(int value) {
+        if (size == items.length) items = Arrays.copyOf(items, size * 2);
+        items[size++] = value;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(items, size);
+    }
+}
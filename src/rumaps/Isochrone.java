@@ -0,0 +1,226 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The Isochrone class is the part of the network that can be reached from a start within a traffic
+ * budget: the intersections whose least traffic is at most the budget, and the blocks leading out of
+ * them, each with the fraction of its length that is within the budget.
+ *
+ * It is computed with a Dijkstra search that stops at the budget, so its cost grows with the reached
+ * area rather than with the map. Traffic is taken to be spread evenly along a block, so a block whose
+ * end is reached with r units of budget left and that costs c units is reachable for r / c of its
+ * length from that end; when both ends are reached, the two stretches are added.
+ */
+public class Isochrone {
+    private final RoutingGraph graph;
+    private final int source;
+    private final double budget;
+    private final int[] vertices;
+    private final double[] costs;
+    private final int[] blockEdges;        // one edge per block, oriented away from a reached end
+    private final double[] fromTail;       // the fraction reachable from the tail of that edge
+    private final double[] fromHead;       // the fraction reachable from its head
+    private final double maxCost;
+
+    /**
+     * Computes the area reachable from a source.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param budget the most traffic that may be spent
+     * @param workspace the workspace to search with
+     */
+    public Isochrone(RoutingGraph graph, double[] weights, ClosureMask closures, int source, double budget, SearchWorkspace workspace) {
+        if (!(budget >= 0)) throw new IllegalArgumentException("Budget must not be negative: " + budget);
+        this.graph = graph;
+        this.source = source;
+        this.budget = budget;
+        long[] closed = closures == null ? null : closures.bits();
+        int settled = workspace.boundedDijkstra(graph, weights, closures, source, budget);
+        vertices = new int[settled];
+        costs = new double[settled];
+        double max = 0;
+        for (int i = 0; i < settled; i++) {
+            vertices[i] = workspace.settled(i);
+            costs[i] = workspace.distance(vertices[i]);
+            max = Math.max(max, costs[i]);
+        }
+        maxCost = max;
+
+        IntList edges = new IntList();
+        double[] tail = new double[16], head = new double[16];
+        for (int u : vertices) {
+            double left = budget - workspace.distance(u);
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                int r = graph.reverse(e);
+                boolean bothEnds = r != -1 && workspace.isSettled(w) && (closed == null || (closed[r >>> 6] & (1L << r)) == 0);
+                // a block reached from both ends is recorded once, from its lower edge
+                if (bothEnds && r < e) continue;
+                if (edges.size == tail.length) {
+                    tail = Arrays.copyOf(tail, edges.size * 2);
+                    head = Arrays.copyOf(head, edges.size * 2);
+                }
+                tail[edges.size] = fraction(left, weights[e]);
+                head[edges.size] = bothEnds ? fraction(budget - workspace.distance(w), weights[r]) : 0;
+                edges.add(e);
+            }
+        }
+        blockEdges = edges.toArray();
+        fromTail = Arrays.copyOf(tail, edges.size);
+        fromHead = Arrays.copyOf(head, edges.size);
+    }
+
+    /**
+     * Returns the total length of the parts of blocks within a budget, from a workspace whose last
+     * search settled at least every vertex within it. This is the reachableLength() of an isochrone
+     * with that budget, without recording its blocks.
+     */
+    static double reachableLength(RoutingGraph graph, double[] weights, long[] closed, SearchWorkspace workspace, double budget) {
+        double length = 0;
+        for (int i = 0, settled = workspace.settledCount(); i < settled; i++) {
+            int u = workspace.settled(i);
+            double left = budget - workspace.distance(u);
+            if (left < 0) break;
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                int r = graph.reverse(e);
+                boolean bothEnds = r != -1 && workspace.isSettled(w) && workspace.distance(w) <= budget
+                    && (closed == null || (closed[r >>> 6] & (1L << r)) == 0);
+                if (bothEnds && r < e) continue;
+                double reached = fraction(left, weights[e]);
+                if (bothEnds) reached += fraction(budget - workspace.distance(w), weights[r]);
+                length += Math.min(1, reached) * graph.length(e);
+            }
+        }
+        return length;
+    }
+
+    private static double fraction(double left, double cost) {
+        return cost <= left ? 1 : left / cost;
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the largest traffic needed to reach one of the intersections.
+     */
+    public double maxCost() {
+        return maxCost;
+    }
+
+    public int intersectionCount() {
+        return vertices.length;
+    }
+
+    /**
+     * Returns the i-th reachable vertex, in order of increasing traffic from the source.
+     */
+    public int vertex(int i) {
+        return vertices[i];
+    }
+
+    /**
+     * Returns the least traffic from the source to the i-th reachable vertex.
+     */
+    public double cost(int i) {
+        return costs[i];
+    }
+
+    /**
+     * Returns the intersections within the budget, in order of increasing traffic from the source.
+     */
+    public ArrayList<Intersection> reachableIntersections() {
+        ArrayList<Intersection> intersections = new ArrayList<>(vertices.length);
+        for (int v : vertices) intersections.add(graph.intersection(v));
+        return intersections;
+    }
+
+    /**
+     * Returns the number of blocks that are at least partly reachable.
+     */
+    public int blockCount() {
+        return blockEdges.length;
+    }
+
+    public Block getBlock(int i) {
+        return graph.block(blockEdges[i]);
+    }
+
+    /**
+     * Returns the intersection from which the first part of the i-th block, of length
+     * fractionFrom(i) of the block, is reachable.
+     */
+    public Intersection reachedEnd(int i) {
+        return graph.intersection(graph.tail(blockEdges[i]));
+    }
+
+    /**
+     * Returns the fraction of the i-th block reachable from reachedEnd(i).
+     */
+    public double fractionFrom(int i) {
+        return Math.min(1, fromTail[i]);
+    }
+
+    /**
+     * Returns the fraction of the i-th block reachable from its other end, which is 0 unless that
+     * end is reachable too.
+     */
+    public double fractionFromOtherEnd(int i) {
+        return Math.min(1, fromHead[i]);
+    }
+
+    /**
+     * Returns the fraction of the length of the i-th block that is within the budget.
+     */
+    public double blockFraction(int i) {
+        return Math.min(1, fromTail[i] + fromHead[i]);
+    }
+
+    /**
+     * Returns the total length of the reachable parts of all blocks.
+     */
+    public double reachableLength() {
+        double length = 0;
+        for (int i = 0; i < blockEdges.length; i++) length += blockFraction(i) * graph.length(blockEdges[i]);
+        return length;
+    }
+
+    /**
+     * Times isochrones from random intersections of a map for a range of budgets.
+     * Usage: Isochrone mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        int[] sources = Benchmark.randomVertices(graph, queries);
+        double range = new Isochrone(graph, weights, null, sources[0], Double.POSITIVE_INFINITY, workspace).maxCost();
+
+        for (int percent = 10; percent <= 100; percent += 30) {
+            double budget = range * percent / 100;
+            long elapsed = Benchmark.time(() -> { for (int s : sources) new Isochrone(graph, weights, null, s, budget, workspace); })[0];
+            long reached = 0;
+            for (int s : sources) reached += new Isochrone(graph, weights, null, s, budget, workspace).intersectionCount();
+            StdOut.printf("budget %.1f: %.1f intersections on average, %.1f us per query%n", budget,
+                reached / (double) queries, elapsed / 1e3 / queries);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * The KShortestPaths class finds the K least traffic loopless routes between two vertices with Yen's
+ * algorithm, so users can be offered alternatives to the single fastestPath result.
+ *
+ * The first route is the one RUMaps.fastestPath returns. Each later route is found from the previous
+ * one: for every vertex on it (the spur vertex), the part before it (the root) is kept, the root's
+ * vertices and the edges that accepted routes with the same root take out of the spur vertex are
+ * closed, and a Dijkstra search finds the rest of the way. The best of all candidates found so far is
+ * accepted next.
+ *
+ * The spur searches of one route are independent and run in parallel. Edges and vertices are closed
+ * with a ClosureMask built once per spur search, so the graph is never changed, and the searches borrow
+ * their SearchWorkspace from a pool shared by every query on this instance instead of allocating one.
+ */
+public class KShortestPaths {
+    private static final Comparator<Route> ORDER = (a, b) -> {
+        int c = Double.compare(a.getTraffic(), b.getTraffic());
+        if (c != 0) return c;
+        c = Integer.compare(a.edgeCount(), b.edgeCount());
+        for (int i = 0; c == 0 && i < a.edgeCount(); i++) c = Integer.compare(a.getEdge(i), b.getEdge(i));
+        return c;
+    };
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final ClosureMask open;
+    private final ConcurrentLinkedQueue<SearchWorkspace> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a path finder.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     */
+    public KShortestPaths(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        this.graph = graph;
+        this.weights = weights;
+        this.open = new ClosureMask(graph);
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Finds up to k loopless routes from source to target, in order of increasing traffic.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @param k the most routes to return
+     * @return the routes, fewer than k if there are no more, and none if target is unreachable or equals source
+     */
+    public ArrayList<Route> find(ClosureMask closures, int source, int target, int k) {
+        if (k <= 0) throw new IllegalArgumentException("k must be positive: " + k);
+        int n = graph.vertexCount();
+        if (source < 0 || source >= n || target < 0 || target >= n) throw new IllegalArgumentException("Vertex out of range");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        ClosureMask base = closures == null ? open : closures;
+
+        ArrayList<Route> accepted = new ArrayList<>();
+        SearchWorkspace workspace = borrow();
+        workspace.dijkstra(graph, weights, base, source, target);
+        Route first = Route.fromSearch(graph, workspace, source, target, weights);
+        idle.offer(workspace);
+        if (first.isEmpty()) return accepted;
+        accepted.add(first);
+
+        TreeSet<Route> candidates = new TreeSet<>(ORDER);
+        HashSet<Route> seen = new HashSet<>(accepted);
+        while (accepted.size() < k) {
+            Route last = accepted.get(accepted.size() - 1);
+            Route[] spurs = new Route[last.edgeCount()];
+            IntStream.range(0, spurs.length).parallel().forEach(i -> spurs[i] = spur(base, accepted, last, i, target));
+            for (Route route : spurs) {
+                if (route != null && seen.add(route)) candidates.add(route);
+            }
+            if (candidates.isEmpty()) break;
+            accepted.add(candidates.pollFirst());
+        }
+        return accepted;
+    }
+
+    // the best route that follows last up to its i-th vertex and then leaves every accepted route with that root
+    private Route spur(ClosureMask base, ArrayList<Route> accepted, Route last, int i, int target) {
+        int[] root = new int[i];
+        for (int j = 0; j < i; j++) root[j] = last.getVertex(j);
+        IntList taken = new IntList();
+        for (Route route : accepted) {
+            if (route.edgeCount() > i && sameRoot(route, last, i)) taken.add(route.getEdge(i));
+        }
+        ClosureMask mask = base.closeAll(taken.toArray(), root);
+
+        int spurVertex = last.getVertex(i);
+        SearchWorkspace workspace = borrow();
+        try {
+            workspace.dijkstra(graph, weights, mask, spurVertex, target);
+            if (!workspace.isReached(target)) return null;
+            int count = 0;
+            for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) count++;
+            int[] edges = new int[i + count];
+            for (int j = 0; j < i; j++) edges[j] = last.getEdge(j);
+            for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) edges[i + --count] = e;
+            return new Route(graph, last.getStart(), edges, weights);
+        } finally {
+            idle.offer(workspace);
+        }
+    }
+
+    private static boolean sameRoot(Route a, Route b, int length) {
+        for (int j = 0; j < length; j++) {
+            if (a.getEdge(j) != b.getEdge(j)) return false;
+        }
+        return true;
+    }
+
+    private SearchWorkspace borrow() {
+        SearchWorkspace workspace = idle.poll();
+        return workspace != null ? workspace : new SearchWorkspace(graph);
+    }
+
+    /**
+     * Finds the k fastest routes between random pairs of a map and reports the time per query.
+     * Usage: KShortestPaths mapFile [k] [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        RoutingGraph graph = maps.getRoutingGraph();
+        KShortestPaths paths = new KShortestPaths(graph, graph.trafficWeights());
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+
+        long elapsed = Benchmark.time(() -> { for (int q = 0; q < queries; q++) paths.find(null, sources[q], targets[q], k); })[0];
+        long routes = 0;
+        for (int q = 0; q < queries; q++) routes += paths.find(null, sources[q], targets[q], k).size();
+        StdOut.printf("%d queries for %d routes: %d routes found, %.2f ms per query%n", queries, k, routes,
+            elapsed / 1e6 / queries);
+    }
+}
@@ -3,6 +3,7 @@ package rumaps;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Path2D;
 import java.util.*;
 import java.util.List;
 
@@ -27,6 +28,10 @@ public class MapPanel extends JPanel {
     private final Color combinedPathColor = new Color(189, 0, 189);
     private final Color hoverCombinedPathColor = new Color(189, 0, 189, 125);
 
+    public final Color[] alternativeRouteColors = {new Color(0, 160, 0), new Color(255, 140, 0), new Color(0, 170, 170)};
+
+    private final Color isochroneColor = new Color(255, 215, 0, 140);
+
     private final Color defaultBlockColor = Color.WHITE;
     private final Color hoverDefaultBlockColor = new Color(210,212,213, 150);
 
@@ -42,6 +47,11 @@ public class MapPanel extends JPanel {
     private boolean highlightedMinimizeIntersectionPathActivated;
     private HashSet<Block> highlightedFastestPath;
     private boolean highlightedFastestPathActivated;
+    private List<HashSet<Block>> highlightedAlternativeRoutes;
+    private boolean highlightedAlternativeRoutesActivated;
+    private Isochrone isochrone;
+    private AccessibilityScores accessibility;
+    private int accessibilityBudget;
     private Block highlightedBlock;
 
     private List<Intersection> intersections;
@@ -64,6 +74,8 @@ public class MapPanel extends JPanel {
         highlightedMinimizeIntersectionPathActivated = true;
         highlightedFastestPath = new HashSet<>();
         highlightedFastestPathActivated = true;
+        highlightedAlternativeRoutes = new ArrayList<>();
+        highlightedAlternativeRoutesActivated = false;
 
         intersections = new ArrayList<>();
         mouseListener();
@@ -164,6 +176,79 @@ public class MapPanel extends JPanel {
         repaint();
     }
 
+    public void highlightAlternativeRoutes(List<Route> routes) {
+        List<HashSet<Block>> blocksInRoutes = new ArrayList<>();
+        for (Route route : routes) {
+            HashSet<Block> blocksInRoute = new HashSet<>();
+            for (int i = 0; i < route.edgeCount(); i++) blocksInRoute.add(route.getGraph().block(route.getEdge(i)));
+            blocksInRoutes.add(blocksInRoute);
+        }
+        highlightedAlternativeRoutes = blocksInRoutes;
+        repaint();
+    }
+
+    public void toggleAlternativeRoutes(boolean activate) {
+        this.highlightedAlternativeRoutesActivated = activate;
+        repaint();
+    }
+
+    private boolean onHighlightedPath(Block block) {
+        return (highlightedMinimizeIntersectionPathActivated && highlightedMinimizeIntersectionPath.contains(block)) ||
+            (highlightedFastestPathActivated && highlightedFastestPath.contains(block));
+    }
+
+    private boolean onAlternativeRoute(Block block) {
+        if (!highlightedAlternativeRoutesActivated) return false;
+        for (HashSet<Block> route : highlightedAlternativeRoutes) {
+            if (route.contains(block)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Shades the part of the network within a travel budget, or removes the shading if isochrone is null.
+     */
+    public void showIsochrone(Isochrone isochrone) {
+        this.isochrone = isochrone;
+        repaint();
+    }
+
+    /**
+     * Colors every intersection by how much street it can reach within one budget of the scores, from
+     * blue for the least to red for the most, or removes the coloring if scores is null.
+     */
+    public void showAccessibility(AccessibilityScores scores, int budget) {
+        this.accessibility = scores;
+        this.accessibilityBudget = budget;
+        repaint();
+    }
+
+    // the first fraction of a block's polyline, measured from the given end
+    private Shape partialPath(Block block, Intersection from, double fraction) {
+        if (fraction >= 1) return block.getPath();
+        List<Coordinate> points = new ArrayList<>(block.getCoordinatePoints());
+        Coordinate start = points.get(0);
+        if (start.getX() != from.getCoordinate().getX() || start.getY() != from.getCoordinate().getY())
+            Collections.reverse(points);
+        double total = 0;
+        for (int i = 1; i < points.size(); i++) total += distance(points.get(i - 1), points.get(i));
+        double left = fraction * total;
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo(points.get(0).getX(), points.get(0).getY());
+        for (int i = 1; i < points.size() && left > 0; i++) {
+            Coordinate a = points.get(i - 1), b = points.get(i);
+            double step = distance(a, b);
+            double t = step <= left ? 1 : left / step;
+            path.lineTo(a.getX() + t * (b.getX() - a.getX()), a.getY() + t * (b.getY() - a.getY()));
+            left -= step;
+        }
+        return path;
+    }
+
+    private static double distance(Coordinate a, Coordinate b) {
+        return Math.hypot(a.getX() - b.getX(), a.getY() - b.getY());
+    }
+
     /* Intersection Visuals */
     public void addIntersection(Intersection intersection) {
         intersections.add(intersection);;
@@ -179,6 +264,7 @@ public class MapPanel extends JPanel {
         if (intersection == null) {
             selectedStartIntersection = null;
             selectedEndIntersection = null;
+            if (driver != null) driver.getMaps().precompute(null);
         } else {
             if (selectedStartIntersection != null && selectedEndIntersection != null) {
                 selectedStartIntersection = null;
@@ -186,6 +272,8 @@ public class MapPanel extends JPanel {
             }
             if (selectedStartIntersection == null) {
                 selectedStartIntersection = intersection;
+                // search from the start while the end is being picked
+                if (driver != null) driver.getMaps().precompute(intersection);
             } else if (selectedEndIntersection == null) {
                 if (selectedStartIntersection.equals(intersection)) {
                     return;
@@ -271,8 +359,7 @@ public class MapPanel extends JPanel {
         
         if (networkVisualsActivated) {
             for (Block block : blocks) {
-                if ((highlightedMinimizeIntersectionPathActivated && highlightedMinimizeIntersectionPath.contains(block)) ||
-                    (highlightedFastestPathActivated && highlightedFastestPath.contains(block))) 
+                if (onHighlightedPath(block) || onAlternativeRoute(block))
                     continue;
 
                 g2d.setStroke(new BasicStroke(block.getRoadSize()));
@@ -285,6 +372,35 @@ public class MapPanel extends JPanel {
             }
         }
 
+        if (isochrone != null) {
+            g2d.setColor(isochroneColor);
+            for (int i = 0; i < isochrone.blockCount(); i++) {
+                Block block = isochrone.getBlock(i);
+                g2d.setStroke(new BasicStroke(block.getRoadSize() + 4, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                g2d.draw(partialPath(block, isochrone.reachedEnd(i), isochrone.fractionFrom(i)));
+                if (isochrone.fractionFromOtherEnd(i) > 0)
+                    g2d.draw(partialPath(block, block.other(isochrone.reachedEnd(i)), isochrone.fractionFromOtherEnd(i)));
+            }
+        }
+
+        // Alternatives go under the other paths; where they overlap, the earlier route wins
+        if (highlightedAlternativeRoutesActivated) {
+            HashSet<Block> drawn = new HashSet<>();
+            for (int i = 0; i < highlightedAlternativeRoutes.size(); i++) {
+                Color color = alternativeRouteColors[i % alternativeRouteColors.length];
+                for (Block block : highlightedAlternativeRoutes.get(i)) {
+                    if (onHighlightedPath(block) || !drawn.add(block))
+                        continue;
+                    if (block.equals(highlightedBlock))
+                        g2d.setColor(new Color(color.getRed(), color.getGreen(), color.getBlue(), 125));
+                    else
+                        g2d.setColor(color);
+                    g2d.setStroke(new BasicStroke(block.getRoadSize()));
+                    g2d.draw(block.getPath());
+                }
+            }
+        }
+
         if (highlightedMinimizeIntersectionPathActivated) {
             for (Block block : highlightedMinimizeIntersectionPath) {
                 if (highlightedFastestPathActivated && highlightedFastestPath.contains(block)) 
@@ -313,6 +429,17 @@ public class MapPanel extends JPanel {
                 g2d.draw(block.getPath());
             }
         }
+        if (accessibility != null) {
+            double max = accessibility.maxLength(accessibilityBudget);
+            for (int v = 0; v < accessibility.getGraph().vertexCount(); v++) {
+                Intersection intersection = accessibility.getGraph().intersection(v);
+                if (intersection == null) continue;
+                double heat = max == 0 ? 0 : accessibility.length(v, accessibilityBudget) / max;
+                Coordinate c = intersection.getCoordinate();
+                g2d.setColor(new Color((int) (255 * heat), 0, (int) (255 * (1 - heat)), 150));
+                g2d.fillOval(c.getX() - 12, c.getY() - 12, 24, 24);
+            }
+        }
         if (networkVisualsActivated && highlightedBlock != null) {
             g2d.setStroke(new BasicStroke(highlightedBlock.getRoadSize()));
             g2d.setColor(hoverDefaultBlockColor);
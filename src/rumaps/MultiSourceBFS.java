@@ -0,0 +1,182 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The MultiSourceBFS class computes hop counts, the metric of RUMaps.minimizeIntersections, from many
+ * sources at once.
+ *
+ * Sources are taken 64 at a time and each one gets a bit of a long. Every vertex holds the mask of
+ * sources that have reached it and the mask of sources whose frontier it is on, so one traversal
+ * moves all 64 searches forward a level with a few bitwise operations per edge, instead of scanning
+ * each edge 64 times. Only vertices whose mask changed are visited on the next level.
+ *
+ * Batches of 64 sources are independent and run in parallel on a ForkJoinPool, each worker thread
+ * reusing its own arrays. The result is laid out by vertex, so the hop counts a level writes for one
+ * vertex land next to each other rather than in 64 different rows.
+ */
+public class MultiSourceBFS {
+    private static final int BATCH = 64;
+
+    private final RoutingGraph graph;
+    private final ThreadLocal<Batch> batches;
+
+    public MultiSourceBFS(RoutingGraph graph) {
+        this.graph = graph;
+        this.batches = ThreadLocal.withInitial(Batch::new);
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Computes the hop count from every source to every vertex on the common fork-join pool.
+     *
+     * @param sources the source vertices
+     * @return the hop counts by vertex, where entry v * sources.length + i is the number of edges
+     *         from sources[i] to v, or -1 if v is unreachable
+     */
+    public int[] hopDistances(int[] sources) {
+        return hopDistances(sources, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes the hop count from every source to every vertex.
+     *
+     * @param sources the source vertices
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param pool the pool to run the batches on
+     * @return the hop counts by vertex, where entry v * sources.length + i is the number of edges
+     *         from sources[i] to v, or -1 if v is unreachable
+     */
+    public int[] hopDistances(int[] sources, ClosureMask mask, ForkJoinPool pool) {
+        if (mask != null && mask.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        int n = graph.vertexCount();
+        for (int s : sources) {
+            if (s < 0 || s >= n) throw new IllegalArgumentException("Source out of range: " + s);
+        }
+        int[] dist = new int[sources.length * n];
+        Arrays.fill(dist, -1);
+        int batchCount = (sources.length + BATCH - 1) / BATCH;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int b = 0; b < batchCount; b++) {
+            int from = b * BATCH, to = Math.min(sources.length, from + BATCH);
+            tasks.add(() -> {
+                batches.get().run(sources, from, to, mask, dist);
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return dist;
+    }
+
+    // the per-thread state of one 64-source traversal
+    private class Batch {
+        private final long[] seen = new long[graph.vertexCount()];
+        private final long[] frontier = new long[graph.vertexCount()];
+        private final long[] next = new long[graph.vertexCount()];
+        private int[] active = new int[graph.vertexCount()];
+        private int[] reached = new int[graph.vertexCount()];
+
+        void run(int[] sources, int from, int to, ClosureMask mask, int[] dist) {
+            int n = graph.vertexCount();
+            int total = sources.length;
+            long[] closed = mask == null ? null : mask.bits();
+            Arrays.fill(seen, 0);
+            Arrays.fill(frontier, 0);
+
+            int activeCount = 0;
+            for (int i = from; i < to; i++) {
+                int s = sources[i];
+                if (mask != null && mask.isVertexClosed(s)) continue;
+                long bit = 1L << (i - from);
+                if (frontier[s] == 0) active[activeCount++] = s;
+                seen[s] |= bit;
+                frontier[s] |= bit;
+                dist[s * total + i] = 0;
+            }
+
+            for (int depth = 1; activeCount > 0; depth++) {
+                int reachedCount = 0;
+                for (int k = 0; k < activeCount; k++) {
+                    int v = active[k];
+                    long bits = frontier[v];
+                    for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                        if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                        int w = graph.head(e);
+                        long fresh = bits & ~seen[w];
+                        if (fresh == 0) continue;
+                        if (next[w] == 0) reached[reachedCount++] = w;
+                        next[w] |= fresh;
+                    }
+                }
+                for (int k = 0; k < activeCount; k++) frontier[active[k]] = 0;
+
+                for (int k = 0; k < reachedCount; k++) {
+                    int w = reached[k];
+                    long fresh = next[w];
+                    next[w] = 0;
+                    seen[w] |= fresh;
+                    frontier[w] = fresh;
+                    while (fresh != 0) {
+                        int i = from + Long.numberOfTrailingZeros(fresh);
+                        fresh &= fresh - 1;
+                        dist[w * total + i] = depth;
+                    }
+                }
+                int[] swap = active;
+                active = reached;
+                reached = swap;
+                activeCount = reachedCount;
+            }
+        }
+    }
+
+    /**
+     * Times hop counts from every vertex of a map against one breadth-first search per source.
+     * Usage: MultiSourceBFS mapFile [rounds]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        RoutingGraph graph = maps.getRoutingGraph();
+        int n = graph.vertexCount();
+        int[] sources = new int[n];
+        for (int v = 0; v < n; v++) sources[v] = v;
+
+        MultiSourceBFS bfs = new MultiSourceBFS(graph);
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        // the sums keep either loop from being optimized away and show that both find the same hop counts
+        long[] sums = new long[2];
+        long[] elapsed = Benchmark.time(
+            () -> {
+                sums[0] = 0;
+                for (int r = 0; r < rounds; r++) {
+                    for (int d : bfs.hopDistances(sources)) sums[0] += d;
+                }
+            },
+            () -> {
+                sums[1] = 0;
+                for (int r = 0; r < rounds; r++) {
+                    for (int s = 0; s < n; s++) {
+                        workspace.bfs(graph, null, s, -1);
+                        for (int v = 0; v < n; v++) sums[1] += workspace.isReached(v) ? (long) workspace.distance(v) : -1;
+                    }
+                }
+            });
+        StdOut.printf("multi-source: %.2f ms per all-sources pass (sum %d)%n", elapsed[0] / 1e6 / rounds, sums[0]);
+        StdOut.printf("one BFS per source: %.2f ms per pass (sum %d)%n", elapsed[1] / 1e6 / rounds, sums[1]);
+    }
+}
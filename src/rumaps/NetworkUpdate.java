@@ -0,0 +1,129 @@
+package rumaps;
+
+/**
+ * The NetworkUpdate class collects the changes that make up the next NetworkVersion.
+ *
+ * An update is prepared off to the side while readers keep using the current version: the weight
+ * array is copied the first time a weight is set, closures are immutable masks that are swapped, and
+ * the topology is only replaced if setGraph is called. Nothing is visible to readers until
+ * VersionedNetwork.update publishes the result.
+ */
+public class NetworkUpdate {
+    private final VersionedNetwork owner;
+    private final NetworkVersion base;
+    private RoutingGraph graph;
+    private double[] weights;
+    private ClosureMask closures;
+
+    NetworkUpdate(VersionedNetwork owner, NetworkVersion base) {
+        this.owner = owner;
+        this.base = base;
+        this.graph = base.getGraph();
+        this.closures = base.getClosures();
+    }
+
+    /**
+     * Returns the version this update starts from.
+     */
+    public long getBaseVersion() {
+        return base.getVersion();
+    }
+
+    /**
+     * Returns the topology of the version being prepared.
+     */
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public double getWeight(int edge) {
+        return weights == null ? base.getWeight(edge) : weights[edge];
+    }
+
+    /**
+     * Sets the weight of one edge in the version being prepared.
+     *
+     * @param edge the edge id in getGraph()
+     * @param weight the new weight
+     */
+    public void setWeight(int edge, double weight) {
+        if (!(weight >= 0) || Double.isInfinite(weight)) throw new IllegalArgumentException("Weight must be finite and non-negative");
+        if (weights == null) {
+            weights = owner.obtainArray(graph.edgeCount());
+            System.arraycopy(base.getWeights(), 0, weights, 0, weights.length);
+        }
+        weights[edge] = weight;
+    }
+
+    /**
+     * Sets the traffic of both directions of a block to factor * length, as in RUMaps.blockTraffic.
+     *
+     * @param streetName the name of the street the block is on
+     * @param blockNumber the number of the block
+     * @param factor the new traffic factor
+     * @return false if there is no such block
+     */
+    public boolean setTrafficFactor(String streetName, int blockNumber, double factor) {
+        int[] edges = graph.findBlock(streetName, blockNumber);
+        for (int e : edges) setWeight(e, factor * graph.length(e));
+        return edges.length > 0;
+    }
+
+    public ClosureMask getClosures() {
+        return closures;
+    }
+
+    /**
+     * Replaces the closed blocks and intersections of the version being prepared.
+     *
+     * @param closures a mask of getGraph()
+     */
+    public void setClosures(ClosureMask closures) {
+        if (closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        this.closures = closures;
+    }
+
+    /**
+     * Closes both directions of a block in the version being prepared.
+     */
+    public void closeBlock(String streetName, int blockNumber) {
+        closures = closures.closeBlock(streetName, blockNumber);
+    }
+
+    /**
+     * Reopens both directions of a block in the version being prepared.
+     */
+    public void reopenBlock(String streetName, int blockNumber) {
+        closures = closures.reopenBlock(streetName, blockNumber);
+    }
+
+    /**
+     * Replaces the topology. Edge ids of the new graph are unrelated to the old ones, so every weight
+     * is replaced as well, and all closures are reopened.
+     *
+     * @param graph the new topology
+     * @param weights the weight of every edge of the new graph; the array is copied
+     */
+    public void setGraph(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (this.weights != null) owner.recycle(this.weights);
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.closures = new ClosureMask(graph);
+    }
+
+    boolean changesGraph() {
+        return graph != base.getGraph();
+    }
+
+    NetworkVersion getBase() {
+        return base;
+    }
+
+    /**
+     * Returns the weights of the prepared version, or null if no weight was set.
+     */
+    double[] getWeights() {
+        return weights;
+    }
+}
@@ -0,0 +1,128 @@
+package rumaps;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NetworkVersion class is an immutable version of the routing topology, edge weights and
+ * closures, as published by a VersionedNetwork.
+ *
+ * Readers obtain a version with VersionedNetwork.pin() and must close it when their query is done,
+ * normally with try-with-resources. While at least one reader holds a pin, the version's arrays are
+ * never changed or reused. Once a newer version has been published and the last pin is released, the
+ * version is reclaimed and its weight array may be recycled for a future version, so it must not be
+ * used after close().
+ */
+public class NetworkVersion implements AutoCloseable {
+    private final VersionedNetwork owner;
+    private final long version;
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final ClosureMask closures;
+    private final int[] changedEdges;
+
+    // number of readers holding this version, or -1 once it has been reclaimed
+    private final AtomicInteger pins = new AtomicInteger();
+    private volatile boolean retired;
+    // number of unreclaimed versions using the weights array, shared by all of them; the array is
+    // recycled only when the last one is reclaimed
+    private final AtomicInteger weightUsers;
+
+    NetworkVersion(VersionedNetwork owner, long version, RoutingGraph graph, double[] weights, ClosureMask closures,
+                   int[] changedEdges) {
+        this(owner, version, graph, weights, new AtomicInteger(), closures, changedEdges);
+    }
+
+    /**
+     * Creates a version that uses the same weight array as another, passing that version's
+     * weightUsers() so the array is only recycled once both are reclaimed.
+     */
+    NetworkVersion(VersionedNetwork owner, long version, RoutingGraph graph, double[] weights, AtomicInteger weightUsers,
+                   ClosureMask closures, int[] changedEdges) {
+        this.owner = owner;
+        this.version = version;
+        this.graph = graph;
+        this.weights = weights;
+        this.weightUsers = weightUsers;
+        this.closures = closures;
+        this.changedEdges = changedEdges;
+        weightUsers.incrementAndGet();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the traffic of every edge in this version. The array is shared with other readers and
+     * must not be modified.
+     *
+     * @return the weights indexed by edge id
+     */
+    public double[] getWeights() {
+        return weights;
+    }
+
+    public double getWeight(int edge) {
+        return weights[edge];
+    }
+
+    /**
+     * Returns the blocks and intersections closed in this version. Queries pass it to the search
+     * engines to honor the closures.
+     *
+     * @return the closure mask, never null
+     */
+    public ClosureMask getClosures() {
+        return closures;
+    }
+
+    /**
+     * Returns the edges whose weight or closed state differs from the previous version, in increasing order.
+     *
+     * @return the changed edge ids, or null if the topology changed and every edge must be considered changed
+     */
+    public int[] getChangedEdges() {
+        return changedEdges;
+    }
+
+    /**
+     * Releases the pin taken by VersionedNetwork.pin(). Must be called exactly once per pin.
+     */
+    @Override
+    public void close() {
+        if (pins.decrementAndGet() == 0 && retired) reclaim();
+    }
+
+    boolean tryPin() {
+        while (true) {
+            int count = pins.get();
+            if (count < 0) return false;
+            if (pins.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    /**
+     * Called by the owner once a newer version has been published.
+     */
+    void retire() {
+        retired = true;
+        if (pins.get() == 0) reclaim();
+    }
+
+    private void reclaim() {
+        // only one of the last reader and the retiring writer gets past this
+        if (pins.compareAndSet(0, -1)) owner.reclaimed(this, weightUsers.decrementAndGet() == 0 ? weights : null);
+    }
+
+    AtomicInteger weightUsers() {
+        return weightUsers;
+    }
+
+    boolean isReclaimed() {
+        return pins.get() < 0;
+    }
+}
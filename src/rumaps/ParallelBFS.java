@@ -0,0 +1,281 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The ParallelBFS class computes hop counts from one source over a whole graph on a ForkJoinPool,
+ * for analytics on imported networks too large for one thread.
+ *
+ * The search is level-synchronous: every level the frontier is cut into chunks that are expanded in
+ * parallel. Every edge into an undiscovered vertex offers the key (queue position of its tail, edge),
+ * and the vertex keeps the smallest key offered, lowered with a compare-and-set loop; the thread that
+ * first lowers it from unclaimed adds it to its chunk's buffer, so each vertex is collected once. Once
+ * the level is expanded, the collected vertices are sorted by their keys and appended to the queue.
+ * That is the parent and the queue order a plain queue-based BFS gives, the same choice as the
+ * bottom-up step of DirectionOptimizingBFS, so hop counts, paths and levels are exactly those of
+ * SearchWorkspace.bfs however the chunks are scheduled. Small frontiers are expanded on the calling
+ * thread.
+ *
+ * On graphs with fewer than PARALLEL_MIN_VERTICES vertices, which includes every bundled map, the
+ * frontiers are too small to pay for the tasks and the keys, and the search runs SearchWorkspace.bfs
+ * instead. An instance runs one search at a time.
+ */
+public class ParallelBFS {
+    // frontier vertices expanded by one task
+    private static final int CHUNK = 256;
+    // smaller graphs are searched sequentially
+    public static final int PARALLEL_MIN_VERTICES = 1 << 16;
+    private static final long UNCLAIMED = Long.MAX_VALUE;
+
+    private final RoutingGraph graph;
+    private final ForkJoinPool pool;
+    private final int[] dist;        // -1 until discovered; only written between levels
+    private final AtomicLongArray claim;  // the smallest (queue position of tail, edge) offered to a vertex
+    private final int[] predEdge;
+    private final int[] queue;       // every vertex discovered by the last search, level by level
+    private final long[] keys;
+    private final SearchWorkspace workspace;  // the sequential search, on small graphs only
+    private int[][] buffers = new int[0][];
+    private int[] bufferSizes = new int[0];
+    private int source = -1;
+    private int discovered;
+    private int levels;
+
+    /**
+     * Creates a search that runs on the common fork-join pool.
+     *
+     * @param graph the graph to search
+     */
+    public ParallelBFS(RoutingGraph graph) {
+        this(graph, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a search.
+     *
+     * @param graph the graph to search
+     * @param pool the pool to expand frontiers on
+     */
+    public ParallelBFS(RoutingGraph graph, ForkJoinPool pool) {
+        int n = graph.vertexCount();
+        this.graph = graph;
+        this.pool = pool;
+        dist = new int[n];
+        Arrays.fill(dist, -1);
+        claim = new AtomicLongArray(n);
+        for (int v = 0; v < n; v++) claim.set(v, UNCLAIMED);
+        predEdge = new int[n];
+        queue = new int[n];
+        keys = new long[n];
+        workspace = n < PARALLEL_MIN_VERTICES ? new SearchWorkspace(graph) : null;
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Searches the whole graph from a source.
+     *
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @return the number of vertices reached, including the source
+     */
+    public int search(ClosureMask mask, int source) {
+        if (mask != null && mask.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        if (source < 0 || source >= graph.vertexCount()) throw new IllegalArgumentException("Source out of range: " + source);
+        this.source = source;
+        if (workspace != null) {
+            workspace.bfs(graph, mask, source, -1);
+            discovered = workspace.settledCount();
+            levels = discovered == 0 ? 0 : (int) workspace.distance(workspace.settled(discovered - 1)) + 1;
+            return discovered;
+        }
+        for (int i = 0; i < discovered; i++) {
+            dist[queue[i]] = -1;
+            claim.set(queue[i], UNCLAIMED);
+        }
+        discovered = 0;
+        levels = 0;
+        if (mask != null && mask.isVertexClosed(source)) return 0;
+        long[] closed = mask == null ? null : mask.bits();
+
+        dist[source] = 0;
+        predEdge[source] = -1;
+        queue[discovered++] = source;
+        int levelStart = 0, levelEnd = discovered;
+        for (int depth = 1; levelStart < levelEnd; depth++) {
+            int chunks = (levelEnd - levelStart + CHUNK - 1) / CHUNK;
+            if (buffers.length < chunks) {
+                buffers = Arrays.copyOf(buffers, chunks);
+                bufferSizes = Arrays.copyOf(bufferSizes, chunks);
+            }
+            if (chunks == 1) {
+                expand(closed, levelStart, levelEnd, 0, depth);
+            } else {
+                pool.invoke(new LevelTask(closed, levelStart, levelEnd, 0, chunks, depth));
+            }
+            int found = 0;
+            for (int c = 0; c < chunks; c++) {
+                for (int k = 0; k < bufferSizes[c]; k++) keys[found++] = claim.get(buffers[c][k]);
+            }
+            // discover in the order a queue-based step would have
+            Arrays.sort(keys, 0, found);
+            for (int k = 0; k < found; k++) {
+                int e = (int) keys[k];
+                int w = graph.head(e);
+                dist[w] = depth;
+                predEdge[w] = e;
+                queue[discovered++] = w;
+            }
+            levels++;
+            levelStart = levelEnd;
+            levelEnd = discovered;
+        }
+        return discovered;
+    }
+
+    // expands one chunk of the frontier into its own buffer
+    private void expand(long[] closed, int levelStart, int levelEnd, int chunk, int depth) {
+        int from = levelStart + chunk * CHUNK;
+        int to = Math.min(from + CHUNK, levelEnd);
+        int[] buffer = buffers[chunk];
+        if (buffer == null) buffer = buffers[chunk] = new int[CHUNK * 4];
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            int u = queue[i];
+            for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (dist[w] != -1) continue;
+                long key = ((long) i << 32) | e;
+                long current;
+                while (key < (current = claim.get(w))) {
+                    if (claim.compareAndSet(w, current, key)) {
+                        if (current == UNCLAIMED) {
+                            if (size == buffer.length) buffer = buffers[chunk] = Arrays.copyOf(buffer, size * 2);
+                            buffer[size++] = w;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        bufferSizes[chunk] = size;
+    }
+
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] closed;
+        private final int levelStart;
+        private final int levelEnd;
+        private final int fromChunk;
+        private final int toChunk;
+        private final int depth;
+
+        LevelTask(long[] closed, int levelStart, int levelEnd, int fromChunk, int toChunk, int depth) {
+            this.closed = closed;
+            this.levelStart = levelStart;
+            this.levelEnd = levelEnd;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                expand(closed, levelStart, levelEnd, fromChunk, depth);
+                return;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            invokeAll(new LevelTask(closed, levelStart, levelEnd, fromChunk, mid, depth),
+                new LevelTask(closed, levelStart, levelEnd, mid, toChunk, depth));
+        }
+    }
+
+    public boolean isReached(int v) {
+        return workspace != null ? workspace.isReached(v) : dist[v] != -1;
+    }
+
+    /**
+     * Returns the number of edges from the source to v found by the last search.
+     *
+     * @return the hop count, or -1 if v was not reached
+     */
+    public int distance(int v) {
+        if (workspace != null) return workspace.isReached(v) ? (int) workspace.distance(v) : -1;
+        return dist[v];
+    }
+
+    /**
+     * Returns the edge v was discovered by in the last search, or -1 for the source or an unreached vertex.
+     */
+    public int predEdge(int v) {
+        if (workspace != null) return workspace.predEdge(v);
+        return isReached(v) ? predEdge[v] : -1;
+    }
+
+    /**
+     * Returns the number of vertices reached by the last search.
+     */
+    public int reachedCount() {
+        return discovered;
+    }
+
+    /**
+     * Returns the number of levels the last search expanded.
+     */
+    public int levelCount() {
+        return levels;
+    }
+
+    /**
+     * Returns the path to target found by the last search as a compact route.
+     *
+     * @param target the end of the route
+     * @param weights the traffic of every edge, for the route's totals
+     * @return the route, which has no edges if target was not reached or is the source
+     */
+    public Route route(int target, double[] weights) {
+        int count = 0;
+        for (int e = predEdge(target); e != -1; e = predEdge(graph.tail(e))) count++;
+        int[] edges = new int[count];
+        for (int e = predEdge(target); e != -1; e = predEdge(graph.tail(e))) edges[--count] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    /**
+     * Times one-to-all searches from random sources of a map against SearchWorkspace.bfs.
+     * Usage: ParallelBFS mapFile [searches] [threads]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        RoutingGraph graph = maps.getRoutingGraph();
+        int[] sources = Benchmark.randomVertices(graph, searches);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ParallelBFS bfs = new ParallelBFS(graph, pool);
+            SearchWorkspace workspace = new SearchWorkspace(graph);
+            long[] elapsed = Benchmark.time(
+                () -> { for (int s : sources) bfs.search(null, s); },
+                () -> { for (int s : sources) workspace.bfs(graph, null, s, -1); });
+            long reached = 0, sequential = 0;
+            for (int s : sources) {
+                reached += bfs.search(null, s);
+                workspace.bfs(graph, null, s, -1);
+                sequential += workspace.settledCount();
+            }
+            StdOut.printf("parallel on %d threads: %.1f us per search, %d reached%n", threads,
+                elapsed[0] / 1e3 / searches, reached);
+            StdOut.printf("sequential: %.1f us per search, %d reached%n", elapsed[1] / 1e3 / searches, sequential);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
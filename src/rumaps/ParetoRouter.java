@@ -0,0 +1,233 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The ParetoRouter class finds, in one search, every route that is not beaten on both total traffic
+ * and number of blocks by another route: the trade-off curve between minimizeIntersections (fewest
+ * blocks) and fastestPath (least traffic).
+ *
+ * A label is a route to a vertex, stored as (vertex, traffic, blocks, parent label, last edge) in
+ * primitive pools that are reused from query to query. Since every block adds exactly one to the
+ * count, labels are settled level by level in order of their number of blocks, and a label is kept
+ * only if it costs less than every label already kept at its vertex. That makes each vertex's labels
+ * Pareto-optimal the moment they are created, with at most one per vertex and level, and dominated
+ * ones are never expanded. Labels that cost at least as much as the cheapest route already found to
+ * the target are dropped as well, since that route has fewer blocks.
+ *
+ * The front starts with a route with as few blocks as minimizeIntersections and ends with a route
+ * with the least traffic, as fastestPath; among ties the routes may differ from theirs. An instance is
+ * not thread safe: every thread needs its own.
+ */
+public class ParetoRouter {
+    private final RoutingGraph graph;
+    private final double[] weights;
+
+    // the label pools
+    private int[] labelVertex = new int[256];
+    private int[] labelParent = new int[256];
+    private int[] labelEdge = new int[256];
+    private double[] labelCost = new double[256];
+    private int labelCount;
+
+    private final double[] bestCost;  // the least cost of a label kept at v, valid when bestStamp[v] == stamp
+    private final int[] bestStamp;
+    private final int[] levelLabel;   // the label at v on the level being built, valid when levelStamp[v] == level stamp
+    private final int[] levelStamp;
+    private int stamp;
+    private int levelStampValue;
+
+    /**
+     * Creates a router.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge; the array is not copied
+     */
+    public ParetoRouter(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        int n = graph.vertexCount();
+        this.graph = graph;
+        this.weights = weights;
+        bestCost = new double[n];
+        bestStamp = new int[n];
+        levelLabel = new int[n];
+        levelStamp = new int[n];
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Finds the whole Pareto front from source to target.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @return the routes in order of increasing number of blocks and decreasing traffic, or none if
+     *         target is unreachable or equals source
+     */
+    public ArrayList<Route> front(ClosureMask closures, int source, int target) {
+        return front(closures, source, target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds the Pareto front from source to target, keeping at most maxRoutes of its routes: the two
+     * ends and others spread evenly between them.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @param maxRoutes the most routes to return, at least 2
+     * @return the routes in order of increasing number of blocks and decreasing traffic, or none if
+     *         target is unreachable or equals source
+     */
+    public ArrayList<Route> front(ClosureMask closures, int source, int target, int maxRoutes) {
+        if (maxRoutes < 2) throw new IllegalArgumentException("At least the two ends of the front must be kept");
+        int n = graph.vertexCount();
+        if (source < 0 || source >= n || target < 0 || target >= n) throw new IllegalArgumentException("Vertex out of range");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        long[] closed = closures == null ? null : closures.bits();
+        ArrayList<Route> routes = new ArrayList<>();
+        labelCount = 0;
+        if (source == target || closures != null && closures.isVertexClosed(source)) return routes;
+        nextStamp();
+
+        IntList targetLabels = new IntList();
+        IntList level = new IntList();
+        IntList next = new IntList();
+        level.add(newLabel(source, -1, -1, 0));
+        bestCost[source] = 0;
+        bestStamp[source] = stamp;
+        while (level.size > 0) {
+            nextLevelStamp();
+            next.size = 0;
+            int targetLabel = -1;
+            for (int k = 0; k < level.size; k++) {
+                int label = level.items[k];
+                int u = labelVertex[label];
+                double cu = labelCost[label];
+                for (int e = graph.firstEdge(u), end = graph.endEdge(u); e < end; e++) {
+                    if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                    int w = graph.head(e);
+                    double cost = cu + weights[e];
+                    if (bestStamp[w] == stamp && cost >= bestCost[w]) continue;
+                    if (bestStamp[target] == stamp && cost >= bestCost[target]) continue;
+                    bestCost[w] = cost;
+                    bestStamp[w] = stamp;
+                    if (levelStamp[w] == levelStampValue) {
+                        int existing = levelLabel[w];
+                        labelParent[existing] = label;
+                        labelEdge[existing] = e;
+                        labelCost[existing] = cost;
+                        continue;
+                    }
+                    int created = newLabel(w, label, e, cost);
+                    levelStamp[w] = levelStampValue;
+                    levelLabel[w] = created;
+                    // routes that go on from the target are beaten by the route that stops there
+                    if (w == target) targetLabel = created;
+                    else next.add(created);
+                }
+            }
+            if (targetLabel != -1) targetLabels.add(targetLabel);
+            IntList swap = level;
+            level = next;
+            next = swap;
+        }
+
+        int size = targetLabels.size;
+        for (int i = 0; i < Math.min(size, maxRoutes); i++) {
+            // spread the kept routes evenly over the front, always keeping both ends
+            int index = size <= maxRoutes ? i : (int) Math.round(i * (size - 1) / (double) (maxRoutes - 1));
+            routes.add(toRoute(source, targetLabels.items[index]));
+        }
+        return routes;
+    }
+
+    private int newLabel(int vertex, int parent, int edge, double cost) {
+        if (labelCount == labelVertex.length) {
+            int capacity = labelCount * 2;
+            labelVertex = Arrays.copyOf(labelVertex, capacity);
+            labelParent = Arrays.copyOf(labelParent, capacity);
+            labelEdge = Arrays.copyOf(labelEdge, capacity);
+            labelCost = Arrays.copyOf(labelCost, capacity);
+        }
+        labelVertex[labelCount] = vertex;
+        labelParent[labelCount] = parent;
+        labelEdge[labelCount] = edge;
+        labelCost[labelCount] = cost;
+        return labelCount++;
+    }
+
+    private Route toRoute(int source, int label) {
+        int count = 0;
+        for (int l = label; labelEdge[l] != -1; l = labelParent[l]) count++;
+        int[] edges = new int[count];
+        for (int l = label; labelEdge[l] != -1; l = labelParent[l]) edges[--count] = labelEdge[l];
+        return new Route(graph, source, edges, weights);
+    }
+
+    private void nextStamp() {
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(bestStamp, 0);
+            stamp = 0;
+        }
+        stamp++;
+    }
+
+    private void nextLevelStamp() {
+        if (levelStampValue == Integer.MAX_VALUE) {
+            Arrays.fill(levelStamp, 0);
+            levelStampValue = 0;
+        }
+        levelStampValue++;
+    }
+
+    /**
+     * Returns the number of labels the last query created.
+     */
+    public int labelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Computes the fronts between random pairs of a map and reports their sizes and the time per
+     * query, next to the time of one breadth-first and one Dijkstra search.
+     * Usage: ParetoRouter mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        ParetoRouter router = new ParetoRouter(graph, weights);
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        long[] elapsed = Benchmark.time(
+            () -> { for (int q = 0; q < queries; q++) router.front(null, sources[q], targets[q]); },
+            () -> {
+                for (int q = 0; q < queries; q++) {
+                    workspace.bfs(graph, null, sources[q], targets[q]);
+                    workspace.dijkstra(graph, weights, sources[q], targets[q]);
+                }
+            });
+        long routes = 0, labels = 0;
+        int largest = 0;
+        for (int q = 0; q < queries; q++) {
+            int size = router.front(null, sources[q], targets[q]).size();
+            routes += size;
+            labels += router.labelCount();
+            largest = Math.max(largest, size);
+        }
+        StdOut.printf("%.1f us per front (%.2f routes on average, at most %d; %.0f labels), %.1f us per BFS and Dijkstra%n",
+            elapsed[0] / 1e3 / queries, routes / (double) queries, largest, labels / (double) queries,
+            elapsed[1] / 1e3 / queries);
+    }
+}
@@ -0,0 +1,174 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The Partition class divides the intersections of a RoutingGraph into cells, on one or more nested
+ * levels, for engines that precompute something per cell such as CustomizableRouter and ArcFlags.
+ *
+ * Cells come from recursive coordinate bisection: a group of intersections that is to be divided
+ * into k cells is sorted along the longer side of its bounding box and cut where the first
+ * floor(k / 2) / k of it ends, and both halves are divided the same way. Cells are therefore
+ * balanced to within one intersection, and on road networks most of them are compact areas with few
+ * blocks leaving them. The partition depends only on where the intersections are, not on traffic, so
+ * it never has to be recomputed when traffic changes.
+ *
+ * Level 0 has the most and smallest cells. Every cell of level l + 1 is the union of
+ * cellCount(l) / cellCount(l + 1) consecutive cells of level l, so cell(l, v) / that ratio is
+ * cell(l + 1, v).
+ */
+public class Partition {
+    private final RoutingGraph graph;
+    private final int[] counts;
+    private final int[][] cells;    // cells[l][v] is the cell of v on level l
+
+    /**
+     * Partitions a graph into levels whose finest cells have at most 32 intersections and whose
+     * cells grow eight times larger from one level to the next, until a level has fewer than 64.
+     *
+     * @param graph the graph to partition
+     */
+    public Partition(RoutingGraph graph) {
+        this(graph, defaultCounts(graph.vertexCount()));
+    }
+
+    /**
+     * Partitions a graph.
+     *
+     * @param graph the graph to partition
+     * @param cellCounts the number of cells of every level, from the finest to the coarsest; every
+     *        count must be a multiple of the next one
+     */
+    public Partition(RoutingGraph graph, int... cellCounts) {
+        int n = graph.vertexCount();
+        if (cellCounts.length == 0) throw new IllegalArgumentException("Expected at least one level");
+        for (int l = 0; l < cellCounts.length; l++) {
+            if (cellCounts[l] < 1 || cellCounts[l] > Math.max(1, n)) throw new IllegalArgumentException("Cell count out of range: " + cellCounts[l]);
+            if (l > 0 && cellCounts[l - 1] % cellCounts[l] != 0)
+                throw new IllegalArgumentException("Every level must split the cells of the next one evenly");
+        }
+        this.graph = graph;
+        this.counts = cellCounts.clone();
+        int levels = counts.length;
+        this.cells = new int[levels][n];
+
+        int[] order = new int[n];
+        for (int v = 0; v < n; v++) order[v] = v;
+        long[] keys = new long[n];
+        // start[c] .. start[c + 1] - 1 is the range of order that holds cell c of the level just built
+        int[] start = {0, n};
+        int parents = 1;
+        for (int l = levels - 1; l >= 0; l--) {
+            int ratio = counts[l] / parents;
+            int[] next = new int[counts[l] + 1];
+            for (int p = 0; p < parents; p++) split(order, keys, start[p], start[p + 1], ratio, p * ratio, next);
+            next[counts[l]] = n;
+            for (int c = 0; c < counts[l]; c++) {
+                for (int i = next[c]; i < next[c + 1]; i++) cells[l][order[i]] = c;
+            }
+            start = next;
+            parents = counts[l];
+        }
+    }
+
+    private static int[] defaultCounts(int n) {
+        IntList counts = new IntList();
+        int count = 1;
+        while (count * 32 < n) count *= 2;
+        counts.add(count);
+        while (count >= 64) {
+            count /= 8;
+            counts.add(count);
+        }
+        return counts.toArray();
+    }
+
+    /**
+     * Divides order[from .. to) into parts cells numbered firstCell and up, rearranging it so that
+     * every cell is a consecutive range, and records where the ranges start.
+     */
+    private void split(int[] order, long[] keys, int from, int to, int parts, int firstCell, int[] start) {
+        if (parts == 1) {
+            start[firstCell] = from;
+            return;
+        }
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            Coordinate c = coordinate(order[i]);
+            minX = Math.min(minX, c.getX());
+            maxX = Math.max(maxX, c.getX());
+            minY = Math.min(minY, c.getY());
+            maxY = Math.max(maxY, c.getY());
+        }
+        boolean alongX = (long) maxX - minX >= (long) maxY - minY;
+        for (int i = from; i < to; i++) {
+            Coordinate c = coordinate(order[i]);
+            keys[i] = (long) (alongX ? c.getX() : c.getY()) << 32 | order[i];
+        }
+        Arrays.sort(keys, from, to);
+        for (int i = from; i < to; i++) order[i] = (int) keys[i];
+        int left = parts / 2;
+        int cut = from + (int) ((long) (to - from) * left / parts);
+        split(order, keys, from, cut, left, firstCell, start);
+        split(order, keys, cut, to, parts - left, firstCell + left, start);
+    }
+
+    private Coordinate coordinate(int v) {
+        Intersection intersection = graph.intersection(v);
+        return intersection == null ? new Coordinate(0, 0) : intersection.getCoordinate();
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public int levelCount() {
+        return counts.length;
+    }
+
+    public int cellCount(int level) {
+        return counts[level];
+    }
+
+    /**
+     * Returns the cell of vertex v on a level.
+     */
+    public int cell(int level, int v) {
+        return cells[level][v];
+    }
+
+    /**
+     * Returns true if edge e leads from one cell of a level into another.
+     */
+    public boolean isCut(int level, int e) {
+        int[] cell = cells[level];
+        return cell[graph.tail(e)] != cell[graph.head(e)];
+    }
+
+    /**
+     * Returns the number of edges that lead from one cell of a level into another.
+     */
+    public int cutCount(int level) {
+        int cut = 0;
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            if (isCut(level, e)) cut++;
+        }
+        return cut;
+    }
+
+    /**
+     * Partitions a map and reports the number of cells and cut edges of every level.
+     * Usage: Partition mapFile
+     */
+    public static void main(String[] args) {
+        RUMaps maps = new RUMaps(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        long begin = System.nanoTime();
+        Partition partition = new Partition(graph);
+        long elapsed = System.nanoTime() - begin;
+        StdOut.printf("partitioned %d intersections into %d levels in %.1f ms%n", graph.vertexCount(), partition.levelCount(), elapsed / 1e6);
+        for (int l = 0; l < partition.levelCount(); l++) {
+            StdOut.printf("level %d: %d cells, %d of %d edges cut%n", l, partition.cellCount(l), partition.cutCount(l), graph.edgeCount());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package rumaps;
+
+/**
+ * The PathOracle interface is implemented by precomputed structures that answer least traffic
+ * queries on a fixed graph and fixed weights without searching, such as AllPairsTable.
+ *
+ * An oracle installed with RUMaps.setPathOracle answers fastestPath for every query without closures.
+ */
+public interface PathOracle {
+
+    /**
+     * Returns the graph the oracle was built for; vertex ids refer to it.
+     */
+    RoutingGraph getGraph();
+
+    /**
+     * Returns the least traffic from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the cost, or infinity if t is unreachable
+     */
+    double distance(int s, int t);
+
+    /**
+     * Returns a least traffic route from s to t.
+     *
+     * @param s the start vertex
+     * @param t the end vertex
+     * @return the route, which has no edges if t is unreachable or equals s
+     */
+    Route route(int s, int t);
+}
@@ -1,6 +1,7 @@
 package rumaps;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class represents the information that can be attained from the Rutgers University Map.
@@ -18,6 +19,35 @@ import java.util.*;
 public class RUMaps {
     
     private Network rutgers;
+    private RoutingGraph routingGraph;
+    private VertexOrdering vertexOrdering = VertexOrdering.FILE;
+    // the traffic the routing graph was built with, which is version 0 of the versioned network
+    private double[] trafficWeights;
+    private VersionedNetwork versionedNetwork;
+    private TrafficFeed trafficFeed;
+    // one search workspace per thread, created on first use
+    private final ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(getRoutingGraph()));
+    private final ThreadLocal<DirectionOptimizingBFS> hopSearches = ThreadLocal.withInitial(() -> new DirectionOptimizingBFS(getRoutingGraph()));
+    // these read the weights they were created with, so they are replaced when a query pins other weights
+    private final ThreadLocal<ParetoRouter> paretoRouters = new ThreadLocal<>();
+    private final ThreadLocal<AlternativeRoutes> alternativeRoutes = new ThreadLocal<>();
+    // attached to the versioned network, so a route stays cached until a version that affects it
+    private RouteCache routeCache;
+    // the search trees from the last start passed to precompute, built in the background on the
+    // version in speculativeVersion
+    private Future<ShortestPathTree> speculativeTree;
+    private long speculativeVersion;
+    private ExecutorService precomputeExecutor;
+    private ContractionHierarchy contractionHierarchy;
+    private volatile PathOracle pathOracle;
+    private KShortestPaths kShortestPaths;
+    private TurnCostGraph turnCostGraph;
+    private long turnCostVersion;
+    private final ArrayList<int[]> forbiddenTurns = new ArrayList<>();
+    private TrafficProfiles trafficProfiles;
+    private CustomizableRouter customizableRouter;
+    private ArcFlags arcFlags;
+    private ChainContraction chainContraction;
 
     /**
      * **DO NOT MODIFY THIS METHOD**
@@ -183,49 +213,34 @@ public class RUMaps {
     /**
      * Use a DFS to traverse through blocks, and find the order of intersections
      * traversed starting from a given intersection (as source).
-     * 
-     * Implement this method recursively, using a helper method.
      */
     public ArrayList<Intersection> reachableIntersections(Intersection source) {
-        ArrayList<Intersection> vis = new ArrayList<>();
-        boolean[] mark = new boolean[rutgers.getIntersections().length];
-        int index = rutgers.findIntersection(source.getCoordinate().getX(), source.getCoordinate().getY());
-        if (index < 0 || index >= rutgers.getIntersections().length) return vis;
-        dfs(index, mark, vis);
-
-
-        return vis;
+        return reachableIntersections(source, null);
     }
 
-    private void dfs(int index, boolean[] mark, ArrayList<Intersection> vis){
-        if (index < 0 || index >= rutgers.getIntersections().length){
-            return;
-        }        
-        
-        if (mark[index]){
-            return;
-        }
-
-        mark[index] = true;
-
-        Intersection curr = rutgers.getIntersections()[index];
-        vis.add(curr);
-
-        if (index < 0 || index >= rutgers.getIntersections().length) return;
-        Block ptr = rutgers.adj(index);
-
-        while (ptr != null){
-            Intersection next = ptr.other(curr);
-            int nextIndex = rutgers.findIntersection(next.getCoordinate().getX(), next.getCoordinate().getY());
-
-            if (nextIndex >= 0 && nextIndex < rutgers.getIntersections().length) {
-                dfs(nextIndex, mark, vis);
+    /**
+     * Finds the order of intersections traversed by a DFS from a given intersection, without
+     * using closed blocks or intersections.
+     *
+     * @param source The starting intersection
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The intersections in the order they were visited, or an empty ArrayList if source is not in the network
+     */
+    public ArrayList<Intersection> reachableIntersections(Intersection source, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        ArrayList<Intersection> vis = new ArrayList<>();
+        int index = graph.indexOf(source);
+        if (index < 0) return vis;
+
+        SearchWorkspace workspace = workspaces.get();
+        try (NetworkVersion version = pin()) {
+            int count = workspace.dfs(graph, closuresOf(version, closures), index);
+            for (int i = 0; i < count; i++) {
+                vis.add(graph.intersection(workspace.settled(i)));
             }
-
-            ptr = ptr.getNext();
         }
+        return vis;
     }
-     
 
     /**
      * Finds and returns the path with the least number of intersections (nodes) from the start to the end intersection.
@@ -238,44 +253,37 @@ public class RUMaps {
      * @return The path with the least number of turns, or an empty ArrayList if no path exists
      */
     public ArrayList<Intersection> minimizeIntersections(Intersection start, Intersection end) {
-        HashMap<Intersection, Intersection> edgeTo = new HashMap<>();
-        HashSet<Intersection> vis = new HashSet<>();
-        Queue<Intersection> queue = new Queue<>();
-        queue.enqueue(start);
-        vis.add(start);
-
-        while (!queue.isEmpty()){
-            Intersection curr = queue.dequeue();
-            if (curr.equals(end)){
-                break;
-            }
-
-            int index = rutgers.findIntersection(curr.getCoordinate().getX(), curr.getCoordinate().getY());
-
-            if (index < 0 || index >= rutgers.getIntersections().length) continue;
-            Block ptr = rutgers.adj(index);
+        return minimizeIntersections(start, end, null);
+    }
 
-            while (ptr != null){
-                Intersection neighbor = ptr.other(curr);
-                if (!vis.contains(neighbor)){
-                    edgeTo.put(neighbor, curr);
-                    vis.add(neighbor);
-                    queue.enqueue(neighbor);
-                }
-                ptr = ptr.getNext();
+    /**
+     * Finds the path with the least number of intersections from the start to the end intersection,
+     * without using closed blocks or intersections.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The path with the least number of turns, or an empty ArrayList if no path exists
+     */
+    public ArrayList<Intersection> minimizeIntersections(Intersection start, Intersection end, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            ShortestPathTree tree = closures == null ? precomputedTree(s, version) : null;
+            if (tree != null) return tree.hopPath(t);
+
+            ClosureMask mask = closuresOf(version, closures);
+            Route route = routeCache.get(s, t, RouteMetric.INTERSECTIONS, mask, version.getVersion());
+            if (route == null) {
+                DirectionOptimizingBFS search = hopSearches.get();
+                search.search(mask, s, t);
+                route = search.route(t, version.getWeights());
+                routeCache.put(s, t, RouteMetric.INTERSECTIONS, mask, version.getVersion(), route);
             }
+            return route.toIntersections();
         }
-        ArrayList<Intersection> p = new ArrayList<>();
-
-        if (!edgeTo.containsKey(end)){
-            return p;
-        }
-
-        for (Intersection at = end; at != null; at = edgeTo.get(at)){
-            p.add(at);
-        }
-        Collections.reverse(p);
-        return p;
     }
 
     /**
@@ -291,71 +299,276 @@ public class RUMaps {
      * @return The path with the least traffic, or an empty ArrayList if no path exists
      */
     public ArrayList<Intersection> fastestPath(Intersection start, Intersection end) {
-        HashMap<Intersection, Double> d = new HashMap<>();
-        HashMap<Intersection, Intersection> pred = new HashMap<>();
-        HashSet<Intersection> done = new HashSet<>();
-        ArrayList<Intersection> fringe = new ArrayList<>();
-        
-        for (Intersection i : rutgers.getIntersections()){
-            if (i != null){
-                d.put(i, Double.POSITIVE_INFINITY);
+        return fastestPath(start, end, null);
+    }
+
+    /**
+     * Finds the path with the least traffic from the start to the end intersection, without using
+     * closed blocks or intersections.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The path with the least traffic, or an empty ArrayList if no path exists
+     */
+    public ArrayList<Intersection> fastestPath(Intersection start, Intersection end, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            // an oracle holds the traffic the graph was built with, which only version 0 still has
+            PathOracle oracle = pathOracle;
+            if (closures == null && oracle != null && version.getVersion() == 0) return oracle.route(s, t).toIntersections();
+            ShortestPathTree tree = closures == null ? precomputedTree(s, version) : null;
+            if (tree != null) return tree.trafficPath(t);
+
+            ClosureMask mask = closuresOf(version, closures);
+            Route route = routeCache.get(s, t, RouteMetric.TRAFFIC, mask, version.getVersion());
+            if (route == null) {
+                SearchWorkspace workspace = workspaces.get();
+                workspace.dijkstra(graph, version.getWeights(), mask, s, t);
+                route = Route.fromSearch(graph, workspace, s, t, version.getWeights());
+                routeCache.put(s, t, RouteMetric.TRAFFIC, mask, version.getVersion(), route);
             }
+            return route.toIntersections();
         }
+    }
 
-        d.put(start, 0.0);
-        fringe.add(start);
-
-        while (!fringe.isEmpty()){
-            Intersection min = fringe.get(0);
-            
-            for (Intersection i : fringe){
-                if (d.get(i) < d.get(min)){
-                    min = i;
+    /**
+     * Finds the path with the least traffic from the start to the end intersection when turning
+     * costs extra: a right-angle turn costs a quarter of the average block's traffic, sharper and
+     * gentler turns cost in proportion to their angle and turning back costs twice the average
+     * block's traffic. Turns forbidden with forbidTurn are never made. The turn graph is rebuilt
+     * for the traffic of the latest version the first time it is queried.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The path with the least traffic and turns, or an empty ArrayList if no path exists
+     */
+    public ArrayList<Intersection> fastestPathWithTurns(Intersection start, Intersection end, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            TurnCostGraph turns;
+            synchronized (this) {
+                if (turnCostGraph == null || turnCostVersion != version.getVersion()) {
+                    turnCostGraph = new TurnCostGraph(graph, version.getWeights(), forbiddenTurns.toArray(new int[0][]));
+                    turnCostVersion = version.getVersion();
                 }
+                turns = turnCostGraph;
             }
-            fringe.remove(min);
-            if (min.equals(end)){
-                break;
-            }
-            done.add(min);
-
-            int index = rutgers.findIntersection(min.getCoordinate().getX(), min.getCoordinate().getY());
-            
-            if (index < 0 || index >= rutgers.getIntersections().length) continue;
-            Block ptr = rutgers.adj(index);
-
-            while (ptr != null){
-                Intersection neighbor = ptr.other(min);
-                if (done.contains(neighbor)){
-                    ptr = ptr.getNext();
-                    continue;
-                }
+            return turns.route(closuresOf(version, closures), s, t).toIntersections();
+        }
+    }
 
-                double alt = d.get(min) + ptr.getTraffic();
+    /**
+     * Forbids turning from one block onto another at the intersection they share, for the paths
+     * fastestPathWithTurns finds.
+     *
+     * @param from The block turned from
+     * @param to The block turned onto
+     * @throws IllegalArgumentException if the blocks do not share an intersection
+     */
+    public synchronized void forbidTurn(Block from, Block to) {
+        int[][] turns = TurnCostGraph.turnsBetween(getRoutingGraph(), from, to);
+        if (turns.length == 0) throw new IllegalArgumentException("Blocks do not meet: " + from + " and " + to);
+        forbiddenTurns.addAll(Arrays.asList(turns));
+        turnCostGraph = null;
+    }
+
+    /**
+     * Finds the path that arrives first when leaving the start intersection at a given time of day,
+     * with the traffic of every block following its profile in getTrafficProfiles().
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param departure The departure time in minutes since midnight, see TrafficProfiles.parseTime
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The path with the earliest arrival, or an empty ArrayList if no path exists
+     */
+    public ArrayList<Intersection> fastestPathAt(Intersection start, Intersection end, double departure, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            return getTrafficProfiles().route(closuresOf(version, closures), s, t, departure).toIntersections();
+        }
+    }
 
-                if (alt < d.get(neighbor)){
-                    d.put(neighbor, alt);
-                    pred.put(neighbor, min);
+    /**
+     * Returns the time-of-day traffic profiles of the blocks, creating them on first use with every
+     * block keeping its traffic all day and an average block taking one minute. Profiles should be
+     * set before fastestPathAt is called from other threads. The profiles scale the traffic the graph
+     * was built with; traffic published to getVersionedNetwork() does not change them, but its
+     * closures are honored.
+     *
+     * @return the profiles of the routing graph
+     */
+    public synchronized TrafficProfiles getTrafficProfiles() {
+        if (trafficProfiles == null) {
+            RoutingGraph graph = getRoutingGraph();
+            double mean = 0;
+            for (double w : trafficWeights) mean += w / trafficWeights.length;
+            trafficProfiles = new TrafficProfiles(graph, trafficWeights, mean);
+        }
+        return trafficProfiles;
+    }
 
-                    if (!fringe.contains(neighbor)){
-                        fringe.add(neighbor);
-                    }
+    /**
+     * Finds up to k loopless routes from the start to the end intersection in order of increasing
+     * traffic. The first is the path fastestPath returns; pathInformation() of each route gives its
+     * totals.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param k The most routes to return
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The routes, or an empty list if no path exists
+     */
+    public ArrayList<Route> fastestPaths(Intersection start, Intersection end, int k, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            KShortestPaths paths;
+            synchronized (this) {
+                if (kShortestPaths == null || kShortestPaths.getWeights() != version.getWeights()) {
+                    kShortestPaths = new KShortestPaths(graph, version.getWeights());
                 }
-                ptr = ptr.getNext();
+                paths = kShortestPaths;
             }
+            return paths.find(closuresOf(version, closures), s, t, k);
         }
-        ArrayList<Intersection> p = new ArrayList<>();
+    }
 
-        if (!pred.containsKey(end)){
-            return p;
+    /**
+     * Finds the fastest path and up to count - 1 meaningfully different alternatives to it: each one
+     * costs at most 40% more than the fastest path, shares at most 60% of its length with the routes
+     * before it and makes no needless detours.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param count The most routes to return, including the fastest path
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The routes with the fastest first, or an empty list if no path exists
+     */
+    public ArrayList<Route> alternativeRoutes(Intersection start, Intersection end, int count, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            AlternativeRoutes finder = alternativeRoutes.get();
+            if (finder == null || finder.getWeights() != version.getWeights()) {
+                finder = new AlternativeRoutes(graph, version.getWeights());
+                alternativeRoutes.set(finder);
+            }
+            return finder.find(closuresOf(version, closures), s, t, count);
         }
+    }
 
-        for (Intersection at = end; at != null; at = pred.get(at)){
-            p.add(at);
+    /**
+     * Finds, in a single search, every route for which no other route has both less traffic and fewer
+     * intersections. The first route has as few intersections as minimizeIntersections finds and the
+     * last as little traffic as fastestPath finds; the ones between trade one for the other.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The routes in order of increasing intersections and decreasing traffic, or an empty list if no path exists
+     */
+    public ArrayList<Route> paretoRoutes(Intersection start, Intersection end, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) return new ArrayList<>();
+        try (NetworkVersion version = pin()) {
+            ParetoRouter router = paretoRouters.get();
+            if (router == null || router.getWeights() != version.getWeights()) {
+                router = new ParetoRouter(graph, version.getWeights());
+                paretoRouters.set(router);
+            }
+            return router.front(closuresOf(version, closures), s, t);
         }
+    }
 
-        Collections.reverse(p);
-        return p;
+    /**
+     * Finds what can be reached from an intersection within a traffic budget: the intersections
+     * whose least traffic from the start is at most the budget, and the blocks leaving them with the
+     * fraction of each block's length that is within the budget.
+     *
+     * @param start The starting intersection
+     * @param budget The most traffic that may be spent
+     * @param closures The closed blocks and intersections, or null if everything is open
+     * @return The reachable area
+     */
+    public Isochrone isochrone(Intersection start, double budget, ClosureMask closures) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        if (s < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        try (NetworkVersion version = pin()) {
+            return new Isochrone(graph, version.getWeights(), closuresOf(version, closures), s, budget, workspaces.get());
+        }
+    }
+
+    /**
+     * Scores every intersection by the number of intersections and the length of street it can reach
+     * within each of several traffic budgets, searching from all intersections in parallel.
+     *
+     * @param budgets The traffic budgets, in increasing order
+     * @return The scores, one row per intersection of the network
+     */
+    public AccessibilityScores accessibilityScores(double... budgets) {
+        RoutingGraph graph = getRoutingGraph();
+        try (NetworkVersion version = pin()) {
+            return new AccessibilityScores(graph, version.getWeights(), closuresOf(version, null), budgets);
+        }
+    }
+
+    /**
+     * Finds the routes between many pairs of intersections at once, searching once per distinct start
+     * and spreading the searches over all cores. Pair i goes from starts[i] to ends[i]; intersections
+     * that are not in the network are treated as unreachable.
+     *
+     * @param starts The starting intersections
+     * @param ends The destination intersections
+     * @param metric Whether to minimize intersections or traffic
+     * @param keepPaths Whether the result should hold the path of every pair, or only its totals
+     * @return The table of results, one row per pair
+     */
+    public BatchResult routeBatch(Intersection[] starts, Intersection[] ends, RouteMetric metric, boolean keepPaths) {
+        RoutingGraph graph = getRoutingGraph();
+        int[] sources = new int[starts.length];
+        int[] targets = new int[ends.length];
+        for (int i = 0; i < starts.length; i++) sources[i] = graph.indexOf(starts[i]);
+        for (int i = 0; i < ends.length; i++) targets[i] = graph.indexOf(ends[i]);
+        try (NetworkVersion version = pin()) {
+            return new BatchRouter(graph, version.getWeights(), closuresOf(version, null)).route(sources, targets, metric, keepPaths);
+        }
+    }
+
+    /**
+     * Computes the least traffic and the number of blocks on that route between every pair of the
+     * given intersections. Row i and column i both stand for points[i]. The costs are those of the
+     * traffic the graph was built with, which the contraction hierarchy is computed for.
+     *
+     * @param points The intersections, all of which must be in the network
+     * @return The matrix of costs and hop counts
+     */
+    public DistanceMatrix distanceMatrix(Intersection[] points) {
+        RoutingGraph graph = getRoutingGraph();
+        int[] vertices = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            vertices[i] = graph.indexOf(points[i]);
+            if (vertices[i] < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        }
+        return new DistanceMatrix(getContractionHierarchy(), vertices);
     }
 
     /**
@@ -369,30 +582,32 @@ public class RUMaps {
      * @return A double array containing the total length, average experienced traffic factor, and total traffic of the path (in that order)
      */
     public double[] pathInformation(ArrayList<Intersection> path) {
-        double totLen = 0;
-        double totTraf = 0;
-        
-        for (int i = 0; i < path.size() - 1; i++){
-            Intersection f = path.get(i);
-            Intersection t = path.get(i + 1);
-            int index = rutgers.findIntersection(f.getCoordinate().getX(), f.getCoordinate().getY());
-
-            if (index < 0 || index >= rutgers.getIntersections().length) continue;
-            Block ptr = rutgers.adj(index);
-
-            while (ptr != null){
-                if (ptr.getLastEndpoint().equals(t)){
-                    totLen += ptr.getLength();
-                    totTraf += ptr.getTraffic();
-                    break;
-                }
-                ptr = ptr.getNext();
+        RoutingGraph graph = getRoutingGraph();
+        try (NetworkVersion version = pin()) {
+            if (!path.isEmpty()) {
+                ShortestPathTree tree = precomputedTree(graph.indexOf(path.get(0)), version);
+                double[] info = tree == null ? null : tree.pathInformation(path);
+                if (info != null) return info;
             }
-        }
 
-        double avgTrafficFactor = (totLen == 0) ? 0 : totTraf / totLen;
+            double[] weights = version.getWeights();
+            double totLen = 0;
+            double totTraf = 0;
+
+            for (int i = 0; i < path.size() - 1; i++){
+                int f = graph.indexOf(path.get(i));
+                int t = graph.indexOf(path.get(i + 1));
+                // the first block between the two, as in the adjacency list of the network
+                int e = f < 0 || t < 0 ? -1 : graph.findEdge(f, t);
+                if (e < 0) continue;
+                totLen += graph.length(e);
+                totTraf += weights[e];
+            }
 
-        return new double[] {totLen, avgTrafficFactor, totTraf};
+            double avgTrafficFactor = (totLen == 0) ? 0 : totTraf / totLen;
+
+            return new double[] {totLen, avgTrafficFactor, totTraf};
+        }
     }
 
     /**
@@ -452,6 +667,210 @@ public class RUMaps {
         return rutgers;
     }
 
+    /**
+     * Returns a compact copy of the network for the routing engines, building it on first use.
+     * The copy reflects the network as it was when this method was first called, and is what
+     * reachableIntersections, minimizeIntersections and fastestPath search. Its vertices are numbered
+     * in the order set with setVertexOrdering.
+     *
+     * @return the routing graph of the "rutgers" network
+     */
+    public synchronized RoutingGraph getRoutingGraph() {
+        if (routingGraph == null) {
+            routingGraph = vertexOrdering.apply(new RoutingGraph(rutgers));
+            trafficWeights = routingGraph.trafficWeights();
+            versionedNetwork = new VersionedNetwork(routingGraph, trafficWeights);
+            routeCache = new RouteCache(versionedNetwork, 1024);
+        }
+        return routingGraph;
+    }
+
+    /**
+     * Returns the versioned traffic and closures of the routing graph. Version 0 has the traffic the
+     * graph was built with and nothing closed. Every query pins the latest version, routes on its
+     * traffic together with its closures and the ones passed in, and releases it when done, so
+     * updates published here, for example by a TrafficFeed, reach the next query without locking.
+     *
+     * The precomputed engines - the contraction hierarchy, arc flags, chain contraction, customizable
+     * router, traffic profiles and any path oracle - keep the traffic the graph was built with.
+     * Versions that replace the topology are not supported by the queries of this class.
+     *
+     * @return the versioned network of getRoutingGraph()
+     */
+    public synchronized VersionedNetwork getVersionedNetwork() {
+        getRoutingGraph();
+        return versionedNetwork;
+    }
+
+    /**
+     * Returns the live traffic feed of the routing graph, created on first use. The updates it
+     * accepts, directly or from the files and sockets it is told to follow, are published to
+     * getVersionedNetwork(), so every query started after a batch is published routes on it.
+     *
+     * @return the traffic feed attached to getVersionedNetwork()
+     */
+    public synchronized TrafficFeed getTrafficFeed() {
+        if (trafficFeed == null) trafficFeed = new TrafficFeed(getVersionedNetwork());
+        return trafficFeed;
+    }
+
+    // pins the latest version for one query, which must close it
+    private NetworkVersion pin() {
+        NetworkVersion version = getVersionedNetwork().pin();
+        if (version.getGraph() != routingGraph) {
+            version.close();
+            throw new IllegalStateException("The routing graph was replaced in the versioned network");
+        }
+        return version;
+    }
+
+    // the closures a query honors: the ones passed in and the ones of the pinned version, or null if none
+    private static ClosureMask closuresOf(NetworkVersion version, ClosureMask closures) {
+        ClosureMask published = version.getClosures();
+        if (closures == null) return published.isEmpty() ? null : published;
+        return closures.union(published);
+    }
+
+    /**
+     * Chooses how the routing graph numbers its vertices, for example along a Hilbert curve so that
+     * searches touch memory in fewer places. Paths are lists of intersections and do not change.
+     *
+     * @param ordering the order of the vertices; FILE, the default, keeps the order of the map file
+     * @throws IllegalStateException if the routing graph has already been built
+     */
+    public synchronized void setVertexOrdering(VertexOrdering ordering) {
+        if (ordering == null) throw new IllegalArgumentException("Expected an ordering");
+        if (routingGraph != null) throw new IllegalStateException("The routing graph has already been built");
+        vertexOrdering = ordering;
+    }
+
+    /**
+     * Starts building, in the background, the search trees from an intersection that is likely to be
+     * the start of the next queries, such as the first of the two intersections picked on the map.
+     * Once the trees are ready, minimizeIntersections, fastestPath and pathInformation answer queries
+     * from that start by walking them; until then they search as usual. Only the latest start is kept,
+     * and the trees are only used while the version they were built on is the latest.
+     *
+     * @param start the expected start intersection, or null to discard the trees
+     */
+    public synchronized void precompute(Intersection start) {
+        Future<ShortestPathTree> previous = speculativeTree;
+        if (previous != null) previous.cancel(false);
+        speculativeTree = null;
+        if (start == null) return;
+
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        if (s < 0) return;
+        if (precomputeExecutor == null) {
+            precomputeExecutor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "RUMaps precompute");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long expected = getVersionedNetwork().currentVersion();
+        speculativeVersion = expected;
+        speculativeTree = precomputeExecutor.submit(() -> {
+            try (NetworkVersion version = pin()) {
+                // a newer version was published before the task started, so the trees would never be used
+                if (version.getVersion() != expected) return null;
+                return new ShortestPathTree(graph, version.getWeights(), closuresOf(version, null), s, workspaces.get());
+            }
+        });
+    }
+
+    // returns the precomputed trees if they are from s, built on version and finished, without waiting for them
+    private ShortestPathTree precomputedTree(int s, NetworkVersion version) {
+        Future<ShortestPathTree> future;
+        synchronized (this) {
+            if (speculativeVersion != version.getVersion()) return null;
+            future = speculativeTree;
+        }
+        if (s < 0 || future == null || !future.isDone() || future.isCancelled()) return null;
+        try {
+            ShortestPathTree tree = future.get();
+            return tree != null && tree.getSource() == s ? tree : null;
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the contraction hierarchy of the routing graph and its traffic, building it on first use.
+     */
+    public synchronized ContractionHierarchy getContractionHierarchy() {
+        if (contractionHierarchy == null) contractionHierarchy = new ContractionHierarchy(getRoutingGraph(), trafficWeights);
+        return contractionHierarchy;
+    }
+
+    /**
+     * Returns the arc flags of the routing graph and its traffic, computing them on first use.
+     */
+    public synchronized ArcFlags getArcFlags() {
+        if (arcFlags == null) arcFlags = new ArcFlags(getRoutingGraph(), trafficWeights);
+        return arcFlags;
+    }
+
+    /**
+     * Returns the routing graph with its chains of shape points contracted, built on first use.
+     */
+    public synchronized ChainContraction getChainContraction() {
+        if (chainContraction == null) chainContraction = new ChainContraction(getRoutingGraph(), trafficWeights);
+        return chainContraction;
+    }
+
+    /**
+     * Returns the customizable router of the routing graph, customized with the current traffic on
+     * first use. Call its customize method after traffic changes to bring it up to date.
+     */
+    public synchronized CustomizableRouter getCustomizableRouter() {
+        if (customizableRouter == null) customizableRouter = new CustomizableRouter(getRoutingGraph());
+        return customizableRouter;
+    }
+
+    /**
+     * Installs a precomputed structure, such as an AllPairsTable, that answers fastestPath without
+     * searching whenever no closures are given.
+     *
+     * @param oracle an oracle built for getRoutingGraph() and its traffic, or null to search again
+     */
+    public void setPathOracle(PathOracle oracle) {
+        if (oracle != null && oracle.getGraph() != getRoutingGraph()) throw new IllegalArgumentException("Oracle belongs to a different graph");
+        pathOracle = oracle;
+    }
+
+    public PathOracle getPathOracle() {
+        return pathOracle;
+    }
+
+    /**
+     * Returns the cache that minimizeIntersections and fastestPath keep their routes in, for its
+     * hit and miss counts. It is attached to getVersionedNetwork(), so every published version drops
+     * exactly the routes it could change.
+     */
+    public synchronized RouteCache getRouteCache() {
+        getRoutingGraph();
+        return routeCache;
+    }
+
+    /**
+     * Keeps the fastest path between two intersections in the route cache across traffic updates
+     * until it really changes. Its route is repaired on every version instead, which costs a
+     * shortest path tree per distinct start, so this is meant for the few routes that are asked
+     * for again and again.
+     *
+     * @param start The starting intersection
+     * @param end The destination intersection
+     */
+    public void watchRoute(Intersection start, Intersection end) {
+        RoutingGraph graph = getRoutingGraph();
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        getRouteCache().track(s, t);
+    }
+
 
 
 
@@ -0,0 +1,154 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The Route class is a compact, immutable path through a RoutingGraph: the start vertex and the ids
+ * of the edges taken, together with the path's total length and traffic.
+ *
+ * The totals are computed from the exact edges of the path and the weights the route was found with,
+ * so they match RUMaps.pathInformation except where two blocks join the same pair of intersections.
+ */
+public class Route {
+    private final RoutingGraph graph;
+    private final int start;
+    private final int[] edges;
+    private final double length;
+    private final double traffic;
+
+    /**
+     * Creates a route.
+     *
+     * @param graph the graph the edge ids refer to
+     * @param start the first vertex
+     * @param edges the edges of the path in order; the array is kept and must not be modified
+     * @param weights the traffic of every edge, used for the total traffic
+     */
+    public Route(RoutingGraph graph, int start, int[] edges, double[] weights) {
+        this.graph = graph;
+        this.start = start;
+        this.edges = edges;
+        double len = 0, traf = 0;
+        int at = start;
+        for (int e : edges) {
+            if (graph.tail(e) != at) throw new IllegalArgumentException("Edges do not form a path");
+            at = graph.head(e);
+            len += graph.length(e);
+            traf += weights[e];
+        }
+        this.length = len;
+        this.traffic = traf;
+    }
+
+    /**
+     * Reads the path to target found by the last search of a workspace.
+     *
+     * @param graph the graph that was searched
+     * @param workspace the workspace holding the search
+     * @param source the source of the search
+     * @param target the end of the route
+     * @param weights the traffic of every edge
+     * @return the route, which has no edges if target was not reached or equals source
+     */
+    public static Route fromSearch(RoutingGraph graph, SearchWorkspace workspace, int source, int target, double[] weights) {
+        int count = 0;
+        for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) count++;
+        int[] edges = new int[count];
+        for (int e = workspace.predEdge(target); e != -1; e = workspace.predEdge(graph.tail(e))) edges[--count] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns true if the route has no edges, which is how an unreachable end is represented.
+     */
+    public boolean isEmpty() {
+        return edges.length == 0;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return edges.length == 0 ? start : graph.head(edges[edges.length - 1]);
+    }
+
+    public int edgeCount() {
+        return edges.length;
+    }
+
+    public int getEdge(int i) {
+        return edges[i];
+    }
+
+    public int[] getEdges() {
+        return edges.clone();
+    }
+
+    /**
+     * Returns the i-th vertex of the route, where vertex 0 is the start.
+     */
+    public int getVertex(int i) {
+        return i == 0 ? start : graph.head(edges[i - 1]);
+    }
+
+    public boolean usesEdge(int e) {
+        for (int edge : edges) {
+            if (edge == e) return true;
+        }
+        return false;
+    }
+
+    public double getLength() {
+        return length;
+    }
+
+    public double getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * Returns the total length, average experienced traffic factor and total traffic of the route,
+     * in the same format as RUMaps.pathInformation.
+     */
+    public double[] pathInformation() {
+        return new double[] {length, length == 0 ? 0 : traffic / length, traffic};
+    }
+
+    /**
+     * Returns the intersections of the route in order, or an empty list if the route has no edges,
+     * as RUMaps.fastestPath does for an unreachable end.
+     */
+    public ArrayList<Intersection> toIntersections() {
+        ArrayList<Intersection> path = new ArrayList<>(edges.length + 1);
+        if (edges.length == 0) return path;
+        path.add(graph.intersection(start));
+        for (int e : edges) path.add(graph.intersection(graph.head(e)));
+        return path;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * start + Arrays.hashCode(edges);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        Route other = (Route) obj;
+        return graph == other.graph && start == other.start && Arrays.equals(edges, other.edges);
+    }
+
+    @Override
+    public String toString() {
+        return "Route [start=" + start + ", end=" + getEnd() + ", edges=" + edges.length + ", length=" + length
+                + ", traffic=" + traffic + "]";
+    }
+}
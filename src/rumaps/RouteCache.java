@@ -0,0 +1,355 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The RouteCache class is a bounded, thread-safe cache of Routes keyed by start vertex, end vertex,
+ * metric, closure mask and network version.
+ *
+ * It is a sharded LRU cache: entries are split by hash over 16 independently locked shards, each an
+ * LRU list of its own that evicts its least recently used entry when full. A cache attached to a
+ * VersionedNetwork is told about every published version and keeps serving an entry for newer
+ * versions as long as none of their changes could alter it:
+ * - a TRAFFIC route is dropped if the weight of one of its edges changed, or if an edge it could use
+ *   became cheaper than the whole route;
+ * - an INTERSECTIONS route does not depend on weights and is kept, but if one of its edges changed
+ *   weight its traffic total is recomputed and it is only served from the new version on;
+ * - everything is dropped when the topology is replaced.
+ * For start and end pairs registered with track, a DynamicShortestPaths is repaired on every version,
+ * and a TRAFFIC route of the pair found without closures is only dropped if one of its edges changed
+ * or the repaired least traffic route of the pair changed.
+ * The closure mask is part of the key, so a query made with the closures of a newer version simply
+ * misses until it is computed again.
+ *
+ * A cache that is not attached only serves an entry for the exact version it was stored with.
+ */
+public class RouteCache {
+    private static final int SHARDS = 16;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    // versions being applied and fully applied; puts older than pending are refused,
+    // and an entry is only served for versions up to latest
+    private volatile long pending = -1;
+    private volatile long latest = -1;
+    private RoutingGraph graph;
+    private double[] knownWeights;
+    private VersionedNetwork network;
+    // the repaired routes of the tracked pairs, and the index of each pair's route in it
+    private DynamicShortestPaths tracked;
+    private final HashMap<Long, Integer> trackedPairs = new HashMap<>();
+
+    /**
+     * Creates a cache that is not attached to any network.
+     *
+     * @param capacity the maximum number of routes kept
+     */
+    public RouteCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        int perShard = Math.max(1, (capacity + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < SHARDS; i++) shards[i] = new Shard(perShard);
+    }
+
+    /**
+     * Creates a cache attached to a versioned network, so that entries survive publications that do
+     * not affect them.
+     *
+     * @param network the network whose versions are cached
+     * @param capacity the maximum number of routes kept
+     */
+    public RouteCache(VersionedNetwork network, int capacity) {
+        this(capacity);
+        this.network = network;
+        // listen before pinning, so no version published in between is missed
+        network.addListener(this::versionPublished);
+        synchronized (this) {
+            try (NetworkVersion version = network.pin()) {
+                if (version.getVersion() > latest) {
+                    graph = version.getGraph();
+                    knownWeights = version.getWeights().clone();
+                    pending = latest = version.getVersion();
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up a route.
+     *
+     * @param start the start vertex
+     * @param end the end vertex
+     * @param metric the metric the route minimizes
+     * @param closures the closures the route was found with, or null for none
+     * @param version the version of the weights the route must be valid for
+     * @return the cached route, or null if there is none
+     */
+    public Route get(int start, int end, RouteMetric metric, ClosureMask closures, long version) {
+        Key key = new Key(start, end, metric, closures);
+        Shard shard = shardFor(key);
+        Entry entry;
+        synchronized (shard) {
+            entry = shard.get(key);
+        }
+        if (entry != null && (entry.since == version || (entry.since <= version && version <= latest))) {
+            hits.increment();
+            return entry.route;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a route. A route computed on a version older than the latest one the cache has been told
+     * about is not stored, since changes published since then may already have made it stale.
+     *
+     * @param start the start vertex
+     * @param end the end vertex
+     * @param metric the metric the route minimizes
+     * @param closures the closures the route was found with, or null for none
+     * @param version the version of the weights the route was found with
+     * @param route the route, which may be empty to record that end is unreachable
+     */
+    public void put(int start, int end, RouteMetric metric, ClosureMask closures, long version, Route route) {
+        Key key = new Key(start, end, metric, closures);
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            if (version < pending) return;
+            shard.put(key, new Entry(route, version));
+        }
+    }
+
+    /**
+     * Keeps the least traffic route between two vertices repaired on every published version, so that
+     * its cached TRAFFIC route, found without closures, is only dropped when that route really
+     * changes and not whenever an edge it could use gets cheaper. The first pair from a start builds
+     * that start's shortest path tree.
+     *
+     * @param start the start vertex
+     * @param end the end vertex
+     * @throws IllegalStateException if the cache is not attached to a network
+     */
+    public synchronized void track(int start, int end) {
+        if (network == null) throw new IllegalStateException("Only an attached cache can track routes");
+        if (trackedPairs.containsKey(pair(start, end))) return;
+        if (tracked == null) {
+            try (NetworkVersion version = network.pin()) {
+                tracked = new DynamicShortestPaths(version);
+            }
+        }
+        trackedPairs.put(pair(start, end), tracked.addRoute(start, end));
+    }
+
+    private static long pair(int start, int end) {
+        return (long) start << 32 | end;
+    }
+
+    /**
+     * Brings the cache up to date with a newly published version. Attached caches are called by the
+     * network; this is only public so that a cache can be kept in step by hand.
+     *
+     * @param version the version just published
+     */
+    public synchronized void versionPublished(NetworkVersion version) {
+        if (version.getVersion() <= latest) return;
+        pending = version.getVersion();
+        BitSet changedRoutes = new BitSet();
+        if (tracked != null && tracked.getGraph() != version.getGraph()) {
+            tracked = null;
+            trackedPairs.clear();
+        } else if (tracked != null) {
+            for (int route : tracked.apply(version)) changedRoutes.set(route);
+        }
+        int[] changed = version.getChangedEdges();
+        // the changes are against the previous version only, so after a gap they are not enough
+        if (changed == null || version.getVersion() != latest + 1 || version.getGraph() != graph || knownWeights == null) {
+            graph = version.getGraph();
+            knownWeights = version.getWeights().clone();
+            invalidateAll();
+            latest = pending;
+            return;
+        }
+
+        // keep only the edges whose weight changed, remembering the cheapest decrease
+        double[] weights = version.getWeights();
+        int[] reweighted = new int[changed.length];
+        int count = 0;
+        double cheapest = Double.POSITIVE_INFINITY;
+        BitSet touched = new BitSet(graph.edgeCount());
+        for (int e : changed) {
+            if (weights[e] == knownWeights[e]) continue;
+            if (weights[e] < knownWeights[e]) cheapest = Math.min(cheapest, weights[e]);
+            reweighted[count++] = e;
+            touched.set(e);
+        }
+        // a tracked route may change through a closure or reopening alone
+        if (count > 0 || !changedRoutes.isEmpty()) {
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    Iterator<Map.Entry<Key, Entry>> it = shard.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Key, Entry> mapping = it.next();
+                        Route route = mapping.getValue().route;
+                        if (isAffected(mapping.getKey(), route, reweighted, count, cheapest, touched, weights, changedRoutes)) {
+                            it.remove();
+                            invalidations.increment();
+                        } else if (mapping.getKey().metric == RouteMetric.INTERSECTIONS && uses(route, touched)) {
+                            // still the path with the fewest intersections, but its traffic total is out of date
+                            int[] edges = new int[route.edgeCount()];
+                            for (int i = 0; i < edges.length; i++) edges[i] = route.getEdge(i);
+                            mapping.setValue(new Entry(new Route(graph, route.getStart(), edges, weights), pending));
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) knownWeights[reweighted[i]] = weights[reweighted[i]];
+        }
+        latest = pending;
+    }
+
+    private boolean isAffected(Key key, Route route, int[] reweighted, int count, double cheapest, BitSet touched,
+                               double[] weights, BitSet changedRoutes) {
+        if (key.metric != RouteMetric.TRAFFIC) return false;
+        Integer index = key.closures == null ? trackedPairs.get(pair(key.start, key.end)) : null;
+        // an unchanged route whose edges kept their weights is still a least traffic route
+        if (index != null) return changedRoutes.get(index) || uses(route, touched);
+        if (route.isEmpty()) return false;
+        if (uses(route, touched)) return true;
+        double cost = route.getTraffic();
+        if (cheapest >= cost) return false;
+        for (int i = 0; i < count; i++) {
+            int e = reweighted[i];
+            if (weights[e] < knownWeights[e] && weights[e] < cost && (key.closures == null || !key.closures.isEdgeClosed(e))) return true;
+        }
+        return false;
+    }
+
+    private static boolean uses(Route route, BitSet edges) {
+        for (int i = 0; i < route.edgeCount(); i++) {
+            if (edges.get(route.getEdge(i))) return true;
+        }
+        return false;
+    }
+
+    private void invalidateAll() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                invalidations.add(shard.size());
+                shard.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes every route.
+     */
+    public void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of routes removed to make room for newer ones.
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of routes removed because a published version made them stale.
+     */
+    public long invalidationCount() {
+        return invalidations.sum();
+    }
+
+    private Shard shardFor(Key key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    private static class Key {
+        private final int start;
+        private final int end;
+        private final RouteMetric metric;
+        private final ClosureMask closures;
+        private final int hash;
+
+        Key(int start, int end, RouteMetric metric, ClosureMask closures) {
+            if (closures != null && closures.isEmpty()) closures = null;
+            this.start = start;
+            this.end = end;
+            this.metric = metric;
+            this.closures = closures;
+            this.hash = Objects.hash(start, end, metric, closures);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return start == other.start && end == other.end && metric == other.metric
+                    && Objects.equals(closures, other.closures);
+        }
+    }
+
+    private static class Entry {
+        private final Route route;
+        // the version the route was found with; it stays valid until invalidated
+        private final long since;
+
+        Entry(Route route, long since) {
+            this.route = route;
+            this.since = since;
+        }
+    }
+
+    private class Shard extends LinkedHashMap<Key, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Shard(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            if (size() <= capacity) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package rumaps;
+
+/**
+ * The RouteMetric enum names the cost a route is optimal for.
+ * - INTERSECTIONS - the fewest blocks, as found by RUMaps.minimizeIntersections
+ * - TRAFFIC - the least total traffic, as found by RUMaps.fastestPath
+ */
+public enum RouteMetric {
+    INTERSECTIONS,
+    TRAFFIC
+}
@@ -0,0 +1,359 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The RoutingGraph class is a compact, read-only view of a Network used by the routing engines.
+ *
+ * Vertices keep the index their intersection has in the Network's intersections array, and every
+ * directed Block in the adjacency lists becomes an edge id in [0, edgeCount()). The edges of a vertex
+ * are stored contiguously and in the same order as its linked list in the Network, so a search over
+ * this graph visits neighbors in the same order as the Block-based searches in RUMaps. A graph can be
+ * renumbered with reorder, for example along a VertexOrdering, so that vertices close on the map are
+ * close in memory; originalId still gives the index in the Network.
+ *
+ * The graph only stores topology and the static attributes of each block. Traffic weights are passed
+ * to the searches as a separate double[] indexed by edge id, so many weight sets can share one graph.
+ */
+public class RoutingGraph {
+    private final Intersection[] intersections;
+    private final HashMap<Intersection, Integer> indexOf;
+    private final int[] originalId;
+
+    // edges of vertex v are firstEdge[v] .. firstEdge[v + 1] - 1
+    private final int[] firstEdge;
+    private final int[] tail;
+    private final int[] head;
+    // edges entering vertex v are inEdges[inFirst[v] .. inFirst[v + 1] - 1], in increasing id order
+    private final int[] inFirst;
+    private final int[] inEdges;
+    // edge id of the opposite direction of the same block, or -1
+    private final int[] reverse;
+    private final Block[] blocks;
+    private final double[] length;
+    private final double[] traffic;
+    // edge ids of each block, keyed by street name and block number
+    private final HashMap<String, int[]> blockEdges;
+
+    /**
+     * Builds a routing graph from the intersections and adjacency lists of a network.
+     *
+     * @param network the network to copy
+     */
+    public RoutingGraph(Network network) {
+        intersections = network.getIntersections().clone();
+        int n = intersections.length;
+        indexOf = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            if (intersections[v] != null) indexOf.put(intersections[v], v);
+        }
+        originalId = new int[n];
+        for (int v = 0; v < n; v++) originalId[v] = v;
+
+        int m = 0;
+        for (int v = 0; v < n; v++) {
+            for (Block ptr = network.adj(v); ptr != null; ptr = ptr.getNext()) m++;
+        }
+
+        firstEdge = new int[n + 1];
+        tail = new int[m];
+        head = new int[m];
+        reverse = new int[m];
+        blocks = new Block[m];
+        length = new double[m];
+        traffic = new double[m];
+
+        int e = 0;
+        for (int v = 0; v < n; v++) {
+            firstEdge[v] = e;
+            for (Block ptr = network.adj(v); ptr != null; ptr = ptr.getNext()) {
+                Integer w = indexOf.get(ptr.other(intersections[v]));
+                if (w == null) throw new IllegalArgumentException("Block endpoint is not an intersection: " + ptr);
+                tail[e] = v;
+                head[e] = w;
+                blocks[e] = ptr;
+                length[e] = ptr.getLength();
+                traffic[e] = ptr.getTraffic();
+                e++;
+            }
+        }
+        firstEdge[n] = e;
+
+        inFirst = new int[n + 1];
+        inEdges = new int[m];
+        indexIncoming(head, inFirst, inEdges);
+
+        Arrays.fill(reverse, -1);
+        for (e = 0; e < m; e++) {
+            if (reverse[e] != -1) continue;
+            for (int r = firstEdge[head[e]]; r < firstEdge[head[e] + 1]; r++) {
+                if (r != e && reverse[r] == -1 && head[r] == tail[e] && sameBlock(blocks[e], blocks[r])) {
+                    reverse[e] = r;
+                    reverse[r] = e;
+                    break;
+                }
+            }
+        }
+
+        blockEdges = indexBlocks(blocks);
+    }
+
+    /**
+     * Builds a renumbered copy of a graph; see reorder.
+     */
+    private RoutingGraph(RoutingGraph graph, int[] order) {
+        int n = order.length;
+        int m = graph.edgeCount();
+        int[] newId = new int[n];
+        intersections = new Intersection[n];
+        originalId = new int[n];
+        indexOf = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            newId[order[v]] = v;
+            intersections[v] = graph.intersections[order[v]];
+            originalId[v] = graph.originalId[order[v]];
+            if (intersections[v] != null) indexOf.put(intersections[v], v);
+        }
+
+        firstEdge = new int[n + 1];
+        tail = new int[m];
+        head = new int[m];
+        reverse = new int[m];
+        blocks = new Block[m];
+        length = new double[m];
+        traffic = new double[m];
+        // the edges of every vertex keep their order, so searches still visit neighbors as before
+        int[] newEdge = new int[m];
+        int e = 0;
+        for (int v = 0; v < n; v++) {
+            firstEdge[v] = e;
+            for (int f = graph.firstEdge(order[v]), end = graph.endEdge(order[v]); f < end; f++) {
+                newEdge[f] = e;
+                tail[e] = v;
+                head[e] = newId[graph.head[f]];
+                blocks[e] = graph.blocks[f];
+                length[e] = graph.length[f];
+                traffic[e] = graph.traffic[f];
+                e++;
+            }
+        }
+        firstEdge[n] = e;
+        for (int f = 0; f < m; f++) reverse[newEdge[f]] = graph.reverse[f] < 0 ? -1 : newEdge[graph.reverse[f]];
+
+        inFirst = new int[n + 1];
+        inEdges = new int[m];
+        indexIncoming(head, inFirst, inEdges);
+        blockEdges = indexBlocks(blocks);
+    }
+
+    // fills inFirst and inEdges with the edges entering every vertex, in increasing id order
+    private static void indexIncoming(int[] head, int[] inFirst, int[] inEdges) {
+        int n = inFirst.length - 1;
+        for (int e = 0; e < head.length; e++) inFirst[head[e] + 1]++;
+        for (int v = 0; v < n; v++) inFirst[v + 1] += inFirst[v];
+        int[] next = Arrays.copyOf(inFirst, n);
+        for (int e = 0; e < head.length; e++) inEdges[next[head[e]]++] = e;
+    }
+
+    private static HashMap<String, int[]> indexBlocks(Block[] blocks) {
+        HashMap<String, int[]> blockEdges = new HashMap<>();
+        for (int e = 0; e < blocks.length; e++) {
+            String key = blockKey(blocks[e].getStreetName(), blocks[e].getBlockNumber());
+            int[] edges = blockEdges.get(key);
+            if (edges == null) {
+                blockEdges.put(key, new int[] {e});
+            } else {
+                edges = Arrays.copyOf(edges, edges.length + 1);
+                edges[edges.length - 1] = e;
+                blockEdges.put(key, edges);
+            }
+        }
+        return blockEdges;
+    }
+
+    /**
+     * Returns a copy of this graph with its vertices renumbered. The edges of every vertex keep their
+     * order and are numbered after the edges of the vertices before it, so the adjacency arrays are
+     * laid out in the new order too. Traffic and other attributes move with their edges.
+     *
+     * @param order the vertices of this graph in their new order: order[i] becomes vertex i
+     * @return the renumbered graph
+     */
+    public RoutingGraph reorder(int[] order) {
+        int n = vertexCount();
+        if (order.length != n) throw new IllegalArgumentException("Expected one entry per vertex");
+        boolean[] seen = new boolean[n];
+        for (int v : order) {
+            if (v < 0 || v >= n || seen[v]) throw new IllegalArgumentException("Not a permutation of the vertices");
+            seen[v] = true;
+        }
+        return new RoutingGraph(this, order);
+    }
+
+    private static String blockKey(String streetName, int blockNumber) {
+        return streetName + '#' + blockNumber;
+    }
+
+    private static boolean sameBlock(Block a, Block b) {
+        return a.getBlockNumber() == b.getBlockNumber()
+            && Objects.equals(a.getStreetName(), b.getStreetName())
+            && Objects.equals(a.getCoordinatePoints(), b.getCoordinatePoints());
+    }
+
+    public int vertexCount() {
+        return intersections.length;
+    }
+
+    public int edgeCount() {
+        return head.length;
+    }
+
+    /**
+     * Returns the id of the first edge leaving vertex v.
+     */
+    public int firstEdge(int v) {
+        return firstEdge[v];
+    }
+
+    /**
+     * Returns one past the id of the last edge leaving vertex v.
+     */
+    public int endEdge(int v) {
+        return firstEdge[v + 1];
+    }
+
+    public int degree(int v) {
+        return firstEdge[v + 1] - firstEdge[v];
+    }
+
+    /**
+     * Returns the position of the first edge entering vertex v; the entering edges of v are
+     * inEdge(firstInEdge(v)) .. inEdge(endInEdge(v) - 1).
+     */
+    public int firstInEdge(int v) {
+        return inFirst[v];
+    }
+
+    /**
+     * Returns one past the position of the last edge entering vertex v.
+     */
+    public int endInEdge(int v) {
+        return inFirst[v + 1];
+    }
+
+    /**
+     * Returns the id of the edge at a position of the entering edge lists.
+     */
+    public int inEdge(int i) {
+        return inEdges[i];
+    }
+
+    public int tail(int e) {
+        return tail[e];
+    }
+
+    public int head(int e) {
+        return head[e];
+    }
+
+    /**
+     * Returns the edge that runs along the same block in the opposite direction.
+     *
+     * @param e the edge id
+     * @return the reverse edge id, or -1 if the block is one-way
+     */
+    public int reverse(int e) {
+        return reverse[e];
+    }
+
+    public Block block(int e) {
+        return blocks[e];
+    }
+
+    public double length(int e) {
+        return length[e];
+    }
+
+    public double traffic(int e) {
+        return traffic[e];
+    }
+
+    public Intersection intersection(int v) {
+        return intersections[v];
+    }
+
+    /**
+     * Returns the index the intersection of vertex v has in the Network the graph was built from,
+     * which equals v unless the graph was reordered.
+     */
+    public int originalId(int v) {
+        return originalId[v];
+    }
+
+    /**
+     * Finds the vertex id of an intersection in constant time.
+     *
+     * @param intersection the intersection to look up
+     * @return the vertex id or -1 if the intersection is not in this graph
+     */
+    public int indexOf(Intersection intersection) {
+        if (intersection == null) return -1;
+        Integer v = indexOf.get(intersection);
+        return v == null ? -1 : v;
+    }
+
+    /**
+     * Finds the edges of a block, in both directions.
+     *
+     * @param streetName the name of the street the block is on
+     * @param blockNumber the number of the block
+     * @return the edge ids, or an empty array if there is no such block
+     */
+    public int[] findBlock(String streetName, int blockNumber) {
+        int[] edges = blockEdges.get(blockKey(streetName, blockNumber));
+        return edges == null ? new int[0] : edges.clone();
+    }
+
+    /**
+     * Finds the first edge from u to v, in adjacency list order.
+     *
+     * @return the edge id or -1 if u and v are not adjacent
+     */
+    public int findEdge(int u, int v) {
+        for (int e = firstEdge[u]; e < firstEdge[u + 1]; e++) {
+            if (head[e] == v) return e;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the traffic of every edge, as set when the network was built.
+     *
+     * @return a new array indexed by edge id
+     */
+    public double[] trafficWeights() {
+        return traffic.clone();
+    }
+
+    /**
+     * Returns a copy of the length of every edge.
+     *
+     * @return a new array indexed by edge id
+     */
+    public double[] lengths() {
+        return length.clone();
+    }
+
+    /**
+     * Converts a list of vertex ids into the intersections they refer to.
+     *
+     * @param vertices vertex ids in path order
+     * @param count the number of ids to read from the start of the array
+     * @return the intersections, in the same order
+     */
+    public ArrayList<Intersection> toIntersections(int[] vertices, int count) {
+        ArrayList<Intersection> path = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) path.add(intersections[vertices[i]]);
+        return path;
+    }
+}
@@ -0,0 +1,416 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The SearchWorkspace class holds the per-vertex arrays of a shortest path search so that they can be
+ * reused from one query to the next instead of being allocated every time.
+ *
+ * Entries are invalidated by bumping a stamp, so starting a new search costs O(1) no matter how large
+ * the graph is. A workspace is not thread safe: every thread that searches needs its own.
+ *
+ * The priority queue is an indexed binary heap over vertex ids keyed by the dist array, which gives
+ * the decrease-key operation Dijkstra's algorithm needs without boxing.
+ */
+public class SearchWorkspace {
+    private final double[] dist;
+    private final int[] predEdge;
+    private final int[] reached;   // reached[v] == stamp when dist[v] and predEdge[v] are valid
+    private final int[] settled;   // settled[v] == stamp once v has been removed from the heap
+    private final int[] goal;      // goal[v] == stamp when v is one of the current targets
+    private int stamp;
+
+    private final int[] heap;
+    private final int[] heapPos;
+    private int heapSize;
+
+    // vertices in the order they were settled during the last search
+    private final int[] order;
+    private int orderSize;
+
+    /**
+     * Creates a workspace for graphs with at most the given number of vertices.
+     *
+     * @param capacity the number of vertices
+     */
+    public SearchWorkspace(int capacity) {
+        dist = new double[capacity];
+        predEdge = new int[capacity];
+        reached = new int[capacity];
+        settled = new int[capacity];
+        goal = new int[capacity];
+        heap = new int[capacity];
+        heapPos = new int[capacity];
+        order = new int[capacity];
+    }
+
+    public SearchWorkspace(RoutingGraph graph) {
+        this(graph.vertexCount());
+    }
+
+    public int capacity() {
+        return dist.length;
+    }
+
+    /**
+     * Forgets the results of the previous search in constant time.
+     */
+    public void clear() {
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            Arrays.fill(goal, 0);
+            stamp = 0;
+        }
+        stamp++;
+        heapSize = 0;
+        orderSize = 0;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from source until target is settled, or over the whole graph if
+     * target is negative.
+     *
+     * @param graph the graph to search
+     * @param weights the cost of every edge, indexed by edge id
+     * @param source the source vertex
+     * @param target the target vertex, or -1 for a full shortest path tree
+     * @return the distance to target, or infinity if target is unreachable or negative
+     */
+    public double dijkstra(RoutingGraph graph, double[] weights, int source, int target) {
+        return dijkstra(graph, weights, null, source, target);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from source until target is settled, or over the whole graph if
+     * target is negative, without using the edges closed by a mask.
+     *
+     * @param graph the graph to search
+     * @param weights the cost of every edge, indexed by edge id
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @param target the target vertex, or -1 for a full shortest path tree
+     * @return the distance to target, or infinity if target is unreachable or negative
+     */
+    public double dijkstra(RoutingGraph graph, double[] weights, ClosureMask mask, int source, int target) {
+        clear();
+        long[] closed = bits(graph, mask);
+        if (mask != null && mask.isVertexClosed(source)) return Double.POSITIVE_INFINITY;
+        reach(source, 0.0, -1);
+        while (heapSize > 0) {
+            int v = poll();
+            if (v == target) break;
+            relax(graph, weights, closed, v);
+        }
+        return target < 0 ? Double.POSITIVE_INFINITY : distance(target);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from source until every vertex in targets[from..to) is settled.
+     *
+     * @param graph the graph to search
+     * @param weights the cost of every edge, indexed by edge id
+     * @param source the source vertex
+     * @param targets an array holding the target vertices
+     * @param from the first index of targets to use
+     * @param to one past the last index of targets to use
+     * @return the number of targets that were reached
+     */
+    public int dijkstra(RoutingGraph graph, double[] weights, int source, int[] targets, int from, int to) {
+        return dijkstra(graph, weights, null, source, targets, from, to);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from source until every vertex in targets[from..to) is settled,
+     * without using the edges closed by a mask.
+     *
+     * @param graph the graph to search
+     * @param weights the cost of every edge, indexed by edge id
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @param targets an array holding the target vertices
+     * @param from the first index of targets to use
+     * @param to one past the last index of targets to use
+     * @return the number of targets that were reached
+     */
+    public int dijkstra(RoutingGraph graph, double[] weights, ClosureMask mask, int source, int[] targets, int from, int to) {
+        clear();
+        long[] closed = bits(graph, mask);
+        if (mask != null && mask.isVertexClosed(source)) return 0;
+        int remaining = 0;
+        for (int i = from; i < to; i++) {
+            if (goal[targets[i]] != stamp) {
+                goal[targets[i]] = stamp;
+                remaining++;
+            }
+        }
+        int found = 0;
+        reach(source, 0.0, -1);
+        while (heapSize > 0 && found < remaining) {
+            int v = poll();
+            if (goal[v] == stamp) found++;
+            relax(graph, weights, closed, v);
+        }
+        return found;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from source, settling exactly the vertices at distance at most limit.
+     * Vertices beyond the limit may be reached but are never settled.
+     *
+     * @param graph the graph to search
+     * @param weights the cost of every edge, indexed by edge id
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @param limit the largest distance to settle
+     * @return the number of vertices settled
+     */
+    public int boundedDijkstra(RoutingGraph graph, double[] weights, ClosureMask mask, int source, double limit) {
+        clear();
+        long[] closed = bits(graph, mask);
+        if (mask != null && mask.isVertexClosed(source)) return 0;
+        reach(source, 0.0, -1);
+        while (heapSize > 0 && dist[heap[0]] <= limit) relax(graph, weights, closed, poll());
+        return orderSize;
+    }
+
+    private void relax(RoutingGraph graph, double[] weights, long[] closed, int v) {
+        double dv = dist[v];
+        for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+            if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+            int w = graph.head(e);
+            if (settled[w] == stamp) continue;
+            double alt = dv + weights[e];
+            if (reached[w] != stamp || alt < dist[w]) reach(w, alt, e);
+        }
+    }
+
+    /**
+     * Runs a breadth-first search from source until target is dequeued, or over the whole graph if
+     * target is negative. Afterwards distance(v) is the number of edges from source to v.
+     *
+     * Vertices are enqueued in adjacency list order, so the path found is the same one a linked-list
+     * BFS over the Network finds.
+     *
+     * @param graph the graph to search
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @param target the target vertex, or -1 to search the whole graph
+     * @return the number of edges from source to target, or -1 if target is unreachable or negative
+     */
+    public int bfs(RoutingGraph graph, ClosureMask mask, int source, int target) {
+        clear();
+        long[] closed = bits(graph, mask);
+        if (mask != null && mask.isVertexClosed(source)) return -1;
+        // the heap array doubles as the FIFO queue, since every vertex is enqueued at most once
+        int first = 0, last = 0;
+        reached[source] = stamp;
+        dist[source] = 0;
+        predEdge[source] = -1;
+        heap[last++] = source;
+        while (first < last) {
+            int v = heap[first++];
+            settled[v] = stamp;
+            order[orderSize++] = v;
+            if (v == target) break;
+            double next = dist[v] + 1;
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (reached[w] == stamp) continue;
+                reached[w] = stamp;
+                dist[w] = next;
+                predEdge[w] = e;
+                heap[last++] = w;
+            }
+        }
+        return target >= 0 && reached[target] == stamp ? (int) dist[target] : -1;
+    }
+
+    /**
+     * Runs a depth-first search from source that visits neighbors in adjacency list order, like a
+     * recursive DFS over the Network, but without recursion. Afterwards settled(i) is the i-th vertex
+     * visited.
+     *
+     * @param graph the graph to search
+     * @param mask the closed edges and vertices, or null if everything is open
+     * @param source the source vertex
+     * @return the number of vertices visited
+     */
+    public int dfs(RoutingGraph graph, ClosureMask mask, int source) {
+        clear();
+        long[] closed = bits(graph, mask);
+        if (mask != null && mask.isVertexClosed(source)) return 0;
+        // heap holds the stack of vertices and heapPos[v] the next edge of v to explore
+        int top = 0;
+        reached[source] = stamp;
+        dist[source] = 0;
+        predEdge[source] = -1;
+        order[orderSize++] = source;
+        heapPos[source] = graph.firstEdge(source);
+        heap[top++] = source;
+        while (top > 0) {
+            int v = heap[top - 1];
+            int e = heapPos[v];
+            if (e == graph.endEdge(v)) {
+                settled[v] = stamp;
+                top--;
+                continue;
+            }
+            heapPos[v] = e + 1;
+            if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+            int w = graph.head(e);
+            if (reached[w] == stamp) continue;
+            reached[w] = stamp;
+            dist[w] = dist[v] + 1;
+            predEdge[w] = e;
+            order[orderSize++] = w;
+            heapPos[w] = graph.firstEdge(w);
+            heap[top++] = w;
+        }
+        return orderSize;
+    }
+
+    private static long[] bits(RoutingGraph graph, ClosureMask mask) {
+        if (mask == null) return null;
+        if (mask.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        return mask.bits();
+    }
+
+    /**
+     * Sets the tentative distance of v and adds it to the priority queue, or lowers its key if it is
+     * already queued.
+     */
+    void reach(int v, double d, int edge) {
+        dist[v] = d;
+        predEdge[v] = edge;
+        if (reached[v] != stamp) {
+            reached[v] = stamp;
+            heapPos[v] = heapSize;
+            heap[heapSize++] = v;
+        }
+        siftUp(heapPos[v]);
+    }
+
+    /**
+     * Removes the vertex with the smallest tentative distance from the queue and marks it settled.
+     */
+    int poll() {
+        int v = heap[0];
+        heap[0] = heap[--heapSize];
+        heapPos[heap[0]] = 0;
+        if (heapSize > 0) siftDown(0);
+        settled[v] = stamp;
+        order[orderSize++] = v;
+        return v;
+    }
+
+    boolean isQueueEmpty() {
+        return heapSize == 0;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        double d = dist[v];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (dist[p] <= d) break;
+            heap[i] = p;
+            heapPos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        double d = dist[v];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int c = heap[child];
+            int right = child + 1;
+            if (right < heapSize && dist[heap[right]] < dist[c]) {
+                child = right;
+                c = heap[child];
+            }
+            if (d <= dist[c]) break;
+            heap[i] = c;
+            heapPos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+
+    /**
+     * Returns the distance found to v by the last search.
+     *
+     * @return the distance, or infinity if v was not reached
+     */
+    public double distance(int v) {
+        return reached[v] == stamp ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the edge used to reach v in the last search.
+     *
+     * @return the edge id, or -1 for the source and for vertices that were not reached
+     */
+    public int predEdge(int v) {
+        return reached[v] == stamp ? predEdge[v] : -1;
+    }
+
+    public boolean isReached(int v) {
+        return reached[v] == stamp;
+    }
+
+    public boolean isSettled(int v) {
+        return settled[v] == stamp;
+    }
+
+    /**
+     * Returns the number of vertices settled (or visited, for a DFS) by the last search.
+     */
+    public int settledCount() {
+        return orderSize;
+    }
+
+    /**
+     * Returns the i-th vertex settled (or visited, for a DFS) by the last search.
+     */
+    public int settled(int i) {
+        return order[i];
+    }
+
+    /**
+     * Writes the vertices of the path to target found by the last search into the given array.
+     *
+     * @param graph the graph that was searched
+     * @param target the end of the path
+     * @param vertices an array with room for the whole path
+     * @return the number of vertices written, or 0 if target was not reached from another vertex
+     */
+    public int path(RoutingGraph graph, int target, int[] vertices) {
+        if (predEdge(target) == -1) return 0;
+        int count = 0;
+        for (int v = target; v != -1; v = predEdge[v] == -1 ? -1 : graph.tail(predEdge[v])) count++;
+        int i = count;
+        for (int v = target; v != -1; v = predEdge[v] == -1 ? -1 : graph.tail(predEdge[v])) vertices[--i] = v;
+        return count;
+    }
+
+    /**
+     * Returns the path to target found by the last search.
+     *
+     * @param graph the graph that was searched
+     * @param target the end of the path
+     * @return the intersections from the source to target, or an empty list if there is no such path
+     */
+    public ArrayList<Intersection> path(RoutingGraph graph, int target) {
+        int[] vertices = new int[capacity()];
+        return graph.toIntersections(vertices, path(graph, target, vertices));
+    }
+}
@@ -0,0 +1,137 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The ShortestPathTree class holds the complete breadth-first and least-traffic search trees from one
+ * source, so that the route to any end can be read off in time proportional to its length.
+ *
+ * Both trees are the ones a full search builds, which are the same ones the searches that stop at a
+ * target build up to that target, so every path read from them is exactly the path
+ * RUMaps.minimizeIntersections or RUMaps.fastestPath would return.
+ *
+ * The total length and traffic of every tree path are kept as well, summed from the source in the same
+ * order, over the same edges and with the same weights as RUMaps.pathInformation, which makes that
+ * lookup O(path length) too.
+ */
+public class ShortestPathTree {
+    private final RoutingGraph graph;
+    private final int source;
+    private final int[] hopEdge;
+    private final int[] trafficEdge;
+    private final double[] hopLength;
+    private final double[] hopTraffic;
+    private final double[] trafficLength;
+    private final double[] trafficTraffic;
+
+    /**
+     * Builds both trees.
+     *
+     * @param graph the graph to search
+     * @param weights the traffic of every edge
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the source vertex
+     * @param workspace the workspace to search with
+     */
+    public ShortestPathTree(RoutingGraph graph, double[] weights, ClosureMask closures, int source, SearchWorkspace workspace) {
+        int n = graph.vertexCount();
+        this.graph = graph;
+        this.source = source;
+        hopEdge = new int[n];
+        trafficEdge = new int[n];
+        hopLength = new double[n];
+        hopTraffic = new double[n];
+        trafficLength = new double[n];
+        trafficTraffic = new double[n];
+
+        workspace.bfs(graph, closures, source, -1);
+        record(workspace, weights, hopEdge, hopLength, hopTraffic);
+        workspace.dijkstra(graph, weights, closures, source, -1);
+        record(workspace, weights, trafficEdge, trafficLength, trafficTraffic);
+    }
+
+    // copies the predecessors of the last search and sums the edges pathInformation would pick
+    private void record(SearchWorkspace workspace, double[] weights, int[] pred, double[] length, double[] traffic) {
+        Arrays.fill(pred, -1);
+        for (int i = 0; i < workspace.settledCount(); i++) {
+            int v = workspace.settled(i);
+            pred[v] = workspace.predEdge(v);
+        }
+        // settle order visits every parent before its children
+        for (int i = 0; i < workspace.settledCount(); i++) {
+            int v = workspace.settled(i);
+            if (pred[v] == -1) continue;
+            int u = graph.tail(pred[v]);
+            int e = graph.findEdge(u, v);
+            length[v] = length[u] + graph.length(e);
+            traffic[v] = traffic[u] + weights[e];
+        }
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the path with the fewest intersections from the source to target.
+     *
+     * @param target the end vertex
+     * @return the intersections of the path, or an empty list if target is unreachable or the source
+     */
+    public ArrayList<Intersection> hopPath(int target) {
+        return walk(hopEdge, target);
+    }
+
+    /**
+     * Returns the path with the least traffic from the source to target.
+     *
+     * @param target the end vertex
+     * @return the intersections of the path, or an empty list if target is unreachable or the source
+     */
+    public ArrayList<Intersection> trafficPath(int target) {
+        return walk(trafficEdge, target);
+    }
+
+    private ArrayList<Intersection> walk(int[] pred, int target) {
+        ArrayList<Intersection> path = new ArrayList<>();
+        if (pred[target] == -1) return path;
+        for (int v = target; v != -1; v = pred[v] == -1 ? -1 : graph.tail(pred[v])) {
+            path.add(graph.intersection(v));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Returns the same totals as RUMaps.pathInformation, if path is one of the paths of this tree.
+     *
+     * @param path a list of intersections
+     * @return the total length, average traffic factor and total traffic, or null if path does not
+     *         start at the source or does not follow either tree
+     */
+    public double[] pathInformation(ArrayList<Intersection> path) {
+        if (path.size() < 2) return null;
+        int end = graph.indexOf(path.get(path.size() - 1));
+        if (end < 0) return null;
+        if (follows(hopEdge, path, end)) return totals(hopLength[end], hopTraffic[end]);
+        if (follows(trafficEdge, path, end)) return totals(trafficLength[end], trafficTraffic[end]);
+        return null;
+    }
+
+    private boolean follows(int[] pred, ArrayList<Intersection> path, int end) {
+        int v = end;
+        for (int i = path.size() - 1; i > 0; i--) {
+            if (pred[v] == -1 || !graph.intersection(v).equals(path.get(i))) return false;
+            v = graph.tail(pred[v]);
+        }
+        return v == source && graph.intersection(v).equals(path.get(0));
+    }
+
+    private static double[] totals(double length, double traffic) {
+        return new double[] {length, length == 0 ? 0 : traffic / length, traffic};
+    }
+}
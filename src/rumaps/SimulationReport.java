@@ -0,0 +1,153 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The SimulationReport class holds the results of a TrafficSimulator run: for every route, the travel
+ * cost in each scenario and the number of scenarios in which each block was on the fastest path.
+ *
+ * Statistics are computed over the scenarios in which the route's end was reachable. The cost arrays
+ * are sorted once when the report is created so percentiles can be read directly.
+ */
+public class SimulationReport {
+    private final RoutingGraph graph;
+    private final int[] starts;
+    private final int[] ends;
+    private final int scenarios;
+    private final double[][] sortedCosts;
+    private final int[] reachable;
+    private final double[] mean;
+    private final double[] variance;
+    private final int[][] edgeCounts;
+
+    SimulationReport(RoutingGraph graph, List<int[]> routes, double[][] costs, int[][] edgeCounts) {
+        this.graph = graph;
+        int r = routes.size();
+        this.starts = new int[r];
+        this.ends = new int[r];
+        this.scenarios = r == 0 ? 0 : costs[0].length;
+        this.sortedCosts = costs;
+        this.reachable = new int[r];
+        this.mean = new double[r];
+        this.variance = new double[r];
+        this.edgeCounts = edgeCounts;
+
+        for (int i = 0; i < r; i++) {
+            starts[i] = routes.get(i)[0];
+            ends[i] = routes.get(i)[1];
+            double[] c = costs[i];
+            Arrays.sort(c);
+            int k = 0;
+            while (k < c.length && c[k] != Double.POSITIVE_INFINITY) k++;
+            reachable[i] = k;
+
+            // Welford's method, which stays accurate over many scenarios
+            double avg = 0, m2 = 0;
+            for (int j = 0; j < k; j++) {
+                double delta = c[j] - avg;
+                avg += delta / (j + 1);
+                m2 += delta * (c[j] - avg);
+            }
+            mean[i] = k == 0 ? Double.NaN : avg;
+            variance[i] = k < 2 ? 0.0 : m2 / (k - 1);
+        }
+    }
+
+    public int routeCount() {
+        return starts.length;
+    }
+
+    public int scenarioCount() {
+        return scenarios;
+    }
+
+    /**
+     * Returns the vertex id of the start of a route.
+     */
+    public int start(int route) {
+        return starts[route];
+    }
+
+    /**
+     * Returns the vertex id of the end of a route.
+     */
+    public int end(int route) {
+        return ends[route];
+    }
+
+    /**
+     * Returns the number of scenarios in which the end of the route was reachable.
+     */
+    public int reachableCount(int route) {
+        return reachable[route];
+    }
+
+    /**
+     * Returns the mean travel cost (total traffic) of the route's fastest path.
+     *
+     * @return the mean, or NaN if the route was never reachable
+     */
+    public double mean(int route) {
+        return mean[route];
+    }
+
+    /**
+     * Returns the sample variance of the travel cost of the route's fastest path.
+     */
+    public double variance(int route) {
+        return variance[route];
+    }
+
+    public double min(int route) {
+        return percentile(route, 0);
+    }
+
+    public double max(int route) {
+        return percentile(route, 100);
+    }
+
+    /**
+     * Returns a percentile of the travel cost using the nearest-rank method.
+     *
+     * @param route the route index
+     * @param p the percentile, between 0 and 100
+     * @return the cost, or NaN if the route was never reachable
+     */
+    public double percentile(int route, double p) {
+        if (p < 0 || p > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        int k = reachable[route];
+        if (k == 0) return Double.NaN;
+        int rank = (int) Math.ceil(p / 100.0 * k);
+        return sortedCosts[route][Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Returns the fraction of scenarios in which the route's fastest path used the given edge.
+     *
+     * @param route the route index
+     * @param edge the edge id in the simulated RoutingGraph
+     * @return a value between 0 and 1
+     */
+    public double edgeFrequency(int route, int edge) {
+        return scenarios == 0 ? 0.0 : (double) edgeCounts[route][edge] / scenarios;
+    }
+
+    /**
+     * Returns how often each block, in either direction, was on the route's fastest path.
+     *
+     * @param route the route index
+     * @return the fraction of scenarios that used each block, for blocks used at least once
+     */
+    public Map<Block, Double> blockFrequencies(int route) {
+        LinkedHashMap<Block, Double> frequencies = new LinkedHashMap<>();
+        int[] counts = edgeCounts[route];
+        for (int e = 0; e < counts.length; e++) {
+            if (counts[e] == 0) continue;
+            int r = graph.reverse(e);
+            // report both directions of a block under the edge with the smaller id
+            int key = r != -1 && r < e ? r : e;
+            frequencies.merge(graph.block(key), (double) counts[e] / scenarios, Double::sum);
+        }
+        return frequencies;
+    }
+}
@@ -0,0 +1,334 @@
+package rumaps;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TrafficFeed class ingests live traffic updates and publishes them as new NetworkVersions.
+ *
+ * Updates are lines of the form "street name,block number,traffic factor", read from a file that is
+ * being appended to, from connections to a local socket, or passed in directly. The traffic of both
+ * directions of the block becomes factor * length, as in RUMaps.blockTraffic.
+ *
+ * Updates are coalesced by edge, so only the latest factor of a block in a batch is applied. Each
+ * batch is published as one VersionedNetwork update, which copies the current weights, applies the
+ * batch to the copy and swaps the copy in atomically. Queries pin a version and use its weights, so
+ * they never lock and never see a half-applied batch. Only the writers, which share the pending batch,
+ * synchronize with each other.
+ *
+ * A batch is published when it reaches the batch size, when its oldest update is older than the
+ * maximum delay, or when a source has no more input ready. The Blocks of the Network are not changed.
+ * A background source that fails stops, and its exception is kept for getFailure.
+ *
+ * RUMaps.getTrafficFeed() returns a feed attached to the network that every RUMaps query pins, so its
+ * updates reach fastestPath, pathInformation and the other queries of the application.
+ */
+public class TrafficFeed implements Closeable {
+    private static final long POLL_MILLIS = 20;
+
+    private final VersionedNetwork versions;
+    private final int batchSize;
+    private final long maxDelayNanos;
+
+    // pending batch, guarded by this; edge ids refer to graph
+    private RoutingGraph graph;
+    private double[] pendingFactor;
+    private boolean[] isPending;
+    private int[] pendingEdges;
+    private int pendingCount;
+    private long oldestPending;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    private final List<Closeable> resources = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean closed;
+    private volatile Exception failure;
+
+    /**
+     * Creates a feed that publishes into the given versioned network.
+     *
+     * @param versions the network whose weights are updated
+     */
+    public TrafficFeed(VersionedNetwork versions) {
+        this(versions, 4096, 50);
+    }
+
+    /**
+     * Creates a feed.
+     *
+     * @param versions the network whose weights are updated
+     * @param batchSize the number of pending edges that triggers a publication
+     * @param maxDelayMillis the longest time an update may wait before it is published
+     */
+    public TrafficFeed(VersionedNetwork versions, int batchSize, long maxDelayMillis) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+        this.versions = versions;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000;
+        try (NetworkVersion version = versions.pin()) {
+            resize(version.getGraph());
+        }
+    }
+
+    private void resize(RoutingGraph graph) {
+        int m = graph.edgeCount();
+        this.graph = graph;
+        pendingFactor = new double[m];
+        isPending = new boolean[m];
+        pendingEdges = new int[m];
+    }
+
+    public VersionedNetwork getVersions() {
+        return versions;
+    }
+
+    /**
+     * Returns the number of updates accepted so far.
+     */
+    public long receivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Returns the number of updates that were malformed or named an unknown block.
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the exception that most recently stopped a background source started by tail or listen,
+     * or null if none has failed. Failures while the feed is being closed are not recorded.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Parses and queues one update line of the form "street name,block number,traffic factor".
+     *
+     * @param line the update
+     * @return true if the update was queued, false if it was rejected
+     */
+    public boolean accept(String line) {
+        int second = line.lastIndexOf(',');
+        int first = second <= 0 ? -1 : line.lastIndexOf(',', second - 1);
+        if (first <= 0) {
+            if (!line.isBlank()) rejected.increment();
+            return false;
+        }
+        try {
+            String street = line.substring(0, first).trim();
+            int block = Integer.parseInt(line.substring(first + 1, second).trim());
+            double factor = Double.parseDouble(line.substring(second + 1).trim());
+            return accept(street, block, factor);
+        } catch (NumberFormatException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Queues a new traffic factor for both directions of a block.
+     *
+     * @param streetName the name of the street the block is on
+     * @param blockNumber the number of the block
+     * @param factor the new traffic factor
+     * @return true if the update was queued, false if the block is unknown or the factor is not positive
+     */
+    public boolean accept(String streetName, int blockNumber, double factor) {
+        if (!(factor > 0) || Double.isInfinite(factor)) {
+            rejected.increment();
+            return false;
+        }
+        synchronized (this) {
+            int[] edges = graph.findBlock(streetName, blockNumber);
+            if (edges.length == 0) {
+                rejected.increment();
+                return false;
+            }
+            received.increment();
+            if (pendingCount == 0) oldestPending = System.nanoTime();
+            for (int e : edges) {
+                pendingFactor[e] = factor;
+                if (!isPending[e]) {
+                    isPending[e] = true;
+                    pendingEdges[pendingCount++] = e;
+                }
+            }
+            if (pendingCount >= batchSize) flush();
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the pending batch now if it is full or has waited long enough.
+     */
+    public synchronized void flushIfDue() {
+        if (pendingCount >= batchSize || (pendingCount > 0 && System.nanoTime() - oldestPending >= maxDelayNanos)) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishes all pending updates as a new version. Nothing is published if no weight actually changes.
+     */
+    public synchronized void flush() {
+        if (pendingCount == 0) return;
+        versions.update(update -> {
+            RoutingGraph target = update.getGraph();
+            for (int i = 0; i < pendingCount; i++) {
+                int e = pendingEdges[i];
+                isPending[e] = false;
+                if (target == graph) {
+                    update.setWeight(e, pendingFactor[e] * graph.length(e));
+                } else {
+                    // the topology was replaced since the update was queued; find the block again
+                    Block block = graph.block(e);
+                    for (int t : target.findBlock(block.getStreetName(), block.getBlockNumber())) {
+                        update.setWeight(t, pendingFactor[e] * target.length(t));
+                    }
+                }
+            }
+            pendingCount = 0;
+            if (target != graph) resize(target);
+        });
+    }
+
+    /**
+     * Reads updates from a stream on the calling thread until the end of the stream, then publishes them.
+     *
+     * @param in the stream of update lines
+     * @throws IOException if reading fails
+     */
+    public void ingest(InputStream in) throws IOException {
+        try {
+            pump(in, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while ingesting traffic updates");
+        }
+    }
+
+    /**
+     * Starts following a file on a background thread, like "tail -f". Lines already in the file are
+     * read first, then lines appended later as they arrive.
+     *
+     * @param file the file to follow
+     * @throws IOException if the file cannot be opened
+     */
+    public void tail(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        resources.add(in);
+        start("traffic-tail-" + file.getFileName(), () -> pump(in, true));
+    }
+
+    /**
+     * Starts accepting connections on a loopback port on a background thread. Every connection is read
+     * on its own thread and may send any number of update lines.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @return the port that is being listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public int listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        resources.add(server);
+        start("traffic-listen-" + server.getLocalPort(), () -> {
+            while (!closed) {
+                Socket socket = server.accept();
+                resources.add(socket);
+                start("traffic-connection-" + socket.getPort(), () -> {
+                    try (Socket s = socket) {
+                        pump(s.getInputStream(), false);
+                    } finally {
+                        resources.remove(socket);
+                    }
+                });
+            }
+        });
+        return server.getLocalPort();
+    }
+
+    private interface Source {
+        void run() throws Exception;
+    }
+
+    private void start(String name, Source source) {
+        Thread thread = new Thread(() -> {
+            try {
+                source.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                if (!closed) failure = e;
+            } finally {
+                threads.remove(Thread.currentThread());
+            }
+        }, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Splits a byte stream into lines and queues each one. If follow is true, the end of the stream is
+     * treated as "no input yet" and the stream is polled until the feed is closed.
+     */
+    private void pump(InputStream in, boolean follow) throws IOException, InterruptedException {
+        byte[] buffer = new byte[1 << 16];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        while (!closed) {
+            // publish what we have before we may have to wait for more input
+            if (in.available() == 0) flush();
+            int n = in.read(buffer);
+            if (n < 0) {
+                if (!follow) break;
+                Thread.sleep(POLL_MILLIS);
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    accept(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+                    line[lineLength++] = b;
+                }
+            }
+            flushIfDue();
+        }
+        if (lineLength > 0) accept(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+        flush();
+    }
+
+    /**
+     * Stops all background sources and publishes whatever is still pending.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (resources) {
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    // already closed or broken, nothing left to release
+                }
+            }
+            resources.clear();
+        }
+        synchronized (threads) {
+            for (Thread thread : threads) thread.interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,317 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The TrafficProfiles class makes the traffic of blocks depend on the time of day, and finds the
+ * earliest arrival for a given departure time.
+ *
+ * A profile is a piecewise-linear curve over a day of factors that multiply a block's traffic, so 1
+ * is its usual traffic and 2 twice that. Profiles are shared: the factors of all of them are kept in
+ * one float table with a breakpoint every SLOT_MINUTES minutes, and every edge stores only the offset
+ * of its profile in the table. Evaluating the traffic of an edge at a time is then an index
+ * computation and one linear interpolation. Profile 0 is flat, and every edge starts out with it.
+ *
+ * Times are in minutes since midnight and wrap around at the end of the day. A block's traffic is
+ * turned into a travel time by dividing it by trafficPerMinute. A profile is only accepted for an
+ * edge if it keeps the edge first-in-first-out, that is if leaving later never means arriving
+ * earlier; under that condition a Dijkstra search over arrival times finds the earliest arrival.
+ *
+ * Profiles are set up before querying. Queries may then run on several threads at once.
+ */
+public class TrafficProfiles {
+    /**
+     * The number of minutes between two breakpoints of a profile.
+     */
+    public static final int SLOT_MINUTES = 15;
+    /**
+     * The number of minutes in a day.
+     */
+    public static final int DAY_MINUTES = 24 * 60;
+    private static final int SLOTS = DAY_MINUTES / SLOT_MINUTES;
+    // every profile takes SLOTS + 1 entries of the table, the last repeating the first
+    private static final int STRIDE = SLOTS + 1;
+
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final double[] minutes;       // the travel time of every edge with a factor of 1
+    private final int[] offset;           // the start of every edge's profile in the table
+    private float[] table = new float[0];
+    private float[] maxDrop = new float[0];   // the largest fall of a profile's factor over one slot
+    private int profileCount;
+
+    private final ThreadLocal<SearchWorkspace> workspaces;
+
+    /**
+     * Creates profiles in which every block keeps its traffic all day.
+     *
+     * @param graph the graph whose edges get profiles
+     * @param weights the traffic of every edge
+     * @param trafficPerMinute the traffic covered in one minute of travel
+     */
+    public TrafficProfiles(RoutingGraph graph, double[] weights, double trafficPerMinute) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (!(trafficPerMinute > 0) || Double.isInfinite(trafficPerMinute))
+            throw new IllegalArgumentException("Traffic per minute must be positive: " + trafficPerMinute);
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.minutes = new double[weights.length];
+        for (int e = 0; e < weights.length; e++) minutes[e] = weights[e] / trafficPerMinute;
+        this.offset = new int[weights.length];
+        this.workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+        addProfile(new double[] {0}, new double[] {1});
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    public int profileCount() {
+        return profileCount;
+    }
+
+    /**
+     * Adds a profile through the given breakpoints. Between two breakpoints the factor changes
+     * linearly, and from the last breakpoint it changes linearly back to the first one on the next
+     * day. The curve is sampled every SLOT_MINUTES minutes, so breakpoints between those times are
+     * smoothed.
+     *
+     * @param times the times of the breakpoints, in increasing order within one day
+     * @param factors the traffic factor at every breakpoint, all positive
+     * @return the id of the new profile
+     */
+    public int addProfile(double[] times, double[] factors) {
+        int k = times.length;
+        if (k == 0 || factors.length != k) throw new IllegalArgumentException("Expected one factor per breakpoint");
+        for (int i = 0; i < k; i++) {
+            if (!(times[i] >= 0 && times[i] < DAY_MINUTES) || i > 0 && times[i] <= times[i - 1])
+                throw new IllegalArgumentException("Breakpoint times must be increasing and within a day");
+            if (!(factors[i] > 0) || Double.isInfinite(factors[i]))
+                throw new IllegalArgumentException("Factors must be positive: " + factors[i]);
+        }
+        int p = profileCount;
+        int base = p * STRIDE;
+        if (base + STRIDE > table.length) {
+            table = Arrays.copyOf(table, Math.max(STRIDE * 4, table.length * 2));
+            maxDrop = Arrays.copyOf(maxDrop, table.length / STRIDE);
+        }
+        for (int slot = 0; slot < SLOTS; slot++) table[base + slot] = (float) interpolate(times, factors, slot * SLOT_MINUTES);
+        table[base + SLOTS] = table[base];
+        float drop = 0;
+        for (int slot = 0; slot < SLOTS; slot++) drop = Math.max(drop, table[base + slot] - table[base + slot + 1]);
+        maxDrop[p] = drop;
+        return profileCount++;
+    }
+
+    /**
+     * Returns the factor of the curve through the breakpoints at a time of day.
+     */
+    private static double interpolate(double[] times, double[] factors, double time) {
+        int k = times.length;
+        // i is the last breakpoint at or before time, or the last one of the day before
+        int i = k - 1;
+        for (int b = 0; b < k && times[b] <= time; b++) i = b;
+        int j = (i + 1) % k;
+        double start = times[i] <= time ? times[i] : times[i] - DAY_MINUTES;
+        double end = times[j] > start ? times[j] : times[j] + DAY_MINUTES;
+        return factors[i] + (factors[j] - factors[i]) * (time - start) / (end - start);
+    }
+
+    /**
+     * Gives an edge a profile.
+     *
+     * @param edge the edge id
+     * @param profile the profile id
+     * @throws IllegalArgumentException if the profile falls so fast that leaving the edge's tail later
+     *         could mean reaching its head earlier
+     */
+    public void setProfile(int edge, int profile) {
+        checkProfile(edge, profile);
+        offset[edge] = profile * STRIDE;
+    }
+
+    private void checkProfile(int edge, int profile) {
+        if (profile < 0 || profile >= profileCount) throw new IllegalArgumentException("No such profile: " + profile);
+        // within a slot, travel time falls by minutes * drop, which must not exceed the slot itself
+        if (minutes[edge] * maxDrop[profile] > SLOT_MINUTES)
+            throw new IllegalArgumentException("Profile " + profile + " is not first-in-first-out on edge " + edge);
+    }
+
+    /**
+     * Gives both directions of a block a profile.
+     *
+     * @param streetName the name of the street the block is on
+     * @param blockNumber the number of the block
+     * @param profile the profile id
+     * @return false if there is no such block
+     * @throws IllegalArgumentException if the profile does not suit either direction, in which case
+     *         neither is changed
+     */
+    public boolean setProfile(String streetName, int blockNumber, int profile) {
+        int[] edges = graph.findBlock(streetName, blockNumber);
+        for (int e : edges) checkProfile(e, profile);
+        for (int e : edges) offset[e] = profile * STRIDE;
+        return edges.length > 0;
+    }
+
+    public int getProfile(int edge) {
+        return offset[edge] / STRIDE;
+    }
+
+    /**
+     * Returns the traffic factor of a profile at a time.
+     *
+     * @param profile the profile id
+     * @param time the time in minutes since midnight, of any day
+     */
+    public double factor(int profile, double time) {
+        if (profile < 0 || profile >= profileCount) throw new IllegalArgumentException("No such profile: " + profile);
+        return factorAt(profile * STRIDE, time);
+    }
+
+    private double factorAt(int base, double time) {
+        double t = time - Math.floor(time / DAY_MINUTES) * DAY_MINUTES;
+        double x = t / SLOT_MINUTES;
+        int s = (int) x;
+        if (s >= SLOTS) s = SLOTS - 1;
+        float a = table[base + s];
+        return a + (table[base + s + 1] - a) * (x - s);
+    }
+
+    /**
+     * Returns the minutes it takes to drive an edge when entering it at a time.
+     */
+    public double travelTime(int edge, double time) {
+        return minutes[edge] * factorAt(offset[edge], time);
+    }
+
+    /**
+     * Returns the traffic of an edge when entering it at a time.
+     */
+    public double traffic(int edge, double time) {
+        return weights[edge] * factorAt(offset[edge], time);
+    }
+
+    /**
+     * Runs a time-dependent Dijkstra search from source, leaving at a time, until target is settled.
+     * Afterwards workspace.distance(v) is the earliest arrival at v for every settled v.
+     *
+     * @param workspace the workspace to search with
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex, or -1 to search the whole graph
+     * @param departure the departure time in minutes since midnight
+     * @return the earliest arrival at target, or infinity if target is unreachable or negative
+     */
+    public double search(SearchWorkspace workspace, ClosureMask closures, int source, int target, double departure) {
+        if (Double.isNaN(departure) || Double.isInfinite(departure)) throw new IllegalArgumentException("Departure must be a time: " + departure);
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        long[] closed = closures == null ? null : closures.bits();
+        workspace.clear();
+        if (closures != null && closures.isVertexClosed(source)) return Double.POSITIVE_INFINITY;
+        workspace.reach(source, departure, -1);
+        while (!workspace.isQueueEmpty()) {
+            int v = workspace.poll();
+            if (v == target) return workspace.distance(v);
+            double time = workspace.distance(v);
+            for (int e = graph.firstEdge(v), end = graph.endEdge(v); e < end; e++) {
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int w = graph.head(e);
+                if (workspace.isSettled(w)) continue;
+                double arrival = time + minutes[e] * factorAt(offset[e], time);
+                if (!workspace.isReached(w) || arrival < workspace.distance(w)) workspace.reach(w, arrival, e);
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the earliest arrival at target when leaving source at a time.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @param departure the departure time in minutes since midnight
+     * @return the arrival time in minutes since midnight of the departure day, or infinity if target
+     *         is unreachable
+     */
+    public double earliestArrival(ClosureMask closures, int source, int target, double departure) {
+        return search(workspaces.get(), closures, source, target, departure);
+    }
+
+    /**
+     * Finds the route with the earliest arrival at target when leaving source at a time.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @param departure the departure time in minutes since midnight
+     * @return the route, whose traffic is the usual traffic of its blocks, or an empty route if
+     *         target is unreachable or equals source
+     */
+    public Route route(ClosureMask closures, int source, int target, double departure) {
+        SearchWorkspace workspace = workspaces.get();
+        double arrival = search(workspace, closures, source, target, departure);
+        if (arrival == Double.POSITIVE_INFINITY) return new Route(graph, source, new int[0], weights);
+        return Route.fromSearch(graph, workspace, source, target, weights);
+    }
+
+    /**
+     * Parses a time of day such as "8:45" or "17:30" into minutes since midnight.
+     *
+     * @param time the hours and minutes, separated by a colon
+     * @return the minutes since midnight
+     */
+    public static double parseTime(String time) {
+        int colon = time.indexOf(':');
+        try {
+            int hours = Integer.parseInt(colon < 0 ? time.trim() : time.substring(0, colon).trim());
+            int minutes = colon < 0 ? 0 : Integer.parseInt(time.substring(colon + 1).trim());
+            if (hours < 0 || hours > 24 || minutes < 0 || minutes >= 60 || hours * 60 + minutes > DAY_MINUTES)
+                throw new IllegalArgumentException("Not a time of day: " + time);
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a time of day: " + time, e);
+        }
+    }
+
+    /**
+     * Gives the blocks of a map a morning and evening rush hour profile or a flat one at random, then
+     * times earliest-arrival queries at several departure times next to static Dijkstra searches.
+     * Usage: TrafficProfiles mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        double mean = 0;
+        for (double w : weights) mean += w / weights.length;
+        // an average block takes half a minute
+        TrafficProfiles profiles = new TrafficProfiles(graph, weights, 2 * mean);
+        int rush = profiles.addProfile(new double[] {parseTime("3:00"), parseTime("8:30"), parseTime("11:00"),
+            parseTime("17:00"), parseTime("20:00")}, new double[] {0.6, 2.0, 1.0, 1.8, 0.9});
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            int r = graph.reverse(e);
+            if (r != -1 && r < e) profiles.setProfile(e, profiles.getProfile(r));
+            else if (StdRandom.uniformDouble() < 0.6) profiles.setProfile(e, rush);
+        }
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        for (String departure : new String[] {"4:00", "8:45", "13:00", "17:15"}) {
+            double leave = parseTime(departure);
+            long[] elapsed = Benchmark.time(
+                () -> { for (int q = 0; q < queries; q++) workspace.dijkstra(graph, weights, sources[q], targets[q]); },
+                () -> { for (int q = 0; q < queries; q++) profiles.earliestArrival(null, sources[q], targets[q], leave); });
+            double travel = 0;
+            for (int q = 0; q < queries; q++) {
+                double arrival = profiles.earliestArrival(null, sources[q], targets[q], leave);
+                if (arrival != Double.POSITIVE_INFINITY) travel += arrival - leave;
+            }
+            StdOut.printf("leaving at %s: %.2f minutes on average, %.1f us per query (%.2fx static Dijkstra)%n",
+                departure, travel / queries, elapsed[1] / 1e3 / queries, elapsed[1] / (double) elapsed[0]);
+        }
+    }
+}
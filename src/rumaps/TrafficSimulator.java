@@ -0,0 +1,203 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TrafficSimulator class runs Monte Carlo traffic scenarios over a RoutingGraph.
+ *
+ * Each scenario draws a new traffic factor for every directed block from the same distribution as
+ * RUMaps.blockTrafficFactor (Gaussian centered at 1 with standard deviation 0.2, capped to [0.5, 1.5])
+ * and reruns the fastest path search for every registered route. The costs and the blocks used by
+ * each route are collected into a SimulationReport.
+ *
+ * Scenarios are handed out in chunks to one worker per thread. Each worker owns its weight array,
+ * search workspace and block counters, so the inner loop does not allocate or synchronize. Routes that
+ * share a start intersection are answered by a single search per scenario.
+ *
+ * Scenario i always uses the same random stream for a given seed, so results do not depend on the
+ * number of threads.
+ */
+public class TrafficSimulator {
+    private static final int CHUNK = 64;
+
+    private final RoutingGraph graph;
+    private final ArrayList<int[]> routes;
+
+    public TrafficSimulator(RoutingGraph graph) {
+        this.graph = graph;
+        this.routes = new ArrayList<>();
+    }
+
+    /**
+     * Registers a route to evaluate in every scenario.
+     *
+     * @param start the starting intersection
+     * @param end the destination intersection
+     * @return the index of the route in the report
+     */
+    public int addRoute(Intersection start, Intersection end) {
+        int s = graph.indexOf(start);
+        int t = graph.indexOf(end);
+        if (s < 0 || t < 0) throw new IllegalArgumentException("Intersection is not in the network");
+        routes.add(new int[] {s, t});
+        return routes.size() - 1;
+    }
+
+    public int routeCount() {
+        return routes.size();
+    }
+
+    /**
+     * Runs the given number of scenarios on every available core.
+     *
+     * @param scenarios the number of traffic scenarios
+     * @param seed the seed of the random traffic draws
+     * @return the per-route statistics
+     */
+    public SimulationReport run(int scenarios, long seed) {
+        return run(scenarios, seed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs the given number of scenarios on a fixed number of threads.
+     *
+     * @param scenarios the number of traffic scenarios
+     * @param seed the seed of the random traffic draws
+     * @param threads the number of worker threads
+     * @return the per-route statistics
+     */
+    public SimulationReport run(int scenarios, long seed, int threads) {
+        if (scenarios <= 0) throw new IllegalArgumentException("scenarios must be positive");
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+
+        int r = routes.size();
+        // Sort routes by start so each start is searched once per scenario
+        Integer[] byStart = new Integer[r];
+        for (int i = 0; i < r; i++) byStart[i] = i;
+        Arrays.sort(byStart, (a, b) -> Integer.compare(routes.get(a)[0], routes.get(b)[0]));
+        int[] routeOf = new int[r];
+        int[] sources = new int[r];
+        int[] targets = new int[r];
+        for (int i = 0; i < r; i++) {
+            routeOf[i] = byStart[i];
+            sources[i] = routes.get(byStart[i])[0];
+            targets[i] = routes.get(byStart[i])[1];
+        }
+
+        double[][] costs = new double[r][scenarios];
+        int m = graph.edgeCount();
+        int[][] edgeCounts = new int[r][m];
+        AtomicInteger nextChunk = new AtomicInteger();
+
+        int workers = Math.min(threads, (scenarios + CHUNK - 1) / CHUNK);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            ArrayList<Callable<int[][]>> tasks = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                tasks.add(() -> simulate(scenarios, seed, routeOf, sources, targets, costs, nextChunk));
+            }
+            for (Future<int[][]> result : pool.invokeAll(tasks)) {
+                int[][] counts = result.get();
+                for (int i = 0; i < r; i++) {
+                    for (int e = 0; e < m; e++) edgeCounts[i][e] += counts[i][e];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Simulation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Simulation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return new SimulationReport(graph, routes, costs, edgeCounts);
+    }
+
+    /**
+     * Worker loop: claims chunks of scenarios until none are left.
+     *
+     * @return the number of times each route used each edge in the scenarios this worker ran
+     */
+    private int[][] simulate(int scenarios, long seed, int[] routeOf, int[] sources, int[] targets, double[][] costs,
+                             AtomicInteger nextChunk) {
+        int r = routeOf.length;
+        int m = graph.edgeCount();
+        double[] lengths = graph.lengths();
+        double[] weights = new double[m];
+        SearchWorkspace workspace = new SearchWorkspace(graph);
+        int[][] counts = new int[r][m];
+
+        for (int chunk = nextChunk.getAndIncrement(); chunk * CHUNK < scenarios; chunk = nextChunk.getAndIncrement()) {
+            int last = Math.min(scenarios, (chunk + 1) * CHUNK);
+            for (int scenario = chunk * CHUNK; scenario < last; scenario++) {
+                SplittableRandom random = new SplittableRandom(mix(seed, scenario));
+                for (int e = 0; e < m; e++) {
+                    double factor = 1 + 0.2 * random.nextGaussian();
+                    factor = Math.min(Math.max(factor, 0.5), 1.5);
+                    weights[e] = factor * lengths[e];
+                }
+
+                for (int from = 0; from < r; ) {
+                    int source = sources[from];
+                    int to = from;
+                    while (to < r && sources[to] == source) to++;
+
+                    workspace.dijkstra(graph, weights, source, targets, from, to);
+                    for (int i = from; i < to; i++) {
+                        int route = routeOf[i];
+                        int t = targets[i];
+                        costs[route][scenario] = t == source ? 0.0 : workspace.distance(t);
+                        if (t == source) continue;
+                        for (int e = workspace.predEdge(t); e != -1; e = workspace.predEdge(graph.tail(e))) {
+                            counts[route][e]++;
+                        }
+                    }
+                    from = to;
+                }
+            }
+        }
+        return counts;
+    }
+
+    // SplitMix64 finalizer, so that neighboring scenarios get unrelated streams
+    private static long mix(long seed, long scenario) {
+        long z = seed + (scenario + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Runs a simulation between random pairs of intersections and prints a summary.
+     *
+     * Usage: java rumaps.TrafficSimulator file.in [scenarios] [routes] [seed]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = new RUMaps(args[0]);
+        int scenarios = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int routeCount = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 2024;
+
+        RoutingGraph graph = maps.getRoutingGraph();
+        TrafficSimulator simulator = new TrafficSimulator(graph);
+        StdRandom.setSeed(seed);
+        for (int i = 0; i < routeCount; i++) {
+            int s = StdRandom.uniformInt(graph.vertexCount());
+            int t = StdRandom.uniformInt(graph.vertexCount());
+            simulator.addRoute(graph.intersection(s), graph.intersection(t));
+        }
+
+        long begin = System.nanoTime();
+        SimulationReport report = simulator.run(scenarios, seed);
+        long elapsed = System.nanoTime() - begin;
+
+        for (int i = 0; i < report.routeCount(); i++) {
+            StdOut.printf("%s -> %s: mean %.2f, stddev %.2f, p50 %.2f, p95 %.2f%n",
+                graph.intersection(report.start(i)).getCoordinate(), graph.intersection(report.end(i)).getCoordinate(),
+                report.mean(i), Math.sqrt(report.variance(i)), report.percentile(i, 50), report.percentile(i, 95));
+        }
+        StdOut.printf("%d scenarios in %.1f ms%n", scenarios, elapsed / 1e6);
+    }
+}
@@ -0,0 +1,383 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The TurnCostGraph class is the edge-expanded form of a RoutingGraph, in which moving from one block
+ * onto the next costs extra depending on how sharply the route turns between them. Every edge of the
+ * routing graph is a node here, and every turn from an edge into the intersection it ends at onto an
+ * edge out of that intersection is an arc, unless the turn is forbidden.
+ *
+ * The turning angle is measured between the last segment of the block's polyline into the
+ * intersection and the first segment of the next block's polyline out of it, so curved blocks turn by
+ * the angle a driver actually makes. A turn by angle a costs turnCost * a / (pi / 2) on top of the
+ * traffic of the next block, so going straight on is free and a right angle costs turnCost; turning
+ * back onto the same block costs uTurnCost instead.
+ *
+ * Turns are precomputed into flat arrays, with the traffic of the block turned onto already added to
+ * the cost of each arc, so a search relaxes one arc with two array reads. Although the turn graph has
+ * several times as many arcs as the routing graph, queries are guided by turn-free distances to the
+ * target, as described at search(), and so stay within about twice the time of a plain Dijkstra
+ * search. A graph may be searched by several threads at once.
+ */
+public class TurnCostGraph {
+    private final RoutingGraph graph;
+    private final double[] weights;
+    private final double turnCost;
+    private final double uTurnCost;
+
+    // turns out of edge e are firstTurn[e] .. firstTurn[e + 1] - 1
+    private final int[] firstTurn;
+    private final int[] turnEdge;        // the edge turned onto
+    private final double[] turnWeight;   // the turn penalty plus the weight of turnEdge
+    private final double[] arrival;      // the heading at the end of each edge, in radians
+    private final double[] departure;    // the heading at the start of each edge, in radians
+
+    private final ThreadLocal<Query> queries;
+
+    /**
+     * Builds the turn graph with turns costing a quarter of the average block's traffic per right
+     * angle, U-turns twice the average block's traffic and no forbidden turns.
+     *
+     * @param graph the graph to expand
+     * @param weights the traffic of every edge
+     */
+    public TurnCostGraph(RoutingGraph graph, double[] weights) {
+        this(graph, weights, null);
+    }
+
+    /**
+     * Builds the turn graph with the default turn costs and some turns forbidden.
+     *
+     * @param graph the graph to expand
+     * @param weights the traffic of every edge
+     * @param forbiddenTurns pairs {from edge, to edge} of turns that may not be made, or null
+     */
+    public TurnCostGraph(RoutingGraph graph, double[] weights, int[][] forbiddenTurns) {
+        this(graph, weights, 0.25 * mean(weights), 2 * mean(weights), forbiddenTurns);
+    }
+
+    /**
+     * Builds the turn graph.
+     *
+     * @param graph the graph to expand
+     * @param weights the traffic of every edge; the array is not kept
+     * @param turnCost the cost of a right-angle turn, scaled linearly with the angle
+     * @param uTurnCost the cost of turning back onto the block just driven
+     * @param forbiddenTurns pairs {from edge, to edge} of turns that may not be made, or null
+     */
+    public TurnCostGraph(RoutingGraph graph, double[] weights, double turnCost, double uTurnCost, int[][] forbiddenTurns) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        if (!(turnCost >= 0) || !(uTurnCost >= 0)) throw new IllegalArgumentException("Turn costs must not be negative");
+        int m = graph.edgeCount();
+        this.graph = graph;
+        this.weights = weights.clone();
+        this.turnCost = turnCost;
+        this.uTurnCost = uTurnCost;
+
+        HashSet<Long> forbidden = new HashSet<>();
+        if (forbiddenTurns != null) {
+            for (int[] turn : forbiddenTurns) {
+                if (turn.length != 2 || turn[0] < 0 || turn[0] >= m || turn[1] < 0 || turn[1] >= m)
+                    throw new IllegalArgumentException("Expected a pair of edges: " + Arrays.toString(turn));
+                if (graph.head(turn[0]) != graph.tail(turn[1]))
+                    throw new IllegalArgumentException("Edges " + turn[0] + " and " + turn[1] + " do not meet");
+                forbidden.add(key(turn[0], turn[1]));
+            }
+        }
+
+        arrival = new double[m];
+        departure = new double[m];
+        for (int e = 0; e < m; e++) {
+            ArrayList<Coordinate> points = graph.block(e).getCoordinatePoints();
+            boolean forward = startsAt(points, graph.intersection(graph.tail(e)).getCoordinate());
+            arrival[e] = heading(points, forward, false);
+            departure[e] = heading(points, forward, true);
+        }
+
+        int turns = 0;
+        for (int e = 0; e < m; e++) turns += graph.degree(graph.head(e));
+        firstTurn = new int[m + 1];
+        int[] edges = new int[turns];
+        double[] costs = new double[turns];
+        int t = 0;
+        for (int e = 0; e < m; e++) {
+            firstTurn[e] = t;
+            int v = graph.head(e);
+            for (int f = graph.firstEdge(v), end = graph.endEdge(v); f < end; f++) {
+                if (!forbidden.isEmpty() && forbidden.contains(key(e, f))) continue;
+                edges[t] = f;
+                costs[t] = penalty(e, f) + weights[f];
+                t++;
+            }
+        }
+        firstTurn[m] = t;
+        turnEdge = Arrays.copyOf(edges, t);
+        turnWeight = Arrays.copyOf(costs, t);
+
+        queries = ThreadLocal.withInitial(() -> new Query(graph.vertexCount(), m));
+    }
+
+    private static double mean(double[] weights) {
+        double sum = 0;
+        for (double w : weights) sum += w;
+        return weights.length == 0 ? 0 : sum / weights.length;
+    }
+
+    private static long key(int from, int to) {
+        return (long) from << 32 | to;
+    }
+
+    private static boolean startsAt(ArrayList<Coordinate> points, Coordinate c) {
+        Coordinate first = points.get(0), last = points.get(points.size() - 1);
+        if (first.equals(c)) return true;
+        if (last.equals(c)) return false;
+        return squaredDistance(first, c) <= squaredDistance(last, c);
+    }
+
+    private static long squaredDistance(Coordinate a, Coordinate b) {
+        long dx = a.getX() - b.getX(), dy = a.getY() - b.getY();
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns the heading of the first segment of a polyline, or of its last one, in the direction of
+     * travel, skipping repeated points.
+     */
+    private static double heading(ArrayList<Coordinate> points, boolean forward, boolean atStart) {
+        int n = points.size();
+        // walk inwards from the end of interest until the point differs from it
+        boolean fromFirst = forward == atStart;
+        Coordinate end = points.get(fromFirst ? 0 : n - 1);
+        for (int i = 1; i < n; i++) {
+            Coordinate other = points.get(fromFirst ? i : n - 1 - i);
+            if (other.equals(end)) continue;
+            // the segment runs from 'from' to 'to' in the direction of travel
+            Coordinate from = atStart ? end : other;
+            Coordinate to = atStart ? other : end;
+            return Math.atan2(to.getY() - from.getY(), to.getX() - from.getX());
+        }
+        return 0;
+    }
+
+    private double penalty(int e, int f) {
+        if (f == graph.reverse(e)) return uTurnCost;
+        return turnCost * turnAngle(e, f) / (Math.PI / 2);
+    }
+
+    public RoutingGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns the number of nodes, which is the number of edges of the routing graph.
+     */
+    public int nodeCount() {
+        return firstTurn.length - 1;
+    }
+
+    /**
+     * Returns the number of turns that may be made.
+     */
+    public int turnCount() {
+        return turnEdge.length;
+    }
+
+    /**
+     * Returns the angle in radians by which a route turns from edge e onto edge f, 0 for going
+     * straight on and pi for turning back.
+     */
+    public double turnAngle(int e, int f) {
+        double angle = Math.abs(departure[f] - arrival[e]);
+        return angle > Math.PI ? 2 * Math.PI - angle : angle;
+    }
+
+    /**
+     * Returns the cost of turning from edge e onto edge f, not counting the traffic of f, or infinity
+     * if f does not leave the end of e or the turn is forbidden.
+     */
+    public double turnCost(int e, int f) {
+        for (int t = firstTurn[e]; t < firstTurn[e + 1]; t++) {
+            if (turnEdge[t] == f) return turnWeight[t] - weights[f];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the least cost from source to target, counting turns.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @return the cost, or infinity if target is unreachable
+     */
+    public double distance(ClosureMask closures, int source, int target) {
+        if (source == target) return 0;
+        Query query = queries.get();
+        int last = search(query, closures, source, target);
+        return last < 0 ? Double.POSITIVE_INFINITY : query.cost[last];
+    }
+
+    /**
+     * Finds the cheapest route from source to target, counting turns.
+     *
+     * @param closures the closed blocks and intersections, or null if everything is open
+     * @param source the start vertex
+     * @param target the end vertex
+     * @return the route, whose traffic is that of its blocks alone, or an empty route if target is
+     *         unreachable or equals source
+     */
+    public Route route(ClosureMask closures, int source, int target) {
+        Query query = queries.get();
+        int last = source == target ? -1 : search(query, closures, source, target);
+        int count = 0;
+        for (int e = last; e != -1; e = query.edges.predEdge(e)) count++;
+        int[] edges = new int[count];
+        for (int e = last; e != -1; e = query.edges.predEdge(e)) edges[--count] = e;
+        return new Route(graph, source, edges, weights);
+    }
+
+    /**
+     * Searches the turn graph from source to target with A*, using the turn-free distances to target
+     * as the lower bounds. Those come from a plain Dijkstra search backward from target that stops at
+     * source; a vertex it did not settle is at least as far from target as source is, so the radius
+     * of the search bounds it. The bounds are consistent because turns cost nothing extra in the
+     * plain search, and they are tight enough that the turn search mostly follows the plain shortest
+     * paths, which keeps a query within about twice the cost of a plain one.
+     *
+     * @return the edge the cheapest route to target ends with, or -1 if there is none
+     */
+    private int search(Query query, ClosureMask closures, int source, int target) {
+        int n = graph.vertexCount();
+        if (source < 0 || source >= n || target < 0 || target >= n) throw new IllegalArgumentException("Vertex out of range");
+        if (closures != null && closures.getGraph() != graph) throw new IllegalArgumentException("Mask belongs to a different graph");
+        long[] closed = closures == null ? null : closures.bits();
+
+        SearchWorkspace vertices = query.vertices;
+        vertices.clear();
+        vertices.reach(target, 0.0, -1);
+        while (!vertices.isQueueEmpty()) {
+            int v = vertices.poll();
+            if (v == source) break;
+            double dv = vertices.distance(v);
+            for (int i = graph.firstInEdge(v), end = graph.endInEdge(v); i < end; i++) {
+                int e = graph.inEdge(i);
+                if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+                int u = graph.tail(e);
+                if (vertices.isSettled(u)) continue;
+                double alt = dv + weights[e];
+                if (!vertices.isReached(u) || alt < vertices.distance(u)) vertices.reach(u, alt, e);
+            }
+        }
+        // without turns target is out of reach, so with them it is too
+        if (!vertices.isSettled(source)) return -1;
+        double radius = vertices.distance(source);
+
+        SearchWorkspace edges = query.edges;
+        double[] cost = query.cost;
+        edges.clear();
+        for (int e = graph.firstEdge(source), end = graph.endEdge(source); e < end; e++) {
+            if (closed != null && (closed[e >>> 6] & (1L << e)) != 0) continue;
+            cost[e] = weights[e];
+            edges.reach(e, cost[e] + bound(vertices, graph.head(e), radius), -1);
+        }
+        while (!edges.isQueueEmpty()) {
+            int e = edges.poll();
+            if (graph.head(e) == target) return e;
+            double ce = cost[e];
+            for (int t = firstTurn[e], end = firstTurn[e + 1]; t < end; t++) {
+                int f = turnEdge[t];
+                if (closed != null && (closed[f >>> 6] & (1L << f)) != 0) continue;
+                if (edges.isSettled(f)) continue;
+                double alt = ce + turnWeight[t];
+                if (edges.isReached(f) && alt >= cost[f]) continue;
+                cost[f] = alt;
+                edges.reach(f, alt + bound(vertices, graph.head(f), radius), e);
+            }
+        }
+        return -1;
+    }
+
+    private static double bound(SearchWorkspace vertices, int v, double radius) {
+        return vertices.isSettled(v) ? vertices.distance(v) : radius;
+    }
+
+    /**
+     * Returns the cost of a route including its turns, or infinity if it makes a forbidden turn.
+     */
+    public double cost(Route route) {
+        if (route.getGraph() != graph) throw new IllegalArgumentException("Route belongs to a different graph");
+        double cost = 0;
+        for (int i = 0; i < route.edgeCount(); i++) {
+            int e = route.getEdge(i);
+            cost += weights[e];
+            if (i > 0) cost += turnCost(route.getEdge(i - 1), e);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the turns {from edge, to edge} from any edge of block 'from' onto any edge of block
+     * 'to' at an intersection they share, for building tables of forbidden turns.
+     */
+    public static int[][] turnsBetween(RoutingGraph graph, Block from, Block to) {
+        int[] fromEdges = graph.findBlock(from.getStreetName(), from.getBlockNumber());
+        int[] toEdges = graph.findBlock(to.getStreetName(), to.getBlockNumber());
+        if (fromEdges.length == 0 || toEdges.length == 0) return new int[0][];
+        ArrayList<int[]> turns = new ArrayList<>();
+        for (int e : fromEdges) {
+            for (int f : toEdges) {
+                if (graph.head(e) == graph.tail(f) && e != f) turns.add(new int[] {e, f});
+            }
+        }
+        return turns.toArray(new int[0][]);
+    }
+
+    /**
+     * The per-thread state of a query: a workspace over the vertices for the turn-free lower bounds,
+     * and one over the edges, with the cost of the route to each, for the turn search.
+     */
+    private static final class Query {
+        final SearchWorkspace vertices;
+        final SearchWorkspace edges;
+        final double[] cost;
+
+        Query(int vertexCount, int edgeCount) {
+            vertices = new SearchWorkspace(vertexCount);
+            edges = new SearchWorkspace(edgeCount);
+            cost = new double[edgeCount];
+        }
+    }
+
+    /**
+     * Times turn-aware searches between random pairs of a map next to plain Dijkstra searches, and
+     * reports how much the turns change the routes.
+     * Usage: TurnCostGraph mapFile [queries]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        RoutingGraph graph = maps.getRoutingGraph();
+        double[] weights = graph.trafficWeights();
+        long begin = System.nanoTime();
+        TurnCostGraph turns = new TurnCostGraph(graph, weights);
+        StdOut.printf("built %d turns over %d edges in %.1f ms%n", turns.turnCount(), turns.nodeCount(),
+            (System.nanoTime() - begin) / 1e6);
+
+        int[][] pairs = Benchmark.randomPairs(graph, queries);
+        int[] sources = pairs[0], targets = pairs[1];
+        SearchWorkspace nodes = new SearchWorkspace(graph);
+        long[] elapsed = Benchmark.time(
+            () -> { for (int q = 0; q < queries; q++) nodes.dijkstra(graph, weights, sources[q], targets[q]); },
+            () -> { for (int q = 0; q < queries; q++) turns.distance(null, sources[q], targets[q]); });
+        long plain = elapsed[0], aware = elapsed[1];
+        int changed = 0;
+        for (int q = 0; q < queries; q++) {
+            nodes.dijkstra(graph, weights, sources[q], targets[q]);
+            Route fastest = Route.fromSearch(graph, nodes, sources[q], targets[q], weights);
+            if (!fastest.equals(turns.route(null, sources[q], targets[q]))) changed++;
+        }
+        StdOut.printf("%.1f us per Dijkstra, %.1f us per turn-aware search (%.2fx); %d of %d routes change%n",
+            plain / 1e3 / queries, aware / 1e3 / queries, aware / (double) plain, changed, queries);
+    }
+}
@@ -0,0 +1,247 @@
+package rumaps;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+/**
+ * The VersionedNetwork class publishes a sequence of immutable NetworkVersions, so that queries can run
+ * on many threads while traffic, closures and topology are being changed, without a global lock.
+ *
+ * It follows the read-copy-update pattern:
+ * - Readers pin the current version, run their query against its graph and weights, then close it.
+ *   Pinning is a single compare-and-set and never blocks.
+ * - Writers prepare the next version in a NetworkUpdate, copying only what they change, and publish it
+ *   with one atomic reference write. Writers are serialized with each other, never with readers.
+ * - A replaced version is reclaimed once no reader holds it any more, and its weight array is kept
+ *   for reuse by a later update once no other version shares it.
+ *
+ * Unlike Network and Block, which are mutated in place, nothing a reader can see ever changes.
+ */
+public class VersionedNetwork {
+    private static final int POOL_LIMIT = 4;
+
+    private final AtomicReference<NetworkVersion> current;
+    private final ConcurrentLinkedQueue<double[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final List<Consumer<NetworkVersion>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a versioned network whose first version has the traffic the graph was built with.
+     *
+     * @param graph the initial topology
+     */
+    public VersionedNetwork(RoutingGraph graph) {
+        this(graph, graph.trafficWeights());
+    }
+
+    /**
+     * Creates a versioned network.
+     *
+     * @param graph the initial topology
+     * @param weights the weight of every edge in version 0; the array is copied
+     */
+    public VersionedNetwork(RoutingGraph graph, double[] weights) {
+        if (weights.length != graph.edgeCount()) throw new IllegalArgumentException("Expected one weight per edge");
+        current = new AtomicReference<>(new NetworkVersion(this, 0, graph, weights.clone(), new ClosureMask(graph), new int[0]));
+    }
+
+    /**
+     * Pins the latest version for the duration of a query. The caller must close the returned version
+     * exactly once, after which it must not be used.
+     *
+     * @return the pinned current version
+     */
+    public NetworkVersion pin() {
+        while (true) {
+            NetworkVersion version = current.get();
+            if (version.tryPin()) {
+                if (current.get() == version) return version;
+                // a newer version was published in between; prefer it
+                version.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the latest version without pinning it.
+     */
+    public long currentVersion() {
+        return current.get().getVersion();
+    }
+
+    /**
+     * Registers a function to be called with every version published from now on. Listeners run on the
+     * writer's thread, in publication order, before update returns; the version they receive cannot be
+     * reclaimed while they run, so they need not pin it, but must not keep it afterwards.
+     *
+     * @param listener the function to call
+     */
+    public void addListener(Consumer<NetworkVersion> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<NetworkVersion> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Prepares and publishes the next version. The changes are applied to a NetworkUpdate based on the
+     * latest version; if they leave the graph, every weight and every closure unchanged, nothing is
+     * published.
+     *
+     * @param changes the function that fills in the update
+     * @return the number of the latest version after the update
+     */
+    public synchronized long update(Consumer<NetworkUpdate> changes) {
+        NetworkVersion base = current.get();
+        NetworkUpdate update = new NetworkUpdate(this, base);
+        try {
+            changes.accept(update);
+        } catch (RuntimeException e) {
+            if (update.getWeights() != null) recycle(update.getWeights());
+            throw e;
+        }
+
+        double[] weights = update.getWeights();
+        ClosureMask closures = update.getClosures();
+        int[] changedEdges;
+        if (update.changesGraph()) {
+            changedEdges = null;
+        } else {
+            int[] reweighted = weights == null ? new int[0] : diff(base.getWeights(), weights);
+            int[] reclosed = closures.changedEdges(base.getClosures());
+            changedEdges = union(reweighted, reclosed);
+            if (changedEdges.length == 0) {
+                if (weights != null) recycle(weights);
+                return base.getVersion();
+            }
+        }
+        NetworkVersion next;
+        if (weights == null) {
+            // a closure-only update keeps the weights, and the array stays in use until both versions are reclaimed
+            next = new NetworkVersion(this, base.getVersion() + 1, update.getGraph(), base.getWeights(), base.weightUsers(), closures,
+                changedEdges);
+        } else {
+            next = new NetworkVersion(this, base.getVersion() + 1, update.getGraph(), weights, closures, changedEdges);
+        }
+        current.set(next);
+        base.retire();
+        // next is only retired by a later update, which cannot start until this one returns
+        for (Consumer<NetworkVersion> listener : listeners) listener.accept(next);
+        return next.getVersion();
+    }
+
+    // merges two sorted arrays of edge ids without duplicates
+    private static int[] union(int[] a, int[] b) {
+        if (b.length == 0) return a;
+        if (a.length == 0) return b;
+        int[] merged = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || (i < a.length && a[i] < b[j])) next = a[i++];
+            else if (i == a.length || b[j] < a[i]) next = b[j++];
+            else { next = a[i++]; j++; }
+            merged[k++] = next;
+        }
+        return Arrays.copyOf(merged, k);
+    }
+
+    private static int[] diff(double[] before, double[] after) {
+        int count = 0;
+        for (int e = 0; e < after.length; e++) {
+            if (before[e] != after[e]) count++;
+        }
+        int[] changed = new int[count];
+        count = 0;
+        for (int e = 0; e < after.length; e++) {
+            if (before[e] != after[e]) changed[count++] = e;
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the number of versions that have been reclaimed so far.
+     */
+    public long reclaimedCount() {
+        return reclaimed.get();
+    }
+
+    /**
+     * Returns an array of the given length for a new version, reusing a reclaimed one if possible.
+     */
+    double[] obtainArray(int length) {
+        for (double[] array = pool.poll(); array != null; array = pool.poll()) {
+            pooled.decrementAndGet();
+            if (array.length == length) return array;
+        }
+        return new double[length];
+    }
+
+    void recycle(double[] array) {
+        if (pooled.incrementAndGet() <= POOL_LIMIT) {
+            pool.add(array);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called exactly once per version, when it is retired and no reader holds it.
+     */
+    void reclaimed(NetworkVersion version, double[] weights) {
+        reclaimed.incrementAndGet();
+        if (weights != null) recycle(weights);
+    }
+
+    /**
+     * Checks that a pinned version keeps its weights while later versions share, replace and recycle
+     * weight arrays, then times pins against concurrent updates.
+     * Usage: VersionedNetwork mapFile [updates]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        RUMaps maps = Benchmark.load(args[0]);
+        RoutingGraph graph = maps.getRoutingGraph();
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        VersionedNetwork network = new VersionedNetwork(graph);
+        Block block = graph.block(0);
+
+        // a closure-only update shares the weights of the pinned version; the versions after it must
+        // not recycle that array while the pin is held
+        NetworkVersion pinned = network.pin();
+        double expected = pinned.getWeight(0);
+        network.update(u -> u.closeBlock(block.getStreetName(), block.getBlockNumber()));
+        network.update(u -> u.setWeight(0, expected + 1));
+        network.update(u -> u.setWeight(0, 999));
+        network.update(u -> u.setWeight(0, expected + 2));
+        if (pinned.getWeight(0) != expected) {
+            throw new IllegalStateException("Pinned version reads " + pinned.getWeight(0) + " for edge 0, expected " + expected);
+        }
+        StdOut.printf("pinned version still reads %.1f for edge 0: ok%n", pinned.getWeight(0));
+        pinned.close();
+
+        long[] pins = new long[1];
+        Thread reader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                network.pin().close();
+                pins[0]++;
+            }
+        });
+        reader.start();
+        long begin = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            int edge = StdRandom.uniformInt(graph.edgeCount());
+            double weight = StdRandom.uniformDouble() * 100;
+            network.update(u -> u.setWeight(edge, weight));
+        }
+        long elapsed = System.nanoTime() - begin;
+        reader.interrupt();
+        reader.join();
+        StdOut.printf("%d updates in %.1f ms while a reader pinned %d times; %d versions reclaimed%n", updates, elapsed / 1e6, pins[0],
+            network.reclaimedCount());
+    }
+}
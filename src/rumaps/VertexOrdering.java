@@ -0,0 +1,246 @@
+package rumaps;
+
+import java.util.*;
+
+/**
+ * The VertexOrdering enum names the ways a RoutingGraph can be renumbered so that vertices that are
+ * searched one after another also sit close together in its arrays.
+ * - FILE - the order the intersections were read in, which the graph already has
+ * - HILBERT - along a Hilbert curve through the coordinates of the intersections, so vertices near
+ *   each other on the map get nearby ids
+ * - BFS - in breadth-first order over the blocks in either direction, one component after another
+ * - REVERSE_CUTHILL_MCKEE - breadth-first from a vertex at the edge of each component, lower degree
+ *   neighbors first, and reversed; this keeps the ids of the two ends of every block close
+ *
+ * Intersections with null entries in the network come last in every order but FILE.
+ */
+public enum VertexOrdering {
+    FILE,
+    HILBERT,
+    BFS,
+    REVERSE_CUTHILL_MCKEE;
+
+    private static final int HILBERT_BITS = 15;
+    private static final int DONE = -1;
+
+    /**
+     * Returns the vertices of a graph in this order.
+     *
+     * @param graph the graph to order
+     * @return the vertices, where order[i] is the vertex that becomes vertex i
+     */
+    public int[] order(RoutingGraph graph) {
+        switch (this) {
+            case HILBERT:
+                return hilbertOrder(graph);
+            case BFS:
+                return breadthFirstOrder(graph, false);
+            case REVERSE_CUTHILL_MCKEE:
+                return breadthFirstOrder(graph, true);
+            default:
+                int[] order = new int[graph.vertexCount()];
+                for (int v = 0; v < order.length; v++) order[v] = v;
+                return order;
+        }
+    }
+
+    /**
+     * Returns a graph renumbered in this order; for FILE, the graph itself.
+     *
+     * @param graph the graph to renumber
+     * @return the renumbered graph
+     */
+    public RoutingGraph apply(RoutingGraph graph) {
+        return this == FILE ? graph : graph.reorder(order(graph));
+    }
+
+    private static int[] hilbertOrder(RoutingGraph graph) {
+        int n = graph.vertexCount();
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int v = 0; v < n; v++) {
+            Intersection intersection = graph.intersection(v);
+            if (intersection == null) continue;
+            Coordinate c = intersection.getCoordinate();
+            minX = Math.min(minX, c.getX());
+            maxX = Math.max(maxX, c.getX());
+            minY = Math.min(minY, c.getY());
+            maxY = Math.max(maxY, c.getY());
+        }
+        // both axes are scaled by the same factor so the curve does not stretch the map
+        double span = Math.max(1, Math.max((long) maxX - minX, (long) maxY - minY));
+        int side = 1 << HILBERT_BITS;
+        long[] keys = new long[n];
+        for (int v = 0; v < n; v++) {
+            Intersection intersection = graph.intersection(v);
+            long index = 1L << 2 * HILBERT_BITS;
+            if (intersection != null) {
+                Coordinate c = intersection.getCoordinate();
+                int x = (int) Math.min(side - 1, (c.getX() - (long) minX) / span * side);
+                int y = (int) Math.min(side - 1, (c.getY() - (long) minY) / span * side);
+                index = hilbertIndex(x, y);
+            }
+            keys[v] = index << 32 | v;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = (int) keys[i];
+        return order;
+    }
+
+    /**
+     * Returns the position of cell (x, y) along the Hilbert curve through a grid of 2^HILBERT_BITS
+     * cells a side.
+     */
+    private static long hilbertIndex(int x, int y) {
+        long index = 0;
+        for (int s = 1 << HILBERT_BITS - 1; s > 0; s >>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            index += (long) s * s * (3 * rx ^ ry);
+            // rotate the quadrant so the curve inside it starts where the last one ended
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Orders the vertices breadth-first over blocks in either direction. For Cuthill-McKee every
+     * component starts at a vertex far from the others and neighbors are visited by increasing degree,
+     * and the whole order is reversed at the end.
+     */
+    private static int[] breadthFirstOrder(RoutingGraph graph, boolean cuthillMcKee) {
+        int n = graph.vertexCount();
+        int[] degree = new int[n];
+        for (int v = 0; v < n; v++) degree[v] = graph.degree(v) + graph.endInEdge(v) - graph.firstInEdge(v);
+        int[] order = new int[n];
+        int[] distance = new int[n];
+        // mark[v] == DONE once v is placed; trial searches for a start mark with their own stamp
+        int[] mark = new int[n];
+        int stamp = 0;
+        int count = 0;
+        for (int root = 0; root < n; root++) {
+            if (mark[root] == DONE || graph.intersection(root) == null) continue;
+            int start = root;
+            if (cuthillMcKee) {
+                // follow the vertex of least degree on the last level while the search gets deeper
+                int end = visit(graph, start, order, count, mark, ++stamp, degree, false, distance);
+                int depth = distance[order[end - 1]];
+                while (true) {
+                    int next = order[end - 1];
+                    for (int i = end - 1; i >= count && distance[order[i]] == depth; i--) {
+                        if (degree[order[i]] < degree[next]) next = order[i];
+                    }
+                    end = visit(graph, next, order, count, mark, ++stamp, degree, false, distance);
+                    if (distance[order[end - 1]] <= depth) break;
+                    start = next;
+                    depth = distance[order[end - 1]];
+                }
+            }
+            count = visit(graph, start, order, count, mark, DONE, degree, cuthillMcKee, distance);
+        }
+        if (cuthillMcKee) {
+            for (int i = 0, j = count - 1; i < j; i++, j--) {
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            if (mark[v] != DONE) order[count++] = v;
+        }
+        return order;
+    }
+
+    /**
+     * Appends the vertices breadth-first from start to order, beginning at position from, setting
+     * their mark to stamp and recording their distance in blocks from start. Returns one past the last
+     * position filled.
+     */
+    private static int visit(RoutingGraph graph, int start, int[] order, int from, int[] mark, int stamp, int[] degree,
+            boolean byDegree, int[] distance) {
+        int end = from;
+        order[end++] = start;
+        mark[start] = stamp;
+        distance[start] = 0;
+        for (int i = from; i < end; i++) {
+            int v = order[i];
+            int first = end;
+            for (int e = graph.firstEdge(v), stop = graph.endEdge(v); e < stop; e++) end = enqueue(graph.head(e), v, order, end, mark, stamp, distance);
+            for (int j = graph.firstInEdge(v), stop = graph.endInEdge(v); j < stop; j++) {
+                end = enqueue(graph.tail(graph.inEdge(j)), v, order, end, mark, stamp, distance);
+            }
+            if (byDegree) sortByDegree(order, first, end, degree);
+        }
+        return end;
+    }
+
+    private static int enqueue(int w, int v, int[] order, int end, int[] mark, int stamp, int[] distance) {
+        if (mark[w] == stamp) return end;
+        mark[w] = stamp;
+        distance[w] = distance[v] + 1;
+        order[end] = w;
+        return end + 1;
+    }
+
+    // insertion sort, stable so that ties keep adjacency list order; the ranges are a vertex's neighbors
+    private static void sortByDegree(int[] order, int from, int to, int[] degree) {
+        for (int i = from + 1; i < to; i++) {
+            int v = order[i];
+            int j = i - 1;
+            while (j >= from && degree[order[j]] > degree[v]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+    }
+
+    /**
+     * Renumbers a map in every order and times full Dijkstra searches and breadth-first searches from
+     * the same intersections on each. The mean id gap between the ends of a block shows how local the
+     * order is; on maps that fit in the cache the times barely differ.
+     * Usage: VertexOrdering mapFile [sources]
+     */
+    public static void main(String[] args) {
+        RUMaps maps = Benchmark.load(args[0]);
+        RoutingGraph original = maps.getRoutingGraph();
+        int sources = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Intersection[] starts = new Intersection[sources];
+        int[] vertices = Benchmark.randomVertices(original, sources);
+        for (int i = 0; i < sources; i++) starts[i] = original.intersection(vertices[i]);
+
+        VertexOrdering[] orderings = values();
+        RoutingGraph[] graphs = new RoutingGraph[orderings.length];
+        long[] built = new long[orderings.length];
+        for (int k = 0; k < orderings.length; k++) {
+            long begin = System.nanoTime();
+            graphs[k] = orderings[k].apply(original);
+            built[k] = System.nanoTime() - begin;
+        }
+        // every order is timed in every pass, so none runs colder than the others
+        Runnable[] tasks = new Runnable[2 * orderings.length];
+        for (int k = 0; k < orderings.length; k++) {
+            RoutingGraph graph = graphs[k];
+            double[] weights = graph.trafficWeights();
+            SearchWorkspace workspace = new SearchWorkspace(graph);
+            tasks[2 * k] = () -> { for (Intersection start : starts) workspace.dijkstra(graph, weights, graph.indexOf(start), -1); };
+            tasks[2 * k + 1] = () -> { for (Intersection start : starts) workspace.bfs(graph, null, graph.indexOf(start), -1); };
+        }
+        long[] elapsed = Benchmark.time(tasks);
+        for (int k = 0; k < orderings.length; k++) {
+            RoutingGraph graph = graphs[k];
+            long gap = 0;
+            for (int e = 0; e < graph.edgeCount(); e++) gap += Math.abs(graph.head(e) - graph.tail(e));
+            StdOut.printf("%-21s reordered in %5.1f ms, mean id gap %7.1f, %7.2f us per Dijkstra, %7.2f us per BFS%n", orderings[k],
+                built[k] / 1e6, (double) gap / Math.max(1, graph.edgeCount()), elapsed[2 * k] / 1e3 / sources, elapsed[2 * k + 1] / 1e3 / sources);
+        }
+    }
+}